@@ -0,0 +1,350 @@
+package nachos.filesys;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A cache of disk blocks, sitting between the file system and the disk. Each
+ * buffer holds one sector, and buffers are found by sector through a hash
+ * table. When the cache is full, the clock algorithm picks the buffer to
+ * reuse: every buffer has a referenced bit that is set on each access and
+ * cleared as the clock hand passes over it.
+ *
+ * <p>
+ * Writes only change the buffer and mark it dirty. Dirty buffers go to the
+ * disk when they are evicted, when <tt>flush()</tt> is called, or when the
+ * flush daemon wakes up every <tt>BufferCache.flushInterval</tt> ticks, so a
+ * block written many times in a row reaches the disk only once.
+ *
+ * <p>
+ * A buffer is busy while it is being read or written. Other threads wanting
+ * that buffer wait until the I/O is done; the cache lock itself is never held
+ * across disk I/O.
+ */
+class BufferCache {
+	/**
+	 * Allocate a new buffer cache of <i>numBuffers</i> blocks in front of
+	 * <i>volume</i>.
+	 *
+	 * @param volume the volume holding the blocks.
+	 * @param numBuffers the number of blocks the cache holds.
+	 */
+	BufferCache(Volume volume, int numBuffers) {
+		Lib.assertTrue(numBuffers > 0);
+
+		this.volume = volume;
+		buffers = new Buffer[numBuffers];
+		for (int i = 0; i < numBuffers; i++) {
+			buffers[i] = new Buffer();
+		}
+		index = new HashMap<Integer, Buffer>();
+		lock = new Lock();
+		bufferFree = new Condition(lock);
+	}
+
+	/**
+	 * Fork the flush daemon, which writes the dirty buffers back every
+	 * <i>interval</i> ticks.
+	 *
+	 * @param interval the number of ticks between flushes.
+	 */
+	void startFlushDaemon(final int interval) {
+		KThread daemon = new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(interval);
+					flush();
+				}
+			}
+		});
+		daemon.setName("buffer flush").fork();
+	}
+
+	/**
+	 * Read sector <i>sector</i> into <i>data</i>, starting at <i>offset</i>.
+	 */
+	void read(int sector, byte[] data, int offset) {
+		lock.acquire();
+		Buffer buffer = getBuffer(sector, true);
+		System.arraycopy(buffer.data, 0, data, offset, sectorSize);
+		lock.release();
+	}
+
+	/**
+	 * Write <i>data</i>, starting at <i>offset</i>, to sector <i>sector</i>.
+	 * The sector reaches the disk later.
+	 */
+	void write(int sector, byte[] data, int offset) {
+		lock.acquire();
+		// the whole sector is replaced, so a miss need not read it first
+		Buffer buffer = getBuffer(sector, false);
+		System.arraycopy(data, offset, buffer.data, 0, sectorSize);
+		buffer.dirty = true;
+		lock.release();
+	}
+
+	/**
+	 * Read the first <i>count</i> sectors in <i>sectors</i> into the cache
+	 * ahead of use, skipping those already cached. Only clean buffers are
+	 * reused for this, so reading ahead never forces a write. Blocks until the
+	 * sectors have been read.
+	 */
+	void prefetch(int[] sectors, int count) {
+		lock.acquire();
+		LinkedList<Buffer> loading = new LinkedList<Buffer>();
+		for (int i = 0; i < count; i++) {
+			if (index.containsKey(sectors[i])) {
+				continue;
+			}
+			Buffer victim = selectVictim();
+			if (victim == null || victim.dirty) {
+				break;
+			}
+			if (victim.sector != -1) {
+				index.remove(victim.sector);
+			}
+			victim.sector = sectors[i];
+			victim.referenced = true;
+			victim.busy = true;
+			index.put(victim.sector, victim);
+			loading.add(victim);
+		}
+		if (loading.isEmpty()) {
+			lock.release();
+			return;
+		}
+		int[] loadSectors = new int[loading.size()];
+		byte[][] data = new byte[loading.size()][];
+		for (int i = 0; i < loadSectors.length; i++) {
+			loadSectors[i] = loading.get(i).sector;
+			data[i] = loading.get(i).data;
+		}
+		lock.release();
+
+		volume.readSectors(loadSectors, data);
+
+		lock.acquire();
+		for (Buffer buffer : loading) {
+			buffer.busy = false;
+		}
+		ThreadedKernel.stats.numReadAheadBlocks += loading.size();
+		bufferFree.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Return the number of buffers in the cache.
+	 */
+	int getNumBuffers() {
+		return buffers.length;
+	}
+
+	/**
+	 * Forget sector <i>sector</i>, which was freed, so that its contents are
+	 * not written back.
+	 */
+	void discard(int sector) {
+		lock.acquire();
+		Buffer buffer = index.get(sector);
+		if (buffer != null && !buffer.busy) {
+			index.remove(sector);
+			buffer.sector = -1;
+			buffer.dirty = false;
+		}
+		lock.release();
+	}
+
+	/**
+	 * Write every dirty buffer to the disk. The writes are handed to the disk
+	 * together, so that it can order them and merge neighbouring sectors.
+	 */
+	void flush() {
+		lock.acquire();
+		LinkedList<Buffer> dirty = new LinkedList<Buffer>();
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i].dirty && !buffers[i].busy) {
+				buffers[i].busy = true;
+				dirty.add(buffers[i]);
+			}
+		}
+		writeBack(dirty);
+		lock.release();
+	}
+
+	/**
+	 * Write the dirty buffers holding any of the first <i>count</i> sectors in
+	 * <i>sectors</i> to the disk, waiting for any of them already being
+	 * written.
+	 */
+	void flush(int[] sectors, int count) {
+		lock.acquire();
+		LinkedList<Buffer> dirty = new LinkedList<Buffer>();
+		for (int i = 0; i < count; i++) {
+			Buffer buffer;
+			while ((buffer = index.get(sectors[i])) != null && buffer.busy) {
+				bufferFree.sleep();
+			}
+			if (buffer != null && buffer.dirty) {
+				buffer.busy = true;
+				dirty.add(buffer);
+			}
+		}
+		writeBack(dirty);
+		lock.release();
+	}
+
+	/**
+	 * Return the buffer holding sector <i>sector</i>, loading it into the
+	 * cache if it is not there. The caller must hold the cache lock, which may
+	 * be released and reacquired while waiting for the disk.
+	 *
+	 * @param sector the sector wanted.
+	 * @param fill <tt>true</tt> if a newly loaded buffer must be read from the
+	 * disk.
+	 */
+	private Buffer getBuffer(int sector, boolean fill) {
+		boolean counted = false;
+		while (true) {
+			Buffer buffer = index.get(sector);
+			if (buffer != null) {
+				if (buffer.busy) {
+					bufferFree.sleep();
+					continue;
+				}
+				if (!counted) {
+					ThreadedKernel.stats.numCacheHits++;
+				}
+				buffer.referenced = true;
+				return buffer;
+			}
+			if (!counted) {
+				ThreadedKernel.stats.numCacheMisses++;
+				counted = true;
+			}
+
+			Buffer victim = selectVictim();
+			if (victim == null) {
+				bufferFree.sleep();
+				continue;
+			}
+			if (victim.dirty) {
+				// the sector may have been loaded by someone else meanwhile,
+				// so look again once the victim is clean
+				writeBack(victim);
+				continue;
+			}
+
+			if (victim.sector != -1) {
+				index.remove(victim.sector);
+			}
+			victim.sector = sector;
+			victim.referenced = true;
+			index.put(sector, victim);
+			if (fill) {
+				victim.busy = true;
+				lock.release();
+				volume.readSector(sector, victim.data, 0);
+				lock.acquire();
+				victim.busy = false;
+				bufferFree.wakeAll();
+			}
+			return victim;
+		}
+	}
+
+	/**
+	 * Pick the buffer to reuse with the clock algorithm.
+	 *
+	 * @return a buffer that is not busy, or <tt>null</tt> if all are.
+	 */
+	private Buffer selectVictim() {
+		// two laps clear every referenced bit, so a third finds a victim
+		for (int i = 0; i < 2 * buffers.length + 1; i++) {
+			Buffer buffer = buffers[clockHand];
+			clockHand = (clockHand + 1) % buffers.length;
+			if (buffer.busy) {
+				continue;
+			}
+			if (buffer.sector == -1 || !buffer.referenced) {
+				return buffer;
+			}
+			buffer.referenced = false;
+		}
+		return null;
+	}
+
+	/**
+	 * Write the dirty buffers in <i>dirty</i>, already marked busy, to the
+	 * disk together. The caller must hold the cache lock, which is released
+	 * during the writes.
+	 */
+	private void writeBack(LinkedList<Buffer> dirty) {
+		if (dirty.isEmpty()) {
+			return;
+		}
+		int[] sectors = new int[dirty.size()];
+		byte[][] data = new byte[dirty.size()][];
+		for (int i = 0; i < sectors.length; i++) {
+			sectors[i] = dirty.get(i).sector;
+			data[i] = dirty.get(i).data;
+		}
+		lock.release();
+
+		volume.writeSectors(sectors, data);
+
+		lock.acquire();
+		for (Buffer buffer : dirty) {
+			buffer.busy = false;
+			buffer.dirty = false;
+			ThreadedKernel.stats.numCacheWriteBacks++;
+		}
+		bufferFree.wakeAll();
+	}
+
+	/**
+	 * Write dirty buffer <i>buffer</i> to the disk. The caller must hold the
+	 * cache lock, which is released during the write.
+	 */
+	private void writeBack(Buffer buffer) {
+		buffer.busy = true;
+		lock.release();
+		volume.writeSector(buffer.sector, buffer.data, 0);
+		lock.acquire();
+		buffer.busy = false;
+		buffer.dirty = false;
+		ThreadedKernel.stats.numCacheWriteBacks++;
+		bufferFree.wakeAll();
+	}
+
+	/**
+	 * One block of the cache.
+	 */
+	private static class Buffer {
+		// the sector held, or -1 if the buffer is unused
+		int sector = -1;
+		byte[] data = new byte[sectorSize];
+		boolean dirty = false;
+		boolean referenced = false;
+		// true while the disk is reading or writing the buffer
+		boolean busy = false;
+	}
+
+	private Volume volume;
+
+	private Buffer[] buffers;
+
+	// the buffers in use, by sector
+	private HashMap<Integer, Buffer> index;
+
+	private Lock lock;
+
+	// signalled whenever a buffer stops being busy
+	private Condition bufferFree;
+
+	private int clockHand = 0;
+
+	private static final int sectorSize = Disk.sectorSize;
+}
@@ -0,0 +1,143 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * A directory, stored as the data of a directory inode. The data is an array
+ * of fixed-size entries, each an inode number followed by a name padded with
+ * zero bytes. An entry with inode number 0 is unused; inode 0 itself is never
+ * allocated. Every directory but the root has an entry named <tt>..</tt>
+ * naming its parent.
+ *
+ * <p>
+ * A <tt>Directory</tt> reads and writes its inode directly, so the caller
+ * must keep other threads from changing the directory at the same time.
+ */
+class Directory {
+	/**
+	 * Wrap directory inode <i>inode</i>.
+	 */
+	Directory(Inode inode) {
+		Lib.assertTrue(inode.type == Inode.typeDirectory);
+
+		this.inode = inode;
+	}
+
+	/**
+	 * Return the inode number named <i>name</i>, or 0 if there is none.
+	 */
+	int lookup(String name) {
+		byte[] entries = readEntries();
+		int slot = find(entries, name);
+		if (slot == -1) {
+			return 0;
+		}
+		return Lib.bytesToInt(entries, slot * entrySize);
+	}
+
+	/**
+	 * Add an entry naming inode <i>inumber</i>. The name must not be in use.
+	 *
+	 * @return <tt>false</tt> if the directory could not grow.
+	 */
+	boolean add(String name, int inumber) {
+		byte[] entries = readEntries();
+		Lib.assertTrue(find(entries, name) == -1 && isValidName(name));
+
+		// reuse the first free entry, or append one
+		int numEntries = entries.length / entrySize;
+		int slot = 0;
+		while (slot < numEntries && Lib.bytesToInt(entries, slot * entrySize) != 0) {
+			slot++;
+		}
+		byte[] entry = new byte[entrySize];
+		Lib.bytesFromInt(entry, 0, inumber);
+		byte[] bytes = name.getBytes();
+		System.arraycopy(bytes, 0, entry, 4, bytes.length);
+		return inode.write(slot * entrySize, entry, 0, entrySize) == entrySize;
+	}
+
+	/**
+	 * Remove the entry for <i>name</i>.
+	 *
+	 * @return the inode number the entry named, or 0 if there was none.
+	 */
+	int remove(String name) {
+		byte[] entries = readEntries();
+		int slot = find(entries, name);
+		if (slot == -1) {
+			return 0;
+		}
+		int inumber = Lib.bytesToInt(entries, slot * entrySize);
+		inode.write(slot * entrySize, new byte[entrySize], 0, entrySize);
+		return inumber;
+	}
+
+	/**
+	 * Test whether the directory has no entries in use, other than the one
+	 * naming its parent.
+	 */
+	boolean isEmpty() {
+		byte[] entries = readEntries();
+		for (int slot = 0; slot < entries.length / entrySize; slot++) {
+			if (Lib.bytesToInt(entries, slot * entrySize) != 0
+					&& !getName(entries, slot * entrySize).equals(parentName)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Test whether <i>name</i> can be stored in an entry.
+	 */
+	static boolean isValidName(String name) {
+		if (name.length() == 0 || name.length() > maxNameLength) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c <= ' ' || c >= 0x7F || c == '/') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the slot of the entry named name in entries, or -1
+	private static int find(byte[] entries, String name) {
+		for (int slot = 0; slot < entries.length / entrySize; slot++) {
+			if (Lib.bytesToInt(entries, slot * entrySize) != 0
+					&& getName(entries, slot * entrySize).equals(name)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	// read every entry, in one pass over the directory's blocks
+	private byte[] readEntries() {
+		byte[] entries = new byte[inode.length / entrySize * entrySize];
+		inode.read(0, entries, 0, entries.length);
+		return entries;
+	}
+
+	private static String getName(byte[] entries, int offset) {
+		int length = 0;
+		while (length < maxNameLength && entries[offset + 4 + length] != 0) {
+			length++;
+		}
+		return new String(entries, offset + 4, length);
+	}
+
+	private Inode inode;
+
+	/** The size of a directory entry. */
+	static final int entrySize = 32;
+
+	/** The name of the entry naming a directory's parent. */
+	static final String parentName = "..";
+
+	/** The longest name a directory entry can hold. */
+	static final int maxNameLength = entrySize - 4;
+}
@@ -0,0 +1,298 @@
+package nachos.filesys;
+
+import java.util.HashSet;
+import java.util.List;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A bitmap of free resources, kept on disk in consecutive sectors. The file
+ * system keeps one for the sectors of the disk and one for the inodes.
+ *
+ * <p>
+ * The whole bitmap is held in memory. A change is written through to the
+ * sector holding the changed bit right away, so the bitmap on disk is always
+ * current. Allocation is next-fit: the search starts where the last one
+ * stopped, so that blocks allocated one after another end up next to each
+ * other on disk. <tt>allocateRun()</tt> hands out runs of consecutive
+ * resources at once.
+ *
+ * <p>
+ * Free resources may be reserved, for an allocation that is certain to come
+ * later. Nobody else can take them in the meantime.
+ *
+ * <p>
+ * A resource may be freed but held, in which case it is not allocated again
+ * until it is released. The file system holds sectors freed in a journal
+ * transaction until the transaction commits.
+ */
+class FreeMap {
+	/**
+	 * Allocate a new free map of <i>numBits</i> bits, stored on disk starting
+	 * at sector <i>firstSector</i>. The map is not read from the disk until
+	 * <tt>load()</tt> is called.
+	 *
+	 * @param fileSystem the file system doing the disk I/O.
+	 * @param firstSector the first sector holding the map.
+	 * @param numBits the number of resources tracked.
+	 */
+	FreeMap(NachosFileSystem fileSystem, int firstSector, int numBits) {
+		this.fileSystem = fileSystem;
+		this.firstSector = firstSector;
+		this.numBits = numBits;
+		bits = new byte[getNumSectors(numBits) * sectorSize];
+		held = new HashSet<Integer>();
+		lock = new Lock();
+	}
+
+	/**
+	 * Return the number of sectors needed to hold a map of <i>numBits</i>
+	 * bits.
+	 */
+	static int getNumSectors(int numBits) {
+		return Lib.divRoundUp(numBits, sectorSize * 8);
+	}
+
+	/**
+	 * Read the map from the disk.
+	 */
+	void load() {
+		for (int i = 0; i < bits.length / sectorSize; i++) {
+			fileSystem.readSector(firstSector + i, bits, i * sectorSize);
+		}
+		numFree = 0;
+		for (int i = 0; i < numBits; i++) {
+			if (!isSet(i)) {
+				numFree++;
+			}
+		}
+	}
+
+	/**
+	 * Clear the map and write it to the disk, with the first <i>numUsed</i>
+	 * resources marked as in use.
+	 *
+	 * @param numUsed the number of resources reserved at the start.
+	 */
+	void format(int numUsed) {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+		for (int i = 0; i < numUsed; i++) {
+			bits[i / 8] |= 1 << (i % 8);
+		}
+		numFree = numBits - numUsed;
+		for (int i = 0; i < bits.length / sectorSize; i++) {
+			fileSystem.writeSector(firstSector + i, bits, i * sectorSize);
+		}
+	}
+
+	/**
+	 * Mark a free resource as used.
+	 *
+	 * @return the resource allocated, or -1 if there is none free.
+	 */
+	int allocate() {
+		lock.acquire();
+		if (numFree - reserved <= 0) {
+			lock.release();
+			return -1;
+		}
+		for (int n = 0; n < numBits; n++) {
+			int i = (next + n) % numBits;
+			if (isFree(i)) {
+				bits[i / 8] |= 1 << (i % 8);
+				numFree--;
+				next = (i + 1) % numBits;
+				writeBack(i);
+				lock.release();
+				return i;
+			}
+		}
+		lock.release();
+		return -1;
+	}
+
+	/**
+	 * Mark a run of up to <i>count</i> consecutive free resources as used.
+	 * The run starts at <i>goal</i> if that is free. Otherwise it is the
+	 * first run of <i>count</i> the next-fit search comes to, or the longest
+	 * run there is if none is that long.
+	 *
+	 * @param goal where the run should start, or -1 for anywhere.
+	 * @param count the most resources wanted.
+	 * @param reserved <tt>true</tt> if the caller reserved <i>count</i>
+	 * resources with <tt>reserve()</tt>.
+	 * @return the first resource of the run and the length of the run, or
+	 * <tt>null</tt> if there is none free.
+	 */
+	int[] allocateRun(int goal, int count, boolean reserved) {
+		lock.acquire();
+		if (!reserved) {
+			count = Math.min(count, numFree - this.reserved);
+		}
+		int start = -1;
+		int length = 0;
+		if (count > 0 && goal >= 0 && goal < numBits && isFree(goal)) {
+			start = goal;
+			length = getRunLength(goal, count);
+		} else if (count > 0) {
+			for (int n = 0; n < numBits;) {
+				int i = (next + n) % numBits;
+				if (!isFree(i)) {
+					n++;
+					continue;
+				}
+				int run = getRunLength(i, count);
+				if (run > length) {
+					start = i;
+					length = run;
+					if (run == count) {
+						break;
+					}
+				}
+				n += run;
+			}
+		}
+		if (start == -1) {
+			lock.release();
+			return null;
+		}
+
+		for (int i = start; i < start + length; i++) {
+			bits[i / 8] |= 1 << (i % 8);
+		}
+		numFree -= length;
+		if (reserved) {
+			this.reserved -= length;
+		}
+		next = (start + length) % numBits;
+		int bitsPerSector = sectorSize * 8;
+		for (int sector = start / bitsPerSector; sector <= (start + length - 1) / bitsPerSector; sector++) {
+			writeBack(sector * bitsPerSector);
+		}
+		lock.release();
+		return new int[] { start, length };
+	}
+
+	/**
+	 * Set aside <i>count</i> free resources for a later call to
+	 * <tt>allocateRun()</tt>.
+	 *
+	 * @return <tt>false</tt> if there are not that many free resources left.
+	 */
+	boolean reserve(int count) {
+		lock.acquire();
+		boolean reserved = numFree - this.reserved >= count;
+		if (reserved) {
+			this.reserved += count;
+		}
+		lock.release();
+		return reserved;
+	}
+
+	/**
+	 * Give back <i>count</i> reserved resources that will not be allocated
+	 * after all.
+	 */
+	void unreserve(int count) {
+		lock.acquire();
+		Lib.assertTrue(count <= reserved);
+		reserved -= count;
+		lock.release();
+	}
+
+	/**
+	 * Mark a used resource as free.
+	 *
+	 * @param i the resource to free.
+	 */
+	void free(int i) {
+		free(i, false);
+	}
+
+	/**
+	 * Mark a used resource as free, and hold it if <i>hold</i> is true.
+	 *
+	 * @param i the resource to free.
+	 * @param hold <tt>true</tt> if the resource may not be allocated until it
+	 * is released.
+	 */
+	void free(int i, boolean hold) {
+		Lib.assertTrue(i >= 0 && i < numBits);
+
+		lock.acquire();
+		Lib.assertTrue(isSet(i));
+		bits[i / 8] &= ~(1 << (i % 8));
+		numFree++;
+		if (hold) {
+			held.add(i);
+		}
+		writeBack(i);
+		lock.release();
+	}
+
+	/**
+	 * Let the held resources in <i>resources</i> be allocated again.
+	 */
+	void release(List<Integer> resources) {
+		lock.acquire();
+		held.removeAll(resources);
+		lock.release();
+	}
+
+	/**
+	 * Return the number of free resources.
+	 */
+	int getNumFree() {
+		return numFree;
+	}
+
+	private boolean isSet(int i) {
+		return (bits[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private boolean isFree(int i) {
+		return !isSet(i) && !held.contains(i);
+	}
+
+	// the number of free resources in a row from i, up to count, not
+	// wrapping around the end of the map
+	private int getRunLength(int i, int count) {
+		int length = 0;
+		while (length < count && i + length < numBits && isFree(i + length)) {
+			length++;
+		}
+		return length;
+	}
+
+	// write the sector holding bit i
+	private void writeBack(int i) {
+		int sector = i / (sectorSize * 8);
+		fileSystem.writeMetadata(firstSector + sector, bits, sector * sectorSize);
+	}
+
+	private NachosFileSystem fileSystem;
+
+	private int firstSector;
+
+	private int numBits;
+
+	private int numFree;
+
+	// free resources set aside by reserve()
+	private int reserved = 0;
+
+	// where the next search starts
+	private int next = 0;
+
+	private byte[] bits;
+
+	// free resources that may not be allocated yet
+	private HashSet<Integer> held;
+
+	private Lock lock;
+
+	private static final int sectorSize = Disk.sectorSize;
+}
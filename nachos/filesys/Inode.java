@@ -0,0 +1,680 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The in-memory copy of an inode. An inode describes one file or directory:
+ * its type, its length in bytes, the number of directory entries naming it,
+ * and where its blocks are on disk.
+ *
+ * <p>
+ * Every inode fills exactly one sector. After the header comes the root of
+ * the file's extent tree. An extent is a run of consecutive blocks of the
+ * file stored in consecutive sectors, recorded as its first block, its first
+ * sector and its length. A file with up to <tt>numRootEntries</tt> extents
+ * keeps them all in the inode. A larger one keeps them in tree blocks of
+ * <tt>entriesPerNode</tt> each, with the inode pointing to the tree blocks,
+ * or to a level of tree blocks pointing to those, and so on. A block in no
+ * extent was never written, and reads of it return zeroes, so files may have
+ * holes.
+ *
+ * <p>
+ * Blocks written to a file that have no sector yet are not given one right
+ * away. Up to <tt>NachosFileSystem.delayedBlocks</tt> of them are kept here,
+ * with room for them reserved on the disk, until there are that many, or the
+ * file is closed or synced. Each run of consecutive blocks then gets a run
+ * of consecutive sectors, right after the file's previous block if that
+ * space is free, so a file written sequentially ends up in few extents.
+ * Space may also be set aside ahead of time with <tt>preallocate()</tt>.
+ *
+ * <p>
+ * The file system keeps a single <tt>Inode</tt> per file that is open or
+ * being worked on, so all open files of the same file share it. Its lock
+ * serializes access to the file's data and extents.
+ */
+class Inode {
+	/**
+	 * Allocate the in-memory copy of inode <i>inumber</i>. The inode is
+	 * empty until it is loaded or initialized.
+	 */
+	Inode(NachosFileSystem fileSystem, int inumber) {
+		this.fileSystem = fileSystem;
+		this.inumber = inumber;
+		extents = new ArrayList<Extent>();
+		nodes = new ArrayList<ArrayList<Integer>>();
+		delayed = new TreeMap<Integer, byte[]>();
+		lock = new Lock();
+	}
+
+	/**
+	 * Read this inode, and its extent tree, from the disk.
+	 */
+	void load() {
+		byte[] data = new byte[sectorSize];
+		fileSystem.readSector(getSector(), data, 0);
+		type = Lib.bytesToInt(data, 0);
+		length = Lib.bytesToInt(data, 4);
+		linkCount = Lib.bytesToInt(data, 8);
+		int depth = Lib.bytesToInt(data, 12);
+
+		extents.clear();
+		nodes.clear();
+		for (int level = 0; level < depth; level++) {
+			nodes.add(new ArrayList<Integer>());
+		}
+		loadEntries(data, headerSize, depth);
+		dirtyFrom = clean;
+	}
+
+	/**
+	 * Read the entries of a tree block, or of the inode, at <i>level</i>
+	 * levels above the leaves, and everything below them.
+	 */
+	private void loadEntries(byte[] data, int offset, int level) {
+		int count = Lib.bytesToInt(data, offset - 4);
+		for (int i = 0; i < count; i++) {
+			int entry = offset + i * entrySize;
+			int block = Lib.bytesToInt(data, entry);
+			int sector = Lib.bytesToInt(data, entry + 4);
+			if (level == 0) {
+				extents.add(new Extent(block, sector, Lib.bytesToInt(data, entry + 8)));
+			} else {
+				nodes.get(level - 1).add(sector);
+				byte[] node = new byte[blockSize];
+				fileSystem.readSector(sector, node, 0);
+				loadEntries(node, nodeHeaderSize, level - 1);
+			}
+		}
+	}
+
+	/**
+	 * Make this an empty inode of type <i>type</i> and write it out.
+	 */
+	void initialize(int type) {
+		this.type = type;
+		length = 0;
+		linkCount = 1;
+		extents.clear();
+		nodes.clear();
+		dirtyFrom = clean;
+		save();
+	}
+
+	/**
+	 * Write this inode to its sector, along with the tree blocks holding
+	 * extents that changed.
+	 */
+	void save() {
+		// the entries of each level are the first blocks of the tree blocks
+		// holding the level below
+		ArrayList<Extent> entries = extents;
+		for (int level = 0; level < nodes.size(); level++) {
+			ArrayList<Integer> sectors = nodes.get(level);
+			ArrayList<Extent> parents = new ArrayList<Extent>();
+			for (int i = 0; i < sectors.size(); i++) {
+				int first = i * entriesPerNode;
+				int end = Math.min(first + entriesPerNode, entries.size());
+				// a leaf holding no changed extent is current on disk already
+				if (level > 0 ? dirtyFrom != clean : end > dirtyFrom) {
+					byte[] node = new byte[blockSize];
+					storeEntries(node, nodeHeaderSize, entries, first, end);
+					fileSystem.writeMetadata(sectors.get(i), node, 0);
+				}
+				parents.add(new Extent(entries.get(first).block, sectors.get(i), 0));
+			}
+			entries = parents;
+		}
+		dirtyFrom = clean;
+
+		byte[] data = new byte[sectorSize];
+		Lib.bytesFromInt(data, 0, type);
+		Lib.bytesFromInt(data, 4, length);
+		Lib.bytesFromInt(data, 8, linkCount);
+		Lib.bytesFromInt(data, 12, nodes.size());
+		storeEntries(data, headerSize, entries, 0, entries.size());
+		fileSystem.writeMetadata(getSector(), data, 0);
+	}
+
+	// store entries first to end, preceded by their count
+	private static void storeEntries(byte[] data, int offset, ArrayList<Extent> entries,
+			int first, int end) {
+		Lib.bytesFromInt(data, offset - 4, end - first);
+		for (int i = first; i < end; i++) {
+			Extent extent = entries.get(i);
+			int entry = offset + (i - first) * entrySize;
+			Lib.bytesFromInt(data, entry, extent.block);
+			Lib.bytesFromInt(data, entry + 4, extent.sector);
+			Lib.bytesFromInt(data, entry + 8, extent.length);
+		}
+	}
+
+	/**
+	 * Read up to <i>count</i> bytes at <i>pos</i> into <i>buf</i>.
+	 *
+	 * @return the number of bytes read, 0 at or past the end of the file.
+	 */
+	int read(int pos, byte[] buf, int offset, int count) {
+		lock.acquire();
+		if (pos >= length) {
+			lock.release();
+			return 0;
+		}
+		count = Math.min(count, length - pos);
+		byte[] block = new byte[blockSize];
+		int done = 0;
+		while (done < count) {
+			int index = (pos + done) / blockSize;
+			int blockOffset = (pos + done) % blockSize;
+			int amount = Math.min(count - done, blockSize - blockOffset);
+			byte[] waiting = delayed.get(index);
+			int sector = mapBlock(index);
+			if (waiting != null) {
+				System.arraycopy(waiting, blockOffset, buf, offset + done, amount);
+			} else if (sector == 0) {
+				Arrays.fill(buf, offset + done, offset + done + amount, (byte) 0);
+			} else {
+				fileSystem.readSector(sector, block, 0);
+				System.arraycopy(block, blockOffset, buf, offset + done, amount);
+			}
+			done += amount;
+		}
+		lock.release();
+		return done;
+	}
+
+	/**
+	 * Write <i>count</i> bytes from <i>buf</i> at <i>pos</i>, growing the file
+	 * if needed.
+	 *
+	 * @return the number of bytes written, less than <i>count</i> if the disk
+	 * filled up or the file reached its maximum size.
+	 */
+	int write(int pos, byte[] buf, int offset, int count) {
+		lock.acquire();
+		if (pos > length) {
+			clearPreallocated(pos / blockSize);
+		}
+		byte[] block = new byte[blockSize];
+		int done = 0;
+		while (done < count) {
+			int index = (pos + done) / blockSize;
+			int blockOffset = (pos + done) % blockSize;
+			int amount = Math.min(count - done, blockSize - blockOffset);
+			if (index >= maxBlocks) {
+				break;
+			}
+			int sector = mapBlock(index);
+			if (sector == 0 && type == typeFile && fileSystem.getDelayedBlocks() > 0) {
+				if (!writeDelayed(index, blockOffset, buf, offset + done, amount)) {
+					break;
+				}
+				done += amount;
+				continue;
+			}
+
+			// a block past the end of the file holds nothing yet, even if it
+			// was preallocated
+			boolean fresh = (sector == 0) || index * blockSize >= length;
+			if (sector == 0) {
+				if (allocateBlocks(index, 1, false) == 0) {
+					break;
+				}
+				sector = mapBlock(index);
+			}
+			if (amount < blockSize) {
+				// keep the rest of the block, a new block starts out zeroed
+				if (fresh) {
+					Arrays.fill(block, (byte) 0);
+				} else {
+					fileSystem.readSector(sector, block, 0);
+				}
+			}
+			System.arraycopy(buf, offset + done, block, blockOffset, amount);
+			// the blocks of a directory are metadata too
+			if (type == typeDirectory) {
+				fileSystem.writeMetadata(sector, block, 0);
+			} else {
+				fileSystem.writeSector(sector, block, 0);
+			}
+			done += amount;
+		}
+		if (pos + done > length) {
+			length = pos + done;
+			save();
+		} else if (dirtyFrom != clean) {
+			save();
+		}
+		lock.release();
+		return done;
+	}
+
+	/**
+	 * Copy <i>amount</i> bytes into unallocated block <i>index</i>, keeping
+	 * the block in memory until it is given a sector.
+	 *
+	 * @return <tt>false</tt> if the disk has no room for the block.
+	 */
+	private boolean writeDelayed(int index, int blockOffset, byte[] buf, int offset,
+			int amount) {
+		byte[] block = delayed.get(index);
+		if (block == null) {
+			if (delayed.size() >= fileSystem.getDelayedBlocks() && !flushDelayed()) {
+				return false;
+			}
+			if (!fileSystem.reserveSectors(1)) {
+				return false;
+			}
+			block = new byte[blockSize];
+			delayed.put(index, block);
+		}
+		System.arraycopy(buf, offset, block, blockOffset, amount);
+		return true;
+	}
+
+	/**
+	 * Give sectors to the blocks kept in memory, and write them out. The
+	 * caller must hold the lock.
+	 *
+	 * @return <tt>false</tt> if some blocks could not be given sectors, in
+	 * which case they are still kept.
+	 */
+	boolean flushDelayed() {
+		if (delayed.isEmpty()) {
+			return true;
+		}
+		Integer[] blocks = delayed.keySet().toArray(new Integer[delayed.size()]);
+		boolean flushed = true;
+		for (int first = 0; first < blocks.length;) {
+			int end = first + 1;
+			while (end < blocks.length && blocks[end] == blocks[end - 1] + 1) {
+				end++;
+			}
+			int allocated = allocateBlocks(blocks[first], end - first, true);
+			for (int i = first; i < first + allocated; i++) {
+				fileSystem.writeSector(mapBlock(blocks[i]), delayed.remove(blocks[i]), 0);
+			}
+			if (allocated < end - first) {
+				flushed = false;
+			}
+			first = end;
+		}
+		save();
+		Lib.debug(dbgFS, "gave sectors to " + blocks.length + " blocks of inode " + inumber
+				+ ", now in " + extents.size() + " extents");
+		return flushed;
+	}
+
+	/**
+	 * Drop the blocks kept in memory, and the room reserved for them. The
+	 * caller must hold the lock.
+	 */
+	void discardDelayed() {
+		fileSystem.unreserveSectors(delayed.size());
+		delayed.clear();
+	}
+
+	/**
+	 * Give sectors to every block of the first <i>numBlocks</i> that has
+	 * none, without changing the length of the file. Holes before the end of
+	 * the file are zeroed. The caller must hold the lock.
+	 *
+	 * @return <tt>false</tt> if the disk filled up first.
+	 */
+	boolean preallocate(int numBlocks) {
+		if (!flushDelayed()) {
+			return false;
+		}
+		numBlocks = Math.min(numBlocks, maxBlocks);
+		int endOfFile = Lib.divRoundUp(length, blockSize);
+		boolean preallocated = true;
+		for (int block = 0; block < numBlocks && preallocated;) {
+			int i = search(block);
+			Extent extent = (i == -1) ? null : extents.get(i);
+			if (extent != null && block < extent.block + extent.length) {
+				block = extent.block + extent.length;
+				continue;
+			}
+			// the hole runs up to the next extent
+			int end = numBlocks;
+			if (i + 1 < extents.size()) {
+				end = Math.min(end, extents.get(i + 1).block);
+			}
+			int allocated = allocateBlocks(block, end - block, false);
+			byte[] zeroes = new byte[blockSize];
+			for (int j = block; j < block + allocated && j < endOfFile; j++) {
+				fileSystem.writeSector(mapBlock(j), zeroes, 0);
+			}
+			preallocated = (allocated == end - block);
+			block = end;
+		}
+		save();
+		Lib.debug(dbgFS, "preallocated " + numBlocks + " blocks of inode " + inumber
+				+ ", now in " + extents.size() + " extents");
+		return preallocated;
+	}
+
+	/**
+	 * Zero the preallocated blocks between the end of the file and block
+	 * <i>end</i>, which a write at <i>end</i> is about to bring inside the
+	 * file.
+	 */
+	private void clearPreallocated(int end) {
+		byte[] zeroes = new byte[blockSize];
+		for (int block = Lib.divRoundUp(length, blockSize); block < end; block++) {
+			int sector = mapBlock(block);
+			if (sector != 0) {
+				fileSystem.writeSector(sector, zeroes, 0);
+			}
+		}
+	}
+
+	/**
+	 * Give back every block of this file and make it empty. The caller must
+	 * hold the lock.
+	 */
+	void truncate() {
+		discardDelayed();
+		for (Extent extent : extents) {
+			for (int i = 0; i < extent.length; i++) {
+				fileSystem.freeSector(extent.sector + i);
+			}
+		}
+		for (ArrayList<Integer> level : nodes) {
+			for (int sector : level) {
+				fileSystem.freeSector(sector);
+			}
+		}
+		extents.clear();
+		nodes.clear();
+		dirtyFrom = clean;
+		length = 0;
+		save();
+	}
+
+	/**
+	 * Return the sector holding block <i>index</i> of this file. The caller
+	 * must hold the lock.
+	 *
+	 * @return the sector, or 0 if the block has none.
+	 */
+	int mapBlock(int index) {
+		int i = search(index);
+		if (i == -1) {
+			return 0;
+		}
+		Extent extent = extents.get(i);
+		return (index < extent.block + extent.length) ? extent.sector + index - extent.block : 0;
+	}
+
+	/**
+	 * Return the sectors holding the blocks of this file before its end, in
+	 * order. The caller must hold the lock.
+	 */
+	int[] getSectors() {
+		int numBlocks = Lib.divRoundUp(length, blockSize);
+		int count = 0;
+		for (Extent extent : extents) {
+			count += Math.max(0, Math.min(extent.length, numBlocks - extent.block));
+		}
+		int[] sectors = new int[count];
+		count = 0;
+		for (Extent extent : extents) {
+			for (int i = 0; i < extent.length && extent.block + i < numBlocks; i++) {
+				sectors[count++] = extent.sector + i;
+			}
+		}
+		return sectors;
+	}
+
+	// the index of the last extent starting at or before block, or -1
+	private int search(int block) {
+		int low = 0;
+		int high = extents.size() - 1;
+		int found = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (extents.get(middle).block <= block) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Give sectors to the <i>count</i> blocks starting at <i>first</i>, none
+	 * of which has one, in as few runs of consecutive sectors as the free
+	 * space allows.
+	 *
+	 * @param reserved <tt>true</tt> if room for the blocks was reserved.
+	 * @return the number of blocks given sectors, less than <i>count</i> if
+	 * the disk filled up.
+	 */
+	private int allocateBlocks(int first, int count, boolean reserved) {
+		int done = 0;
+		while (done < count) {
+			// carry on from the sector of the block before, if it has one
+			int previous = (first + done > 0) ? mapBlock(first + done - 1) : 0;
+			int[] run = fileSystem.allocateSectors((previous == 0) ? -1 : previous + 1,
+					count - done, reserved);
+			if (run == null) {
+				break;
+			}
+			if (!addExtent(first + done, run[0], run[1])) {
+				for (int i = 0; i < run[1]; i++) {
+					fileSystem.freeSector(run[0] + i);
+				}
+				// the blocks are still waiting for the room they had
+				if (reserved) {
+					fileSystem.reserveSectors(run[1]);
+				}
+				break;
+			}
+			done += run[1];
+		}
+		return done;
+	}
+
+	/**
+	 * Map the <i>count</i> blocks starting at <i>block</i>, none of which is
+	 * mapped, to the sectors starting at <i>sector</i>, merging with the
+	 * extents on either side where they line up.
+	 *
+	 * @return <tt>false</tt> if the extent tree could not grow.
+	 */
+	private boolean addExtent(int block, int sector, int count) {
+		int i = search(block) + 1;
+		Extent previous = (i > 0) ? extents.get(i - 1) : null;
+		Extent next = (i < extents.size()) ? extents.get(i) : null;
+		boolean joinPrevious = previous != null && previous.block + previous.length == block
+				&& previous.sector + previous.length == sector;
+		boolean joinNext = next != null && block + count == next.block
+				&& sector + count == next.sector;
+
+		if (joinPrevious && joinNext) {
+			previous.length += count + next.length;
+			extents.remove(i);
+			reshapeTree(extents.size());
+			dirtyFrom = Math.min(dirtyFrom, i - 1);
+		} else if (joinPrevious) {
+			previous.length += count;
+			dirtyFrom = Math.min(dirtyFrom, i - 1);
+		} else if (joinNext) {
+			next.block = block;
+			next.sector = sector;
+			next.length += count;
+			dirtyFrom = Math.min(dirtyFrom, i);
+		} else {
+			if (!reshapeTree(extents.size() + 1)) {
+				return false;
+			}
+			extents.add(i, new Extent(block, sector, count));
+			dirtyFrom = Math.min(dirtyFrom, i);
+		}
+		return true;
+	}
+
+	/**
+	 * Give the extent tree as many tree blocks at each level as it needs to
+	 * hold <i>count</i> extents, allocating or freeing tree blocks.
+	 *
+	 * @return <tt>false</tt> if the tree could not grow, in which case it is
+	 * left as it was.
+	 */
+	private boolean reshapeTree(int count) {
+		// the number of tree blocks needed at each level, leaves first
+		ArrayList<Integer> shape = new ArrayList<Integer>();
+		for (int entries = count; entries > numRootEntries;) {
+			entries = Lib.divRoundUp(entries, entriesPerNode);
+			shape.add(entries);
+		}
+		if (shape.size() > maxDepth) {
+			return false;
+		}
+
+		// allocate every new tree block first, so that failing changes nothing
+		int needed = 0;
+		for (int level = 0; level < shape.size(); level++) {
+			int have = (level < nodes.size()) ? nodes.get(level).size() : 0;
+			needed += Math.max(0, shape.get(level) - have);
+		}
+		ArrayList<Integer> fresh = new ArrayList<Integer>();
+		while (fresh.size() < needed) {
+			int[] run = fileSystem.allocateSectors(-1, needed - fresh.size(), false);
+			if (run == null) {
+				for (int sector : fresh) {
+					fileSystem.freeSector(sector);
+				}
+				return false;
+			}
+			for (int i = 0; i < run[1]; i++) {
+				fresh.add(run[0] + i);
+			}
+		}
+
+		for (int level = 0; level < Math.max(shape.size(), nodes.size()); level++) {
+			if (level == nodes.size()) {
+				nodes.add(new ArrayList<Integer>());
+			}
+			ArrayList<Integer> sectors = nodes.get(level);
+			int want = (level < shape.size()) ? shape.get(level) : 0;
+			if (level == 0 && sectors.size() < want) {
+				// new leaves must be written even if their extents are not new
+				dirtyFrom = Math.min(dirtyFrom, sectors.size() * entriesPerNode);
+			}
+			while (sectors.size() < want) {
+				sectors.add(fresh.remove(0));
+			}
+			while (sectors.size() > want) {
+				fileSystem.freeSector(sectors.remove(sectors.size() - 1));
+			}
+		}
+		while (nodes.size() > shape.size()) {
+			nodes.remove(nodes.size() - 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Return the sector holding this inode.
+	 */
+	int getSector() {
+		return fileSystem.getInodeSector(inumber);
+	}
+
+	/**
+	 * A run of consecutive blocks of a file, held in consecutive sectors. In
+	 * the levels of the extent tree above the leaves, the same three fields
+	 * hold the first block under a tree block and that tree block's sector.
+	 */
+	private static class Extent {
+		Extent(int block, int sector, int length) {
+			this.block = block;
+			this.sector = sector;
+			this.length = length;
+		}
+
+		int block;
+
+		int sector;
+
+		int length;
+	}
+
+	/** The inode number. */
+	final int inumber;
+
+	/** The kind of file, <tt>typeFree</tt>, <tt>typeFile</tt> or <tt>typeDirectory</tt>. */
+	int type;
+
+	/** The length of the file in bytes. */
+	int length;
+
+	/** The number of directory entries naming this inode. */
+	int linkCount;
+
+	/** The number of open files using this inode. */
+	int openCount = 0;
+
+	/** The last journal transaction to change this file's metadata. */
+	int transaction = 0;
+
+	/** Serializes access to the file's data. */
+	final Lock lock;
+
+	private NachosFileSystem fileSystem;
+
+	// every extent of the file, in order of block
+	private ArrayList<Extent> extents;
+
+	// the sectors of the tree blocks at each level, leaves first
+	private ArrayList<ArrayList<Integer>> nodes;
+
+	// the first extent changed since the tree was written, or clean
+	private int dirtyFrom = clean;
+
+	// blocks written but not given sectors yet, by block number
+	private TreeMap<Integer, byte[]> delayed;
+
+	private static final int clean = Integer.MAX_VALUE;
+
+	static final int typeFree = 0;
+
+	static final int typeFile = 1;
+
+	static final int typeDirectory = 2;
+
+	static final int sectorSize = Disk.sectorSize;
+
+	/** The size of a file block, one sector. */
+	static final int blockSize = sectorSize;
+
+	// type, length, link count, tree depth and number of root entries
+	private static final int headerSize = 20;
+
+	// the number of entries in a tree block
+	private static final int nodeHeaderSize = 4;
+
+	private static final int entrySize = 12;
+
+	/** The number of extent tree entries held in the inode itself. */
+	static final int numRootEntries = (sectorSize - headerSize) / entrySize;
+
+	/** The number of extent tree entries in a tree block. */
+	static final int entriesPerNode = (blockSize - nodeHeaderSize) / entrySize;
+
+	// the most levels of tree blocks below the inode
+	private static final int maxDepth = 3;
+
+	/** The number of blocks in the largest possible file. */
+	static final int maxBlocks = Integer.MAX_VALUE / blockSize;
+
+	private static final char dbgFS = 'f';
+}
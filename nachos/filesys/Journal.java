@@ -0,0 +1,614 @@
+package nachos.filesys;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A write-ahead journal of file system metadata, sitting between the buffer
+ * cache and the volume. Every change to an inode, a bitmap, a pointer block
+ * or a directory block is logged here as the whole new sector, and reaches
+ * its place on the disk only after the journal holds a committed copy of it.
+ * After a crash, replaying the committed copies brings the metadata back to
+ * a consistent state, without checking the whole disk.
+ *
+ * <p>
+ * Each file system operation runs between <tt>begin()</tt> and
+ * <tt>end()</tt>, and all operations that run while a transaction is open
+ * join it. A transaction commits every <tt>Journal.commitInterval</tt> ticks,
+ * when it grows too large, or when someone waits for it, writing all its
+ * sectors to the journal in one sequential run followed by a commit record.
+ * Concurrent operations from many processes thus share a single journal
+ * write. While a transaction commits, the next one is already open.
+ *
+ * <p>
+ * Committed sectors are written to their places in the background of later
+ * commits: once the journal is half full, all committed sectors are written
+ * at once and the journal starts over. Replaying at boot therefore never
+ * reads more than the journal itself.
+ *
+ * <p>
+ * A sector freed in a transaction is revoked, so that replay does not write
+ * an older logged copy over what it is reused for, and may not be allocated
+ * again until the transaction commits. File data is not journaled.
+ */
+class Journal extends Volume {
+	/**
+	 * Allocate a new journal in front of <i>volume</i>. The journal passes
+	 * everything straight through until it is opened or formatted.
+	 *
+	 * @param volume the volume holding the file system and the journal.
+	 */
+	Journal(Volume volume) {
+		super(volume.disk);
+
+		this.volume = volume;
+		lock = new Lock();
+		changed = new Condition(lock);
+		committedBlocks = new HashMap<Integer, byte[]>();
+	}
+
+	/**
+	 * Start an empty journal in sectors <i>start</i> through
+	 * <i>start+numSectors-1</i>, and start logging.
+	 *
+	 * @param freeMap the map holding the sectors freed in transactions.
+	 */
+	void format(int start, int numSectors, FreeMap freeMap) {
+		setRegion(start, numSectors, freeMap);
+		writeHeader(1);
+		running = new Transaction(1);
+		activate();
+	}
+
+	/**
+	 * Replay the committed transactions in the journal in sectors
+	 * <i>start</i> through <i>start+numSectors-1</i>, and start logging. Must
+	 * be called before the file system reads any metadata.
+	 *
+	 * @param freeMap the map holding the sectors freed in transactions.
+	 */
+	void open(int start, int numSectors, FreeMap freeMap) {
+		setRegion(start, numSectors, freeMap);
+
+		byte[] header = new byte[sectorSize];
+		volume.readSector(start, header, 0);
+		int sequence = (Lib.bytesToInt(header, 0) == magic) ? Lib.bytesToInt(header, 4) : 1;
+		int first = sequence;
+
+		// the latest committed copy of each sector, in replay order
+		HashMap<Integer, byte[]> replayed = new HashMap<Integer, byte[]>();
+		int pos = 1;
+		byte[] data = new byte[sectorSize];
+		while (pos < numSectors) {
+			volume.readSector(start + pos, data, 0);
+			if (Lib.bytesToInt(data, 0) != magicDescriptor
+					|| Lib.bytesToInt(data, 4) != sequence) {
+				break;
+			}
+			int numBlocks = Lib.bytesToInt(data, 8);
+			int numRevoked = Lib.bytesToInt(data, 12);
+			int descriptorSectors = getDescriptorSectors(numBlocks + numRevoked);
+			int size = descriptorSectors + numBlocks + 1;
+			if (numBlocks < 0 || numRevoked < 0 || pos + size > numSectors) {
+				break;
+			}
+			// only a transaction with its commit record was committed
+			volume.readSector(start + pos + size - 1, data, 0);
+			if (Lib.bytesToInt(data, 0) != magicCommit
+					|| Lib.bytesToInt(data, 4) != sequence) {
+				break;
+			}
+
+			byte[][] record = new byte[descriptorSectors + numBlocks][sectorSize];
+			volume.readSectors(getSectors(start + pos, record.length), record);
+			for (int i = 0; i < numRevoked; i++) {
+				replayed.remove(getEntry(record, numBlocks + i));
+			}
+			for (int i = 0; i < numBlocks; i++) {
+				replayed.put(getEntry(record, i), record[descriptorSectors + i]);
+			}
+			pos += size;
+			sequence++;
+		}
+
+		if (!replayed.isEmpty()) {
+			writeInPlace(replayed);
+		}
+		writeHeader(sequence);
+		Lib.debug(dbgFS, "replayed " + (sequence - first) + " journal transactions, "
+				+ replayed.size() + " sectors");
+
+		running = new Transaction(sequence);
+		activate();
+	}
+
+	/**
+	 * Begin a file system operation, which becomes part of the open
+	 * transaction. The caller must not hold any file system lock, since it
+	 * may have to wait for a commit.
+	 *
+	 * @return the sequence number of the transaction joined.
+	 */
+	int begin() {
+		if (!active) {
+			return 0;
+		}
+		lock.acquire();
+		while (true) {
+			if (running.locked) {
+				// the transaction is closing; wait for the next one
+				changed.sleep();
+			} else if (running.isFull(1)) {
+				commit();
+			} else {
+				break;
+			}
+		}
+		running.numHandles++;
+		int sequence = running.sequence;
+		lock.release();
+		return sequence;
+	}
+
+	/**
+	 * End a file system operation begun with <tt>begin()</tt>.
+	 */
+	void end() {
+		if (!active) {
+			return;
+		}
+		lock.acquire();
+		Lib.assertTrue(running.numHandles > 0);
+		if (--running.numHandles == 0) {
+			changed.wakeAll();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Log the new contents of metadata sector <i>sector</i> in the open
+	 * transaction. The caller must be inside an operation.
+	 */
+	void log(int sector, byte[] data, int offset) {
+		if (!active) {
+			return;
+		}
+		lock.acquire();
+		Lib.assertTrue(running.numHandles > 0, "metadata changed outside a transaction");
+		byte[] copy = running.blocks.get(sector);
+		if (copy == null) {
+			copy = new byte[sectorSize];
+			running.blocks.put(sector, copy);
+		}
+		System.arraycopy(data, offset, copy, 0, sectorSize);
+		lock.release();
+	}
+
+	/**
+	 * Wait until transaction <i>sequence</i>, as returned by
+	 * <tt>begin()</tt>, has committed, committing it if it is still open.
+	 * Later transactions are not waited for.
+	 */
+	void waitForCommit(int sequence) {
+		if (!active) {
+			return;
+		}
+		lock.acquire();
+		while (committedSequence < sequence) {
+			if (running.sequence == sequence) {
+				if (running.isEmpty()) {
+					break;
+				}
+				commit();
+			} else {
+				changed.sleep();
+			}
+		}
+		lock.release();
+	}
+
+	int getNumSectors() {
+		return volume.getNumSectors();
+	}
+
+	void readSector(int sector, byte[] data, int offset) {
+		lock.acquire();
+		byte[] copy = getLogged(sector);
+		if (copy != null) {
+			System.arraycopy(copy, 0, data, offset, sectorSize);
+		}
+		lock.release();
+
+		if (copy == null) {
+			volume.readSector(sector, data, offset);
+		}
+	}
+
+	void writeSector(int sector, byte[] data, int offset) {
+		lock.acquire();
+		// a logged sector is written in place by the journal itself
+		boolean logged = getLogged(sector) != null;
+		lock.release();
+
+		if (!logged) {
+			volume.writeSector(sector, data, offset);
+		}
+	}
+
+	void readSectors(int[] sectors, byte[][] data) {
+		LinkedList<Integer> unlogged = new LinkedList<Integer>();
+		lock.acquire();
+		for (int i = 0; i < sectors.length; i++) {
+			byte[] copy = getLogged(sectors[i]);
+			if (copy != null) {
+				System.arraycopy(copy, 0, data[i], 0, sectorSize);
+			} else {
+				unlogged.add(i);
+			}
+		}
+		lock.release();
+
+		if (!unlogged.isEmpty()) {
+			volume.readSectors(select(sectors, unlogged), select(data, unlogged));
+		}
+	}
+
+	void writeSectors(int[] sectors, byte[][] data) {
+		LinkedList<Integer> unlogged = new LinkedList<Integer>();
+		lock.acquire();
+		for (int i = 0; i < sectors.length; i++) {
+			if (getLogged(sectors[i]) == null) {
+				unlogged.add(i);
+			}
+		}
+		lock.release();
+
+		if (!unlogged.isEmpty()) {
+			volume.writeSectors(select(sectors, unlogged), select(data, unlogged));
+		}
+	}
+
+	/**
+	 * Note that sector <i>sector</i> was freed by the current operation.
+	 */
+	void free(int sector) {
+		if (active) {
+			lock.acquire();
+			if (getLogged(sector) != null) {
+				running.blocks.remove(sector);
+				running.revoked.add(sector);
+			}
+			running.freed.add(sector);
+			lock.release();
+		}
+		volume.free(sector);
+	}
+
+	/**
+	 * Commit the open transaction and write every committed sector in place.
+	 */
+	void sync() {
+		if (active) {
+			lock.acquire();
+			commit();
+			waitUntilIdle();
+			busy = true;
+			checkpoint();
+			busy = false;
+			changed.wakeAll();
+			lock.release();
+		}
+		volume.sync();
+	}
+
+	private void setRegion(int start, int numSectors, FreeMap freeMap) {
+		Lib.assertTrue(numSectors > getDescriptorSectors(handleCredits) + handleCredits + 1,
+				"journal too small");
+
+		this.start = start;
+		this.numSectors = numSectors;
+		this.freeMap = freeMap;
+		head = 1;
+	}
+
+	private void activate() {
+		committedSequence = running.sequence - 1;
+		active = true;
+
+		final int interval = Config.getInteger("Journal.commitInterval",
+				50 * Stats.TimerTicks);
+		KThread committer = new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(interval);
+					lock.acquire();
+					commit();
+					lock.release();
+				}
+			}
+		});
+		committer.setName("journal commit").fork();
+	}
+
+	/**
+	 * Close the open transaction, wait for the operations in it to end, and
+	 * write it to the journal. Only one commit runs at a time. The caller must
+	 * hold the lock, which is released while the disk works and while the
+	 * sectors freed in the transaction are handed back to the free map.
+	 */
+	private void commit() {
+		waitUntilIdle();
+		Transaction transaction = running;
+		if (transaction.isEmpty() && transaction.numHandles == 0) {
+			return;
+		}
+		busy = true;
+		transaction.locked = true;
+		while (transaction.numHandles > 0) {
+			changed.sleep();
+		}
+		running = new Transaction(transaction.sequence + 1);
+		committing = transaction;
+		changed.wakeAll();
+
+		int size = transaction.getSize();
+		Lib.assertTrue(size < numSectors, "transaction too large for the journal");
+		if (head + size > numSectors) {
+			checkpoint();
+		}
+
+		// the descriptor lists the sectors logged, then those revoked
+		int numBlocks = transaction.blocks.size();
+		int descriptorSectors = getDescriptorSectors(numBlocks + transaction.revoked.size());
+		byte[][] record = new byte[descriptorSectors + numBlocks][];
+		for (int i = 0; i < descriptorSectors; i++) {
+			record[i] = new byte[sectorSize];
+		}
+		Lib.bytesFromInt(record[0], 0, magicDescriptor);
+		Lib.bytesFromInt(record[0], 4, transaction.sequence);
+		Lib.bytesFromInt(record[0], 8, numBlocks);
+		Lib.bytesFromInt(record[0], 12, transaction.revoked.size());
+		int n = 0;
+		for (Map.Entry<Integer, byte[]> entry : transaction.blocks.entrySet()) {
+			setEntry(record, n, entry.getKey());
+			record[descriptorSectors + n] = entry.getValue();
+			n++;
+		}
+		for (int sector : transaction.revoked) {
+			setEntry(record, n++, sector);
+		}
+		byte[] commitRecord = new byte[sectorSize];
+		Lib.bytesFromInt(commitRecord, 0, magicCommit);
+		Lib.bytesFromInt(commitRecord, 4, transaction.sequence);
+
+		int pos = head;
+		lock.release();
+
+		// the commit record goes last, so the transaction only counts once
+		// all of it is in the journal
+		volume.writeSectors(getSectors(start + pos, record.length), record);
+		volume.writeSector(start + pos + size - 1, commitRecord, 0);
+
+		lock.acquire();
+		head += size;
+		for (int sector : transaction.revoked) {
+			committedBlocks.remove(sector);
+		}
+		committedBlocks.putAll(transaction.blocks);
+		committing = null;
+		committedSequence = transaction.sequence;
+		ThreadedKernel.stats.numJournalCommits++;
+		ThreadedKernel.stats.numJournalBlocks += numBlocks;
+		Lib.debug(dbgFS, "committed transaction " + transaction.sequence + ", "
+				+ numBlocks + " sectors");
+
+		if (head > numSectors / 2) {
+			checkpoint();
+		}
+		busy = false;
+		changed.wakeAll();
+
+		// the free map logs through the journal while holding its own lock,
+		// so the sectors freed are released only once ours is let go
+		lock.release();
+		freeMap.release(transaction.freed);
+		lock.acquire();
+	}
+
+	/**
+	 * Write every committed sector in place, and empty the journal. The
+	 * caller must hold the lock and be the only one committing.
+	 */
+	private void checkpoint() {
+		if (head == 1) {
+			return;
+		}
+		HashMap<Integer, byte[]> blocks = new HashMap<Integer, byte[]>(committedBlocks);
+		lock.release();
+		writeInPlace(blocks);
+		writeHeader(committedSequence + 1);
+		lock.acquire();
+
+		committedBlocks.clear();
+		head = 1;
+		ThreadedKernel.stats.numJournalCheckpoints++;
+	}
+
+	private void waitUntilIdle() {
+		while (busy) {
+			changed.sleep();
+		}
+	}
+
+	private void writeInPlace(HashMap<Integer, byte[]> blocks) {
+		int[] sectors = new int[blocks.size()];
+		byte[][] data = new byte[blocks.size()][];
+		int i = 0;
+		for (Map.Entry<Integer, byte[]> entry : blocks.entrySet()) {
+			sectors[i] = entry.getKey();
+			data[i] = entry.getValue();
+			i++;
+		}
+		volume.writeSectors(sectors, data);
+	}
+
+	// the header names the first transaction that may follow it
+	private void writeHeader(int sequence) {
+		byte[] header = new byte[sectorSize];
+		Lib.bytesFromInt(header, 0, magic);
+		Lib.bytesFromInt(header, 4, sequence);
+		volume.writeSector(start, header, 0);
+	}
+
+	/**
+	 * Return the newest logged copy of <i>sector</i> that is not in place
+	 * yet, or <tt>null</tt> if there is none. The caller must hold the lock.
+	 */
+	private byte[] getLogged(int sector) {
+		if (running != null && running.blocks.containsKey(sector)) {
+			return running.blocks.get(sector);
+		}
+		if (committing != null && committing.blocks.containsKey(sector)) {
+			return committing.blocks.get(sector);
+		}
+		return committedBlocks.get(sector);
+	}
+
+	private static int getDescriptorSectors(int numEntries) {
+		return Lib.divRoundUp(descriptorHeaderSize + numEntries * 4, sectorSize);
+	}
+
+	private static int getEntry(byte[][] record, int i) {
+		int pos = descriptorHeaderSize + i * 4;
+		return Lib.bytesToInt(record[pos / sectorSize], pos % sectorSize);
+	}
+
+	private static void setEntry(byte[][] record, int i, int value) {
+		int pos = descriptorHeaderSize + i * 4;
+		Lib.bytesFromInt(record[pos / sectorSize], pos % sectorSize, value);
+	}
+
+	private static int[] getSectors(int first, int count) {
+		int[] sectors = new int[count];
+		for (int i = 0; i < count; i++) {
+			sectors[i] = first + i;
+		}
+		return sectors;
+	}
+
+	private static int[] select(int[] array, LinkedList<Integer> indices) {
+		int[] selected = new int[indices.size()];
+		int n = 0;
+		for (int i : indices) {
+			selected[n++] = array[i];
+		}
+		return selected;
+	}
+
+	private static byte[][] select(byte[][] array, LinkedList<Integer> indices) {
+		byte[][] selected = new byte[indices.size()][];
+		int n = 0;
+		for (int i : indices) {
+			selected[n++] = array[i];
+		}
+		return selected;
+	}
+
+	/**
+	 * The metadata changes of the operations that ran while it was open.
+	 */
+	private class Transaction {
+		Transaction(int sequence) {
+			this.sequence = sequence;
+		}
+
+		boolean isEmpty() {
+			return blocks.isEmpty() && revoked.isEmpty() && freed.isEmpty();
+		}
+
+		/**
+		 * Return the number of journal sectors this transaction takes.
+		 */
+		int getSize() {
+			return getDescriptorSectors(blocks.size() + revoked.size()) + blocks.size() + 1;
+		}
+
+		/**
+		 * Test whether <i>extraHandles</i> more operations, each logging up to
+		 * <tt>handleCredits</tt> sectors, might not fit in an empty journal.
+		 */
+		boolean isFull(int extraHandles) {
+			int numBlocks = blocks.size() + (numHandles + extraHandles) * handleCredits;
+			return getDescriptorSectors(numBlocks + revoked.size()) + numBlocks + 1
+					> numSectors - 1;
+		}
+
+		final int sequence;
+
+		// the newest copy of every sector logged
+		HashMap<Integer, byte[]> blocks = new HashMap<Integer, byte[]>();
+
+		// logged sectors freed since, which replay must not write
+		LinkedList<Integer> revoked = new LinkedList<Integer>();
+
+		// sectors freed, held until the transaction commits
+		LinkedList<Integer> freed = new LinkedList<Integer>();
+
+		// the number of operations in progress
+		int numHandles = 0;
+
+		// true once closing, when no more operations may join
+		boolean locked = false;
+	}
+
+	private Volume volume;
+
+	private boolean active = false;
+
+	// the journal region
+	private int start, numSectors;
+
+	// where the next transaction goes in the journal
+	private int head;
+
+	private FreeMap freeMap;
+
+	// the transaction operations join
+	private Transaction running = null;
+
+	// the transaction being written to the journal, or null
+	private Transaction committing = null;
+
+	// the newest committed copies of sectors not yet written in place
+	private HashMap<Integer, byte[]> committedBlocks;
+
+	private int committedSequence;
+
+	// true while a commit or checkpoint is writing
+	private boolean busy = false;
+
+	private Lock lock;
+
+	// signalled whenever a transaction closes or commits, or an operation
+	// ends
+	private Condition changed;
+
+	// the most sectors one operation is expected to log
+	private static final int handleCredits = 32;
+
+	private static final int magic = 0x4A524E4C;
+
+	private static final int magicDescriptor = 0x4A444553;
+
+	private static final int magicCommit = 0x4A434D54;
+
+	private static final int descriptorHeaderSize = 16;
+
+	private static final int sectorSize = Disk.sectorSize;
+
+	private static final char dbgFS = 'f';
+}
@@ -0,0 +1,38 @@
+package nachos.filesys;
+
+import nachos.threads.*;
+
+/**
+ * A <tt>NachosFileSystem</tt> kept in a log on the disk, selected by setting
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.LogFileSystem</tt>. The file system itself is laid out
+ * just as on a plain disk, but its sectors are stored by a
+ * <tt>LogVolume</tt>: blocks and inodes written back by the buffer cache are
+ * gathered into large segments and written sequentially, which suits
+ * workloads that make many small writes all over the disk.
+ *
+ * <p>
+ * After a crash, the file system comes back as it was at the last
+ * checkpoint; <tt>sync()</tt> writes one. Since checkpoints already keep the
+ * metadata consistent, there is no journal.
+ *
+ * @see nachos.filesys.LogVolume
+ */
+public class LogFileSystem extends NachosFileSystem {
+	/**
+	 * Allocate a new log-structured file system on the kernel's disk.
+	 */
+	public LogFileSystem() {
+		this(ThreadedKernel.synchDisk);
+	}
+
+	/**
+	 * Allocate a new log-structured file system on <i>disk</i>, formatting it
+	 * first if needed.
+	 *
+	 * @param disk the disk holding the file system.
+	 */
+	public LogFileSystem(SynchDisk disk) {
+		super(new LogVolume(disk), false);
+	}
+}
@@ -0,0 +1,598 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A volume stored as a log. Every write of a sector is appended to the
+ * current segment, a run of <tt>LogFileSystem.segmentSectors</tt> sectors
+ * kept in memory, and the segment goes to the disk in one transfer once it is
+ * full. However scattered the sectors written are, the disk only ever sees
+ * large sequential writes.
+ *
+ * <p>
+ * Since sectors move each time they are written, the volume keeps a map from
+ * the sectors the file system sees to where they were last written. Inodes
+ * live in sectors like everything else, so this map is also the inode map.
+ * The map is saved in a checkpoint every
+ * <tt>LogFileSystem.checkpointInterval</tt> segments and on
+ * <tt>sync()</tt>. There are two checkpoint regions at the start of the disk,
+ * used in turn, so that a checkpoint cut short leaves the one before it
+ * intact; mounting picks the newest complete one.
+ *
+ * <p>
+ * Writes leave dead copies of sectors behind in older segments. A cleaner
+ * thread wakes up when fewer than <tt>LogFileSystem.cleanerLow</tt> segments
+ * are free, and copies the live sectors out of old segments until
+ * <tt>LogFileSystem.cleanerHigh</tt> are. It picks the segment with the best
+ * ratio of benefit to cost, <i>(1-u)*age/(1+u)</i> for a segment whose
+ * sectors are a fraction <i>u</i> live: cold segments are cleaned even when
+ * fairly full, since their free space stays free, while hot ones are left to
+ * empty by themselves. The volume offers only
+ * <tt>LogFileSystem.utilization</tt> percent of the log as sectors, so the
+ * cleaner always has dead sectors to reclaim.
+ */
+class LogVolume extends Volume {
+	/**
+	 * Allocate a new log on <i>disk</i>, formatting it if it does not hold
+	 * one, and fork the cleaner.
+	 *
+	 * @param disk the disk holding the log.
+	 */
+	LogVolume(SynchDisk disk) {
+		super(disk);
+
+		segmentSectors = Config.getInteger("LogFileSystem.segmentSectors",
+				Disk.sectorsPerTrack);
+		int utilization = Config.getInteger("LogFileSystem.utilization", 75);
+		checkpointInterval = Config.getInteger("LogFileSystem.checkpointInterval", 16);
+		cleanerLow = Config.getInteger("LogFileSystem.cleanerLow", 4);
+		cleanerHigh = Config.getInteger("LogFileSystem.cleanerHigh", 8);
+		Lib.assertTrue(segmentSectors > 0 && utilization > 0 && utilization < 100
+				&& checkpointInterval > 0 && cleanerLow > reserveSegments
+				&& cleanerHigh >= cleanerLow);
+
+		// size the checkpoint regions for as many segments as could fit
+		int numPhysical = disk.getNumSectors();
+		int maxSegments = numPhysical / segmentSectors;
+		checkpointSectors = 1 + Lib.divRoundUp(4 * (maxSegments * segmentSectors
+				* utilization / 100 + maxSegments), sectorSize);
+		logStart = 2 * checkpointSectors;
+		numSegments = (numPhysical - logStart) / segmentSectors;
+		Lib.assertTrue(numSegments > cleanerHigh + reserveSegments,
+				"disk too small for the log");
+		numLogical = (numSegments - reserveSegments) * segmentSectors * utilization / 100;
+
+		map = new int[numLogical];
+		owner = new int[numSegments * segmentSectors];
+		liveCount = new int[numSegments];
+		segmentAge = new int[numSegments];
+		buffer = new byte[segmentSectors][sectorSize];
+		freeSegments = new LinkedList<Integer>();
+		freedSegments = new LinkedList<Integer>();
+		lock = new Lock();
+		segmentFree = new Condition(lock);
+		cleanerWake = new Condition(lock);
+
+		lock.acquire();
+		if (Config.getBoolean("NachosFileSystem.format", false) || !mount()) {
+			format();
+		}
+		lock.release();
+
+		cleaner = new KThread(new Runnable() {
+			public void run() {
+				clean();
+			}
+		});
+		cleaner.setName("segment cleaner").fork();
+	}
+
+	int getNumSectors() {
+		return numLogical;
+	}
+
+	void readSector(int sector, byte[] data, int offset) {
+		lock.acquire();
+		read(sector, data, offset);
+		lock.release();
+	}
+
+	/**
+	 * Read sector <i>sector</i> from wherever it was last written. The caller
+	 * must hold the lock.
+	 */
+	private void read(int sector, byte[] data, int offset) {
+		int physical = map[sector];
+		if (physical == 0) {
+			// never written
+			for (int i = 0; i < sectorSize; i++) {
+				data[offset + i] = 0;
+			}
+		} else if (inCurrentSegment(physical)) {
+			System.arraycopy(buffer[getSlot(physical)], 0, data, offset, sectorSize);
+		} else {
+			disk.readSector(physical, data, offset);
+		}
+	}
+
+	void writeSector(int sector, byte[] data, int offset) {
+		lock.acquire();
+		append(sector, data, offset);
+		lock.release();
+	}
+
+	void readSectors(int[] sectors, byte[][] data) {
+		lock.acquire();
+		// hand the sectors that are only on the disk over together
+		int[] physical = new int[sectors.length];
+		byte[][] physicalData = new byte[sectors.length][];
+		int count = 0;
+		for (int i = 0; i < sectors.length; i++) {
+			int p = map[sectors[i]];
+			if (p == 0 || inCurrentSegment(p)) {
+				read(sectors[i], data[i], 0);
+			} else {
+				physical[count] = p;
+				physicalData[count] = data[i];
+				count++;
+			}
+		}
+		if (count > 0) {
+			disk.readSectors(copyOf(physical, count), copyOf(physicalData, count));
+		}
+		lock.release();
+	}
+
+	void writeSectors(int[] sectors, byte[][] data) {
+		lock.acquire();
+		for (int i = 0; i < sectors.length; i++) {
+			append(sectors[i], data[i], 0);
+		}
+		lock.release();
+	}
+
+	void free(int sector) {
+		lock.acquire();
+		kill(sector);
+		lock.release();
+	}
+
+	void sync() {
+		lock.acquire();
+		checkpoint();
+		lock.release();
+	}
+
+	/**
+	 * Load the newest complete checkpoint.
+	 *
+	 * @return <tt>false</tt> if the disk holds no checkpoint of a log shaped
+	 * like this one.
+	 */
+	private boolean mount() {
+		int region = -1;
+		int newest = 0;
+		byte[] header = new byte[sectorSize];
+		for (int i = 0; i < 2; i++) {
+			disk.readSector(getCheckpointStart(i), header, 0);
+			if (Lib.bytesToInt(header, 0) == magic
+					&& Lib.bytesToInt(header, 8) == numLogical
+					&& Lib.bytesToInt(header, 12) == numSegments
+					&& Lib.bytesToInt(header, 16) == segmentSectors
+					&& (region == -1 || Lib.bytesToInt(header, 4) > newest)) {
+				region = i;
+				newest = Lib.bytesToInt(header, 4);
+			}
+		}
+		if (region == -1) {
+			return false;
+		}
+
+		disk.readSector(getCheckpointStart(region), header, 0);
+		sequence = newest;
+		clock = Lib.bytesToInt(header, 20);
+		nextRegion = 1 - region;
+
+		byte[][] body = new byte[checkpointSectors - 1][sectorSize];
+		disk.readSectors(getBodySectors(region), body);
+		for (int i = 0; i < numLogical; i++) {
+			map[i] = getBodyInt(body, i);
+		}
+		for (int i = 0; i < numSegments; i++) {
+			segmentAge[i] = getBodyInt(body, numLogical + i);
+		}
+
+		// work out which sectors of the log are live
+		for (int i = 0; i < owner.length; i++) {
+			owner[i] = -1;
+		}
+		for (int i = 0; i < numLogical; i++) {
+			if (map[i] != 0) {
+				owner[map[i] - logStart] = i;
+				liveCount[getSegment(map[i])]++;
+			}
+		}
+		for (int i = 0; i < numSegments; i++) {
+			if (liveCount[i] == 0) {
+				freeSegments.add(i);
+			}
+		}
+		Lib.debug(dbgFS, "mounted log at checkpoint " + sequence + ", "
+				+ freeSegments.size() + " of " + numSegments + " segments free");
+		return true;
+	}
+
+	/**
+	 * Start an empty log.
+	 */
+	private void format() {
+		for (int i = 0; i < owner.length; i++) {
+			owner[i] = -1;
+		}
+		for (int i = 0; i < numSegments; i++) {
+			freeSegments.add(i);
+		}
+
+		// an older checkpoint must not outlive the format
+		byte[] header = new byte[sectorSize];
+		disk.writeSector(getCheckpointStart(0), header, 0);
+		disk.writeSector(getCheckpointStart(1), header, 0);
+		sequence = 0;
+		clock = 0;
+		nextRegion = 0;
+		checkpoint();
+		Lib.debug(dbgFS, "formatted log, " + numSegments + " segments of "
+				+ segmentSectors + " sectors, " + numLogical + " sectors offered");
+	}
+
+	/**
+	 * Write the sectors of the current segment that are not on the disk yet,
+	 * then the map, and let the segments emptied since the last checkpoint be
+	 * reused. The caller must hold the lock.
+	 */
+	private void checkpoint() {
+		flushSegment();
+
+		byte[][] body = new byte[checkpointSectors - 1][sectorSize];
+		for (int i = 0; i < numLogical; i++) {
+			setBodyInt(body, i, map[i]);
+		}
+		for (int i = 0; i < numSegments; i++) {
+			setBodyInt(body, numLogical + i, segmentAge[i]);
+		}
+		disk.writeSectors(getBodySectors(nextRegion), body);
+
+		// the header goes last, so the checkpoint only counts once complete
+		sequence++;
+		byte[] header = new byte[sectorSize];
+		Lib.bytesFromInt(header, 0, magic);
+		Lib.bytesFromInt(header, 4, sequence);
+		Lib.bytesFromInt(header, 8, numLogical);
+		Lib.bytesFromInt(header, 12, numSegments);
+		Lib.bytesFromInt(header, 16, segmentSectors);
+		Lib.bytesFromInt(header, 20, clock);
+		disk.writeSector(getCheckpointStart(nextRegion), header, 0);
+		nextRegion = 1 - nextRegion;
+
+		// nothing on the disk refers to these any more
+		freeSegments.addAll(freedSegments);
+		freedSegments.clear();
+		segmentsSinceCheckpoint = 0;
+		ThreadedKernel.stats.numCheckpoints++;
+		segmentFree.wakeAll();
+		Lib.debug(dbgFS, "checkpoint " + sequence + ", "
+				+ freeSegments.size() + " segments free");
+	}
+
+	/**
+	 * Append sector <i>sector</i> to the log. The caller must hold the lock.
+	 */
+	private void append(int sector, byte[] data, int offset) {
+		int physical = map[sector];
+		if (physical != 0 && inCurrentSegment(physical)
+				&& getSlot(physical) >= flushed) {
+			// still only in memory, so it can simply be replaced
+			System.arraycopy(data, offset, buffer[getSlot(physical)], 0, sectorSize);
+			return;
+		}
+
+		kill(sector);
+		startSegment();
+		int index = currentSegment * segmentSectors + fill;
+		System.arraycopy(data, offset, buffer[fill], 0, sectorSize);
+		owner[index] = sector;
+		map[sector] = logStart + index;
+		liveCount[currentSegment]++;
+		fill++;
+
+		if (fill == segmentSectors) {
+			finishSegment();
+		}
+	}
+
+	/**
+	 * Forget where sector <i>sector</i> was last written. The caller must
+	 * hold the lock.
+	 */
+	private void kill(int sector) {
+		int physical = map[sector];
+		if (physical == 0) {
+			return;
+		}
+		int segment = getSegment(physical);
+		owner[physical - logStart] = -1;
+		map[sector] = 0;
+		liveCount[segment]--;
+		if (liveCount[segment] == 0 && segment != currentSegment) {
+			freedSegments.add(segment);
+		}
+	}
+
+	/**
+	 * Make sure there is a current segment to append to, waiting for the
+	 * cleaner if there are no free segments. Only the cleaner may use the
+	 * last <tt>reserveSegments</tt> free segments, so that it can always make
+	 * progress. The caller must hold the lock.
+	 */
+	private void startSegment() {
+		boolean isCleaner = (KThread.currentThread() == cleaner);
+		while (currentSegment == -1) {
+			if (freeSegments.size() < cleanerLow) {
+				cleanerWake.wake();
+			}
+			if (freeSegments.size() > reserveSegments
+					|| (isCleaner && !freeSegments.isEmpty())) {
+				currentSegment = freeSegments.removeFirst();
+				segmentAge[currentSegment] = clock;
+				fill = 0;
+				flushed = 0;
+			} else if (!freedSegments.isEmpty()) {
+				checkpoint();
+			} else {
+				Lib.assertTrue(!isCleaner, "log is full");
+				segmentFree.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Write out the full current segment, and checkpoint if it is time to.
+	 * The caller must hold the lock.
+	 */
+	private void finishSegment() {
+		flushSegment();
+		ThreadedKernel.stats.numSegmentsWritten++;
+		clock++;
+		if (liveCount[currentSegment] == 0) {
+			freedSegments.add(currentSegment);
+		}
+		currentSegment = -1;
+
+		if (++segmentsSinceCheckpoint >= checkpointInterval) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Write the sectors of the current segment that are not on the disk yet.
+	 * The caller must hold the lock.
+	 */
+	private void flushSegment() {
+		if (currentSegment == -1 || flushed == fill) {
+			return;
+		}
+		int[] sectors = new int[fill - flushed];
+		byte[][] data = new byte[fill - flushed][];
+		for (int i = 0; i < sectors.length; i++) {
+			sectors[i] = logStart + currentSegment * segmentSectors + flushed + i;
+			data[i] = buffer[flushed + i];
+		}
+		disk.writeSectors(sectors, data);
+		flushed = fill;
+	}
+
+	/**
+	 * The body of the cleaner thread.
+	 */
+	private void clean() {
+		lock.acquire();
+		while (true) {
+			while (freeSegments.size() >= cleanerLow) {
+				cleanerWake.sleep();
+			}
+
+			int numCleaned = 0;
+			while (freeSegments.size() + freedSegments.size() < cleanerHigh) {
+				int victim = selectVictim();
+				if (victim == -1) {
+					break;
+				}
+				cleanSegment(victim);
+				numCleaned++;
+			}
+			checkpoint();
+
+			if (numCleaned == 0) {
+				// nothing worth cleaning; wait until asked again
+				cleanerWake.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Pick the segment to clean by cost-benefit. The caller must hold the
+	 * lock.
+	 *
+	 * @return the segment, or -1 if no segment has dead sectors.
+	 */
+	private int selectVictim() {
+		int victim = -1;
+		double best = 0;
+		for (int i = 0; i < numSegments; i++) {
+			if (i == currentSegment || liveCount[i] == 0
+					|| liveCount[i] == segmentSectors) {
+				continue;
+			}
+			double u = (double) liveCount[i] / segmentSectors;
+			int age = clock - segmentAge[i] + 1;
+			double ratio = (1 - u) * age / (1 + u);
+			if (ratio > best) {
+				best = ratio;
+				victim = i;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * Copy the live sectors of <i>segment</i> to the end of the log, leaving
+	 * it empty. The caller must hold the lock.
+	 */
+	private void cleanSegment(int segment) {
+		int count = liveCount[segment];
+		int[] sectors = new int[count];
+		int[] physical = new int[count];
+		byte[][] data = new byte[count][sectorSize];
+		int n = 0;
+		for (int i = 0; i < segmentSectors; i++) {
+			int index = segment * segmentSectors + i;
+			if (owner[index] != -1) {
+				sectors[n] = owner[index];
+				physical[n] = logStart + index;
+				n++;
+			}
+		}
+		Lib.assertTrue(n == count);
+
+		disk.readSectors(physical, data);
+		for (int i = 0; i < count; i++) {
+			append(sectors[i], data[i], 0);
+		}
+		Lib.assertTrue(liveCount[segment] == 0);
+
+		ThreadedKernel.stats.numSegmentsCleaned++;
+		ThreadedKernel.stats.numCleanerCopies += count;
+		Lib.debug(dbgFS, "cleaned segment " + segment + ", " + count + " sectors live");
+	}
+
+	private boolean inCurrentSegment(int physical) {
+		return currentSegment != -1 && getSegment(physical) == currentSegment;
+	}
+
+	private int getSegment(int physical) {
+		return (physical - logStart) / segmentSectors;
+	}
+
+	private int getSlot(int physical) {
+		return (physical - logStart) % segmentSectors;
+	}
+
+	private int getCheckpointStart(int region) {
+		return region * checkpointSectors;
+	}
+
+	private int[] getBodySectors(int region) {
+		int[] sectors = new int[checkpointSectors - 1];
+		for (int i = 0; i < sectors.length; i++) {
+			sectors[i] = getCheckpointStart(region) + 1 + i;
+		}
+		return sectors;
+	}
+
+	private static int getBodyInt(byte[][] body, int i) {
+		return Lib.bytesToInt(body[i / intsPerSector], (i % intsPerSector) * 4);
+	}
+
+	private static void setBodyInt(byte[][] body, int i, int value) {
+		Lib.bytesFromInt(body[i / intsPerSector], (i % intsPerSector) * 4, value);
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static byte[][] copyOf(byte[][] array, int length) {
+		byte[][] copy = new byte[length][];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private int segmentSectors;
+
+	private int numSegments;
+
+	// the sectors offered to the file system
+	private int numLogical;
+
+	// each checkpoint region is a header sector, the map and the segment ages
+	private int checkpointSectors;
+
+	// the first sector of segment 0
+	private int logStart;
+
+	private int checkpointInterval;
+
+	private int cleanerLow, cleanerHigh;
+
+	// where each sector was last written, 0 if it never was
+	private int[] map;
+
+	// the sector held by each sector of the log, -1 if it is dead
+	private int[] owner;
+
+	// the number of live sectors in each segment
+	private int[] liveCount;
+
+	// the value of clock when each segment was started
+	private int[] segmentAge;
+
+	// segments that may be written
+	private LinkedList<Integer> freeSegments;
+
+	// segments emptied since the last checkpoint, which still refers to them
+	private LinkedList<Integer> freedSegments;
+
+	// the segment being filled, -1 if none
+	private int currentSegment = -1;
+
+	// the current segment; sectors before flushed are on the disk too
+	private byte[][] buffer;
+
+	private int fill = 0, flushed = 0;
+
+	// the number of segments ever written, which ages segments
+	private int clock = 0;
+
+	private int sequence = 0;
+
+	// the checkpoint region to write next
+	private int nextRegion = 0;
+
+	private int segmentsSinceCheckpoint = 0;
+
+	private KThread cleaner = null;
+
+	// guards everything, and is held across disk I/O
+	private Lock lock;
+
+	// signalled whenever a checkpoint frees segments
+	private Condition segmentFree;
+
+	private Condition cleanerWake;
+
+	// free segments only the cleaner may take
+	private static final int reserveSegments = 2;
+
+	private static final int magic = 0x4E4C4F47;
+
+	private static final int sectorSize = Disk.sectorSize;
+
+	private static final int intsPerSector = sectorSize / 4;
+
+	private static final char dbgFS = 'f';
+}
@@ -0,0 +1,901 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system stored on the machine's disk. It plugs in wherever the stub
+ * file system does, by setting <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.NachosFileSystem</tt>, which requires
+ * <tt>Machine.disk</tt>.
+ *
+ * <p>
+ * The disk is laid out as a superblock in sector 0, followed by the inode
+ * bitmap, the free sector bitmap, the inode table with one inode per sector,
+ * and finally the data blocks. Inode 1 is the root directory.
+ *
+ * <p>
+ * Names are paths of directory names separated by <tt>/</tt>, relative to
+ * the root, and may use <tt>.</tt> and <tt>..</tt>. Directories are made and
+ * removed with <tt>createDirectory()</tt> and <tt>removeDirectory()</tt>.
+ * Lookups go through a cache of up to <tt>NameCache.size</tt> names, so that
+ * opening a file under a path used recently reads no directories.
+ *
+ * <p>
+ * Inodes in use are kept in an open-file table, so that every open file of
+ * the same file shares one <tt>Inode</tt>. A file removed while it is open
+ * loses its name right away, but its blocks are only given back once the
+ * last open file using it is closed.
+ *
+ * <p>
+ * A disk that was never formatted is formatted when the file system starts,
+ * as is any disk if <tt>NachosFileSystem.format</tt> is true. Files listed in
+ * <tt>NachosFileSystem.importFiles</tt>, separated by commas, and the shell
+ * program are copied in from the stub file system if the disk does not have
+ * them yet, so that user programs can be run from the disk.
+ *
+ * <p>
+ * All disk I/O goes through a buffer cache of
+ * <tt>BufferCache.numBuffers</tt> sectors, unless that is 0. Writes reach the
+ * disk in the background, or when <tt>sync()</tt> is called.
+ *
+ * <p>
+ * An open file that is read sequentially has the blocks after the ones read
+ * fetched into the cache ahead of time. The read-ahead window starts at
+ * <tt>ReadAhead.minBlocks</tt> blocks and doubles with every sequential read,
+ * up to <tt>ReadAhead.maxBlocks</tt>; a read anywhere else resets it.
+ *
+ * <p>
+ * Metadata changes go through a journal of
+ * <tt>NachosFileSystem.journalSectors</tt> sectors, placed after the bitmaps
+ * when the disk is formatted, so that a crash never leaves the metadata half
+ * updated. <tt>fsync()</tt> waits for the changes to a single file.
+ *
+ * <p>
+ * Files are stored as extents, runs of consecutive sectors. Sectors are
+ * given to written blocks only once up to
+ * <tt>NachosFileSystem.delayedBlocks</tt> of them have gathered, so that
+ * each run of blocks written gets a run of sectors. <tt>preallocate()</tt>
+ * sets aside the space for a file ahead of time.
+ */
+public class NachosFileSystem implements FileSystem {
+	/**
+	 * Allocate a new file system on the kernel's disk.
+	 */
+	public NachosFileSystem() {
+		this(ThreadedKernel.synchDisk);
+	}
+
+	/**
+	 * Allocate a new file system on <i>disk</i>, formatting it first if
+	 * needed.
+	 *
+	 * @param disk the disk holding the file system.
+	 */
+	public NachosFileSystem(SynchDisk disk) {
+		this(new Volume(disk), true);
+	}
+
+	/**
+	 * Allocate a new file system on <i>volume</i>, formatting it first if
+	 * needed.
+	 *
+	 * @param volume the volume holding the file system.
+	 * @param journaled <tt>true</tt> if metadata changes should be journaled.
+	 */
+	NachosFileSystem(Volume volume, boolean journaled) {
+		if (journaled) {
+			volume = journal = new Journal(volume);
+		}
+		this.volume = volume;
+		int numBuffers = Config.getInteger("BufferCache.numBuffers", 64);
+		if (numBuffers > 0) {
+			cache = new BufferCache(volume, numBuffers);
+			cache.startFlushDaemon(Config.getInteger("BufferCache.flushInterval",
+					100 * Stats.TimerTicks));
+
+			// a window larger than half the cache would evict itself
+			minReadAhead = Config.getInteger("ReadAhead.minBlocks", 4);
+			maxReadAhead = Math.min(Config.getInteger("ReadAhead.maxBlocks", 64),
+					numBuffers / 2);
+			if (minReadAhead > 0 && maxReadAhead >= minReadAhead) {
+				readAhead = new ReadAhead(cache);
+			}
+		}
+		delayedBlocks = Config.getInteger("NachosFileSystem.delayedBlocks", 32);
+		fsLock = new Lock();
+		openInodes = new HashMap<Integer, Inode>();
+		int nameCacheSize = Config.getInteger("NameCache.size", 256);
+		if (nameCacheSize > 0) {
+			names = new NameCache(nameCacheSize);
+		}
+
+		if (Config.getBoolean("NachosFileSystem.format", false) || !mount()) {
+			format();
+		}
+		// the root stays in the open-file table for good
+		Inode rootInode = getInode(rootInumber);
+		rootInode.openCount++;
+
+		importFiles();
+	}
+
+	/**
+	 * Read the superblock and the bitmaps of a formatted disk.
+	 *
+	 * @return <tt>false</tt> if the disk does not hold a file system.
+	 */
+	private boolean mount() {
+		byte[] data = new byte[sectorSize];
+		readSector(0, data, 0);
+		if (Lib.bytesToInt(data, 0) != magic
+				|| Lib.bytesToInt(data, 4) != volume.getNumSectors()) {
+			return false;
+		}
+		numInodes = Lib.bytesToInt(data, 8);
+		inodeStart = Lib.bytesToInt(data, 20);
+		journalSectors = Lib.bytesToInt(data, 32);
+
+		inodeMap = new FreeMap(this, Lib.bytesToInt(data, 12), numInodes);
+		freeMap = new FreeMap(this, Lib.bytesToInt(data, 16), volume.getNumSectors());
+		// bring the metadata up to date before reading any of it
+		if (journal != null && journalSectors > 0) {
+			journal.open(Lib.bytesToInt(data, 28), journalSectors, freeMap);
+		}
+		inodeMap.load();
+		freeMap.load();
+		Lib.debug(dbgFS, "mounted file system, " + freeMap.getNumFree()
+				+ " free sectors, " + inodeMap.getNumFree() + " free inodes");
+		return true;
+	}
+
+	/**
+	 * Write an empty file system to the disk.
+	 */
+	private void format() {
+		int numSectors = volume.getNumSectors();
+		numInodes = Config.getInteger("NachosFileSystem.numInodes", numSectors / 16);
+		Lib.assertTrue(numInodes > rootInumber);
+
+		journalSectors = (journal == null) ? 0
+				: Config.getInteger("NachosFileSystem.journalSectors",
+						Math.max(64, numSectors / 64));
+
+		int inodeMapStart = 1;
+		int freeMapStart = inodeMapStart + FreeMap.getNumSectors(numInodes);
+		int journalStart = freeMapStart + FreeMap.getNumSectors(numSectors);
+		inodeStart = journalStart + journalSectors;
+		int dataStart = inodeStart + numInodes;
+		Lib.assertTrue(dataStart < numSectors);
+
+		inodeMap = new FreeMap(this, inodeMapStart, numInodes);
+		freeMap = new FreeMap(this, freeMapStart, numSectors);
+		// inode 0 is never used, so that 0 can mean no inode
+		inodeMap.format(rootInumber + 1);
+		freeMap.format(dataStart);
+
+		Inode root = new Inode(this, rootInumber);
+		root.initialize(Inode.typeDirectory);
+
+		byte[] data = new byte[sectorSize];
+		Lib.bytesFromInt(data, 0, magic);
+		Lib.bytesFromInt(data, 4, numSectors);
+		Lib.bytesFromInt(data, 8, numInodes);
+		Lib.bytesFromInt(data, 12, inodeMapStart);
+		Lib.bytesFromInt(data, 16, freeMapStart);
+		Lib.bytesFromInt(data, 20, inodeStart);
+		Lib.bytesFromInt(data, 24, dataStart);
+		Lib.bytesFromInt(data, 28, journalStart);
+		Lib.bytesFromInt(data, 32, journalSectors);
+		writeSector(0, data, 0);
+
+		// the empty file system must be on the disk before the journal can
+		// refer to it
+		if (journalSectors > 0) {
+			if (cache != null) {
+				cache.flush();
+			}
+			journal.format(journalStart, journalSectors, freeMap);
+		}
+		Lib.debug(dbgFS, "formatted disk, " + numInodes + " inodes, data starts at sector "
+				+ dataStart);
+	}
+
+	/**
+	 * Copy the files named by <tt>NachosFileSystem.importFiles</tt>, and the
+	 * shell program, from the stub file system if they are not on the disk.
+	 */
+	private void importFiles() {
+		FileSystem stub = Machine.stubFileSystem();
+		if (stub == null) {
+			return;
+		}
+		String list = Config.getString("NachosFileSystem.importFiles", "");
+		String[] names = list.split(",");
+		for (int i = 0; i < names.length; i++) {
+			importFile(stub, names[i].trim());
+		}
+		if (Machine.processor() != null) {
+			importFile(stub, Machine.getShellProgramName());
+		}
+	}
+
+	private void importFile(FileSystem stub, String name) {
+		if (!Directory.isValidName(name)) {
+			return;
+		}
+		fsLock.acquire();
+		boolean present = lookup(rootInumber, name).inumber != 0;
+		fsLock.release();
+		if (present) {
+			return;
+		}
+		OpenFile source = stub.open(name, false);
+		if (source == null) {
+			return;
+		}
+		OpenFile target = open(name, true);
+		if (target != null) {
+			byte[] buf = new byte[importChunk];
+			int pos = 0;
+			int amount;
+			while ((amount = source.read(pos, buf, 0, buf.length)) > 0) {
+				if (target.write(pos, buf, 0, amount) != amount) {
+					break;
+				}
+				pos += amount;
+			}
+			target.close();
+			Lib.debug(dbgFS, "imported " + name + " (" + pos + " bytes)");
+		}
+		source.close();
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		String[] path = split(name);
+		String leaf = getLeaf(path);
+		if (leaf == null) {
+			return null;
+		}
+
+		int transaction = beginOperation();
+		fsLock.acquire();
+		int parent = walk(path, path.length - 1);
+		int inumber = (parent == 0) ? 0 : lookup(parent, leaf).inumber;
+		Inode inode;
+		if (inumber == 0) {
+			if (!truncate || parent == 0) {
+				fsLock.release();
+				endOperation();
+				return null;
+			}
+			inode = create(parent, leaf, Inode.typeFile);
+			if (inode == null) {
+				fsLock.release();
+				endOperation();
+				return null;
+			}
+			openInodes.put(inode.inumber, inode);
+			inode.transaction = transaction;
+		} else {
+			inode = getInode(inumber);
+			if (inode.type != Inode.typeFile) {
+				releaseInode(inode);
+				fsLock.release();
+				endOperation();
+				return null;
+			}
+			if (truncate) {
+				inode.lock.acquire();
+				inode.truncate();
+				inode.transaction = transaction;
+				inode.lock.release();
+			}
+		}
+		inode.openCount++;
+		openCount++;
+		fsLock.release();
+		endOperation();
+
+		return new File(inode, name);
+	}
+
+	public boolean remove(String name) {
+		return remove(name, Inode.typeFile);
+	}
+
+	/**
+	 * Make a new, empty directory named <i>name</i>. The directory holding it
+	 * must exist.
+	 *
+	 * @return <tt>false</tt> if the name is in use, or the directory could not
+	 * be made.
+	 */
+	public boolean createDirectory(String name) {
+		String[] path = split(name);
+		String leaf = getLeaf(path);
+		if (leaf == null) {
+			return false;
+		}
+
+		beginOperation();
+		fsLock.acquire();
+		int parent = walk(path, path.length - 1);
+		Inode inode = null;
+		if (parent != 0 && lookup(parent, leaf).inumber == 0) {
+			inode = create(parent, leaf, Inode.typeDirectory);
+		}
+		fsLock.release();
+		endOperation();
+		return inode != null;
+	}
+
+	/**
+	 * Remove the directory named <i>name</i>, which must be empty.
+	 *
+	 * @return <tt>false</tt> if there is no such directory, or it is not empty.
+	 */
+	public boolean removeDirectory(String name) {
+		return remove(name, Inode.typeDirectory);
+	}
+
+	/**
+	 * Test whether <i>name</i> names a directory.
+	 */
+	public boolean isDirectory(String name) {
+		String[] path = split(name);
+		if (path == null) {
+			return false;
+		}
+		fsLock.acquire();
+		int inumber = walk(path, path.length);
+		fsLock.release();
+		return inumber != 0;
+	}
+
+	private boolean remove(String name, int type) {
+		String[] path = split(name);
+		String leaf = getLeaf(path);
+		if (leaf == null) {
+			return false;
+		}
+
+		beginOperation();
+		fsLock.acquire();
+		int parent = walk(path, path.length - 1);
+		NameCache.Entry entry = (parent == 0) ? null : lookup(parent, leaf);
+		if (entry == null || entry.inumber == 0 || entry.type != type) {
+			fsLock.release();
+			endOperation();
+			return false;
+		}
+		Inode inode = getInode(entry.inumber);
+		if (type == Inode.typeDirectory && !new Directory(inode).isEmpty()) {
+			releaseInode(inode);
+			fsLock.release();
+			endOperation();
+			return false;
+		}
+		Inode directory = getInode(parent);
+		new Directory(directory).remove(leaf);
+		releaseInode(directory);
+		if (names != null) {
+			names.put(parent, leaf, new NameCache.Entry(0, Inode.typeFree));
+			if (type == Inode.typeDirectory) {
+				names.purge(inode.inumber);
+			}
+		}
+		inode.linkCount--;
+		inode.save();
+		releaseInode(inode);
+		fsLock.release();
+		endOperation();
+		return true;
+	}
+
+	/**
+	 * Split path <i>name</i> into the names along it, dropping empty names
+	 * and <tt>.</tt>.
+	 *
+	 * @return the names, or <tt>null</tt> if one of them cannot be stored in a
+	 * directory entry.
+	 */
+	private static String[] split(String name) {
+		ArrayList<String> path = new ArrayList<String>();
+		for (String component : name.split("/")) {
+			if (component.length() == 0 || component.equals(".")) {
+				continue;
+			}
+			if (!Directory.isValidName(component)) {
+				return null;
+			}
+			path.add(component);
+		}
+		return path.toArray(new String[path.size()]);
+	}
+
+	// the last name of a split path, or null if it cannot name a new file
+	private static String getLeaf(String[] path) {
+		if (path == null || path.length == 0) {
+			return null;
+		}
+		String leaf = path[path.length - 1];
+		return leaf.equals(Directory.parentName) ? null : leaf;
+	}
+
+	/**
+	 * Follow the first <i>count</i> names of <i>path</i> from the root. The
+	 * caller must hold the file system lock.
+	 *
+	 * @return the inode number of the directory reached, or 0 if some name
+	 * along the way is missing or not a directory.
+	 */
+	private int walk(String[] path, int count) {
+		int inumber = rootInumber;
+		for (int i = 0; i < count && inumber != 0; i++) {
+			NameCache.Entry entry = lookup(inumber, path[i]);
+			inumber = (entry.type == Inode.typeDirectory) ? entry.inumber : 0;
+		}
+		return inumber;
+	}
+
+	/**
+	 * Look up <i>name</i> in directory <i>directory</i>, reading the directory
+	 * only if the name cache does not know the answer. The caller must hold
+	 * the file system lock.
+	 *
+	 * @return what the name refers to, with inode number 0 if nothing.
+	 */
+	private NameCache.Entry lookup(int directory, String name) {
+		// the root is its own parent
+		if (directory == rootInumber && name.equals(Directory.parentName)) {
+			return new NameCache.Entry(rootInumber, Inode.typeDirectory);
+		}
+		NameCache.Entry entry = (names != null) ? names.get(directory, name) : null;
+		if (entry != null) {
+			return entry;
+		}
+
+		Inode inode = getInode(directory);
+		int inumber = new Directory(inode).lookup(name);
+		releaseInode(inode);
+		int type = Inode.typeFree;
+		if (inumber != 0) {
+			inode = getInode(inumber);
+			type = inode.type;
+			releaseInode(inode);
+		}
+		entry = new NameCache.Entry(inumber, type);
+		if (names != null) {
+			names.put(directory, name, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Make a new inode of type <i>type</i>, named <i>name</i> in directory
+	 * <i>parent</i>. The caller must hold the file system lock, and the name
+	 * must not be in use.
+	 *
+	 * @return the new inode, or <tt>null</tt> if there was no room for it.
+	 */
+	private Inode create(int parent, String name, int type) {
+		int inumber = inodeMap.allocate();
+		if (inumber == -1) {
+			return null;
+		}
+		Inode inode = new Inode(this, inumber);
+		inode.initialize(type);
+
+		Inode directory = getInode(parent);
+		boolean added = (type != Inode.typeDirectory
+				|| new Directory(inode).add(Directory.parentName, parent))
+				&& new Directory(directory).add(name, inumber);
+		releaseInode(directory);
+		if (!added) {
+			destroy(inode);
+			return null;
+		}
+		if (names != null) {
+			names.put(parent, name, new NameCache.Entry(inumber, type));
+		}
+		return inode;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Write everything waiting in the buffer cache to the disk, and make it
+	 * safe there.
+	 */
+	public void sync() {
+		fsLock.acquire();
+		ArrayList<Inode> inodes = new ArrayList<Inode>(openInodes.values());
+		fsLock.release();
+		for (Inode inode : inodes) {
+			beginOperation();
+			inode.lock.acquire();
+			inode.flushDelayed();
+			inode.lock.release();
+			endOperation();
+		}
+		if (cache != null) {
+			cache.flush();
+		}
+		volume.sync();
+	}
+
+	/**
+	 * Write the data of <i>file</i>, an open file of this file system, to the
+	 * disk, and wait for the journal transactions that changed its metadata.
+	 * Changes to other files made since are not waited for.
+	 *
+	 * @return <tt>false</tt> if <i>file</i> is not an open file of this file
+	 * system.
+	 */
+	public boolean fsync(OpenFile file) {
+		if (!(file instanceof File) || ((File) file).inode == null) {
+			return false;
+		}
+		Inode inode = ((File) file).inode;
+
+		// blocks still waiting for sectors get them first
+		int transaction = beginOperation();
+		inode.lock.acquire();
+		inode.flushDelayed();
+		inode.transaction = Math.max(inode.transaction, transaction);
+		int[] sectors = inode.getSectors();
+		transaction = inode.transaction;
+		inode.lock.release();
+		endOperation();
+
+		if (cache != null) {
+			cache.flush(sectors, sectors.length);
+		}
+		if (journal != null) {
+			journal.waitForCommit(transaction);
+		}
+		return true;
+	}
+
+	/**
+	 * Give <i>file</i>, an open file of this file system, sectors for its
+	 * first <i>length</i> bytes, in as few runs of consecutive sectors as
+	 * possible. The length of the file does not change.
+	 *
+	 * @return <tt>false</tt> if <i>file</i> is not an open file of this file
+	 * system, or the disk filled up.
+	 */
+	public boolean preallocate(OpenFile file, int length) {
+		if (!(file instanceof File) || ((File) file).inode == null || length < 0) {
+			return false;
+		}
+		Inode inode = ((File) file).inode;
+
+		int transaction = beginOperation();
+		inode.lock.acquire();
+		boolean preallocated = inode.preallocate(Lib.divRoundUp(length, Inode.blockSize));
+		inode.transaction = Math.max(inode.transaction, transaction);
+		inode.lock.release();
+		endOperation();
+		return preallocated;
+	}
+
+	/**
+	 * Begin an operation that may change metadata. Must be called before
+	 * taking any file system lock.
+	 *
+	 * @return the journal transaction the operation is part of.
+	 */
+	private int beginOperation() {
+		return (journal != null) ? journal.begin() : 0;
+	}
+
+	private void endOperation() {
+		if (journal != null) {
+			journal.end();
+		}
+	}
+
+	/**
+	 * Return the inode in use with number <i>inumber</i>, loading it into the
+	 * open-file table if nobody is using it yet. The caller must hold the file
+	 * system lock, and must call <tt>releaseInode()</tt> unless it opens the
+	 * file.
+	 */
+	private Inode getInode(int inumber) {
+		Inode inode = openInodes.get(inumber);
+		if (inode == null) {
+			inode = new Inode(this, inumber);
+			inode.load();
+			openInodes.put(inumber, inode);
+		}
+		return inode;
+	}
+
+	/**
+	 * Drop <i>inode</i> from the open-file table if no open file uses it, and
+	 * give back its blocks if no directory names it either. The caller must
+	 * hold the file system lock.
+	 */
+	private void releaseInode(Inode inode) {
+		if (inode.openCount > 0) {
+			return;
+		}
+		openInodes.remove(inode.inumber);
+		// blocks that could not be given sectors are lost
+		inode.lock.acquire();
+		inode.discardDelayed();
+		inode.lock.release();
+		if (inode.linkCount == 0) {
+			destroy(inode);
+		}
+	}
+
+	// give back an inode and its blocks
+	private void destroy(Inode inode) {
+		inode.lock.acquire();
+		inode.truncate();
+		inode.type = Inode.typeFree;
+		inode.save();
+		inode.lock.release();
+		inodeMap.free(inode.inumber);
+		Lib.debug(dbgFS, "freed inode " + inode.inumber);
+	}
+
+	private void close(Inode inode) {
+		beginOperation();
+		inode.lock.acquire();
+		inode.flushDelayed();
+		inode.lock.release();
+		fsLock.acquire();
+		inode.openCount--;
+		openCount--;
+		releaseInode(inode);
+		fsLock.release();
+		endOperation();
+	}
+
+	/**
+	 * Read sector <i>sector</i> into <i>data</i>, starting at <i>offset</i>.
+	 */
+	void readSector(int sector, byte[] data, int offset) {
+		if (cache != null) {
+			cache.read(sector, data, offset);
+		} else {
+			volume.readSector(sector, data, offset);
+		}
+	}
+
+	/**
+	 * Write <i>data</i>, starting at <i>offset</i>, to sector <i>sector</i>.
+	 */
+	void writeSector(int sector, byte[] data, int offset) {
+		if (cache != null) {
+			cache.write(sector, data, offset);
+		} else {
+			volume.writeSector(sector, data, offset);
+		}
+	}
+
+	/**
+	 * Write <i>data</i>, starting at <i>offset</i>, to metadata sector
+	 * <i>sector</i>, logging it in the journal first.
+	 */
+	void writeMetadata(int sector, byte[] data, int offset) {
+		if (journal != null) {
+			journal.log(sector, data, offset);
+		}
+		writeSector(sector, data, offset);
+	}
+
+	/**
+	 * Allocate a run of up to <i>count</i> consecutive sectors, starting at
+	 * <i>goal</i> if that sector is free.
+	 *
+	 * @param goal the sector the run should start at, or -1 for anywhere.
+	 * @param reserved <tt>true</tt> if room for the sectors was reserved.
+	 * @return the first sector of the run and the length of the run, or
+	 * <tt>null</tt> if the disk is full.
+	 */
+	int[] allocateSectors(int goal, int count, boolean reserved) {
+		return freeMap.allocateRun(goal, count, reserved);
+	}
+
+	/**
+	 * Reserve room for <i>count</i> sectors to be allocated later.
+	 *
+	 * @return <tt>false</tt> if the disk has no room left for them.
+	 */
+	boolean reserveSectors(int count) {
+		return freeMap.reserve(count);
+	}
+
+	/**
+	 * Give back room reserved for <i>count</i> sectors.
+	 */
+	void unreserveSectors(int count) {
+		freeMap.unreserve(count);
+	}
+
+	/**
+	 * Return the most blocks of a file kept in memory until they are given
+	 * sectors.
+	 */
+	int getDelayedBlocks() {
+		return delayedBlocks;
+	}
+
+	/**
+	 * Give back a data sector.
+	 */
+	void freeSector(int sector) {
+		// drop the cached copy first, the sector may be reused right away
+		if (cache != null) {
+			cache.discard(sector);
+		}
+		// with a journal, the sector may only be reused once the transaction
+		// freeing it has committed
+		freeMap.free(sector, journalSectors > 0);
+		volume.free(sector);
+	}
+
+	/**
+	 * Return the sector holding inode <i>inumber</i>.
+	 */
+	int getInodeSector(int inumber) {
+		Lib.assertTrue(inumber > 0 && inumber < numInodes);
+		return inodeStart + inumber;
+	}
+
+	/**
+	 * An open file on the disk.
+	 */
+	private class File extends OpenFileWithPosition {
+		File(Inode inode, String name) {
+			super(NachosFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0) {
+				return -1;
+			}
+			int amount = inode.read(pos, buf, offset, length);
+			if (amount > 0 && readAhead != null) {
+				noteRead(pos, amount);
+			}
+			return amount;
+		}
+
+		/**
+		 * Grow or reset the read-ahead window after a read of <i>amount</i>
+		 * bytes at <i>pos</i>, and ask for the blocks in the window that have
+		 * not been asked for yet.
+		 */
+		private void noteRead(int pos, int amount) {
+			if (pos == sequentialPos) {
+				window = (window == 0) ? minReadAhead : Math.min(2 * window, maxReadAhead);
+			} else {
+				window = 0;
+				readAheadEnd = 0;
+			}
+			sequentialPos = pos + amount;
+			if (window == 0) {
+				return;
+			}
+
+			int nextBlock = Lib.divRoundUp(sequentialPos, Inode.blockSize);
+			int first = Math.max(nextBlock, readAheadEnd);
+			int end = nextBlock + window;
+			if (first < end) {
+				readAhead.schedule(inode, first, end - first);
+				readAheadEnd = end;
+			}
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0) {
+				return -1;
+			}
+			// a large write is split up, so that no transaction grows too big
+			int done = 0;
+			while (done < length) {
+				int amount = Math.min(length - done, writeChunk);
+				int transaction = beginOperation();
+				int written = inode.write(pos + done, buf, offset + done, amount);
+				inode.transaction = Math.max(inode.transaction, transaction);
+				endOperation();
+				done += written;
+				if (written < amount) {
+					break;
+				}
+			}
+			return done;
+		}
+
+		public int length() {
+			if (inode == null) {
+				return -1;
+			}
+			return inode.length;
+		}
+
+		public void close() {
+			if (inode != null) {
+				NachosFileSystem.this.close(inode);
+				inode = null;
+			}
+		}
+
+		// null once the file is closed
+		private Inode inode;
+
+		// where a read continuing the current sequential run would start
+		private int sequentialPos = 0;
+
+		// the read-ahead window in blocks, 0 if reads are not sequential
+		private int window = 0;
+
+		// the block after the last one asked to be read ahead
+		private int readAheadEnd = 0;
+	}
+
+	private Volume volume;
+
+	// null if metadata changes are not journaled
+	private Journal journal = null;
+
+	// the size of the journal, 0 if the disk has none
+	private int journalSectors;
+
+	// null if the file system runs without a buffer cache
+	private BufferCache cache = null;
+
+	// null if blocks are not read ahead
+	private ReadAhead readAhead = null;
+
+	private int minReadAhead, maxReadAhead;
+
+	// 0 if sectors are given to blocks as soon as they are written
+	private int delayedBlocks;
+
+	// guards the directories, the name cache, the open-file table and the
+	// inode bitmap
+	private Lock fsLock;
+
+	// inodes of open files, and of files being looked at, by inode number
+	private HashMap<Integer, Inode> openInodes;
+
+	// null if lookups are not cached
+	private NameCache names = null;
+
+	private FreeMap inodeMap;
+
+	private FreeMap freeMap;
+
+	private int numInodes;
+
+	private int inodeStart;
+
+	private int openCount = 0;
+
+	private static final int magic = 0x4E414345;
+
+	private static final int rootInumber = 1;
+
+	private static final int sectorSize = Disk.sectorSize;
+
+	// bytes copied at a time by importFile()
+	private static final int importChunk = 1024;
+
+	// the most bytes one operation writes
+	private static final int writeChunk = 8 * Inode.blockSize;
+
+	private static final char dbgFS = 'f';
+}
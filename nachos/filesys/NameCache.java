@@ -0,0 +1,111 @@
+package nachos.filesys;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A cache of directory lookups, mapping a directory and a name in it to the
+ * inode the name refers to. Names found missing are cached too, as negative
+ * entries, so that looking for a file that is not there does not read the
+ * directory every time either. When full, the least recently used entry is
+ * dropped.
+ *
+ * <p>
+ * The file system keeps the cache up to date as it changes directories, and
+ * only uses it while holding its lock.
+ */
+class NameCache {
+	/**
+	 * Allocate a new name cache holding up to <i>size</i> entries.
+	 */
+	NameCache(final int size) {
+		Lib.assertTrue(size > 0);
+
+		entries = new LinkedHashMap<Key, Entry>(size, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Look up <i>name</i> in directory <i>directory</i>.
+	 *
+	 * @return the cached entry, whose inode number is 0 if the name is known
+	 * not to exist, or <tt>null</tt> if the cache does not know.
+	 */
+	Entry get(int directory, String name) {
+		Entry entry = entries.get(new Key(directory, name));
+		if (entry != null) {
+			ThreadedKernel.stats.numNameCacheHits++;
+		} else {
+			ThreadedKernel.stats.numNameCacheMisses++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Record what <i>name</i> in directory <i>directory</i> refers to.
+	 */
+	void put(int directory, String name, Entry entry) {
+		entries.put(new Key(directory, name), entry);
+	}
+
+	/**
+	 * Forget every entry for names in directory <i>directory</i>, which is
+	 * being removed.
+	 */
+	void purge(int directory) {
+		for (Iterator<Key> i = entries.keySet().iterator(); i.hasNext();) {
+			if (i.next().directory == directory) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * What a name refers to.
+	 */
+	static class Entry {
+		Entry(int inumber, int type) {
+			this.inumber = inumber;
+			this.type = type;
+		}
+
+		/** The inode named, or 0 if there is none. */
+		final int inumber;
+
+		/** The type of the inode named. */
+		final int type;
+	}
+
+	private static class Key {
+		Key(int directory, String name) {
+			this.directory = directory;
+			this.name = name;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return directory == key.directory && name.equals(key.name);
+		}
+
+		public int hashCode() {
+			return directory * 31 + name.hashCode();
+		}
+
+		final int directory;
+
+		final String name;
+	}
+
+	// in order of use, least recent first
+	private LinkedHashMap<Key, Entry> entries;
+}
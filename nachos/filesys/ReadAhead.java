@@ -0,0 +1,84 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Reads file blocks into the buffer cache before they are asked for. Open
+ * files detect sequential reading themselves and call <tt>schedule()</tt>
+ * with the blocks they expect to need next; a kernel thread then maps those
+ * blocks to sectors and reads them in the background, so the reading process
+ * can keep running while the disk works.
+ */
+class ReadAhead {
+	/**
+	 * Allocate a new read-ahead thread filling <i>cache</i>, and fork it.
+	 *
+	 * @param cache the buffer cache to read blocks into.
+	 */
+	ReadAhead(BufferCache cache) {
+		this.cache = cache;
+		requests = new SynchList();
+
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					prefetch((Request) requests.removeFirst());
+				}
+			}
+		});
+		reader.setName("read ahead").fork();
+	}
+
+	/**
+	 * Ask for <i>count</i> blocks of the file of <i>inode</i>, starting with
+	 * block <i>firstBlock</i>, to be read ahead. Returns right away.
+	 */
+	void schedule(Inode inode, int firstBlock, int count) {
+		requests.add(new Request(inode, firstBlock, count));
+	}
+
+	private void prefetch(Request request) {
+		int[] sectors = new int[request.count];
+		int count = 0;
+
+		request.inode.lock.acquire();
+		// stop at the end of the file, and skip holes
+		int numBlocks = Lib.divRoundUp(request.inode.length, Inode.blockSize);
+		for (int i = request.firstBlock; i < request.firstBlock + request.count && i < numBlocks; i++) {
+			int sector = request.inode.mapBlock(i);
+			if (sector != 0) {
+				sectors[count++] = sector;
+			}
+		}
+		request.inode.lock.release();
+
+		if (count > 0) {
+			Lib.debug(dbgFS, "reading ahead " + count + " blocks of inode "
+					+ request.inode.inumber + " from block " + request.firstBlock);
+			cache.prefetch(sectors, count);
+		}
+	}
+
+	/**
+	 * A run of blocks to read ahead.
+	 */
+	private static class Request {
+		Request(Inode inode, int firstBlock, int count) {
+			this.inode = inode;
+			this.firstBlock = firstBlock;
+			this.count = count;
+		}
+
+		Inode inode;
+		int firstBlock;
+		int count;
+	}
+
+	private BufferCache cache;
+
+	// blocks waiting to be read ahead, in the order they were asked for
+	private SynchList requests;
+
+	private static final char dbgFS = 'f';
+}
@@ -0,0 +1,233 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system held entirely in memory, for scratch files that need not
+ * outlive the kernel. Names are kept in a single table. Each file is a list
+ * of pages, allocated as the file grows, so that a file with holes only uses
+ * pages for the parts written. All files together may use at most
+ * <tt>TmpFileSystem.maxBytes</tt> bytes of pages; a write that would need more
+ * is cut short.
+ *
+ * <p>
+ * A file removed while it is open loses its name right away, but keeps its
+ * pages until the last open file using it is closed. Unlike the stub file
+ * system, nothing here takes simulated time.
+ */
+public class TmpFileSystem implements FileSystem {
+	/**
+	 * Allocate a new, empty in-memory file system, limited to
+	 * <tt>TmpFileSystem.maxBytes</tt> bytes.
+	 */
+	public TmpFileSystem() {
+		this(Config.getInteger("TmpFileSystem.maxBytes", 4 * 1024 * 1024));
+	}
+
+	/**
+	 * Allocate a new, empty in-memory file system.
+	 *
+	 * @param maxBytes the most bytes of pages all files may use together.
+	 */
+	public TmpFileSystem(int maxBytes) {
+		maxPages = maxBytes / pageSize;
+		files = new HashMap<String, Node>();
+		lock = new Lock();
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		if (name.length() == 0) {
+			return null;
+		}
+
+		lock.acquire();
+		Node node = files.get(name);
+		if (node == null) {
+			if (!truncate) {
+				lock.release();
+				return null;
+			}
+			node = new Node();
+			files.put(name, node);
+		} else if (truncate) {
+			node.truncate();
+		}
+		node.openCount++;
+		openCount++;
+		lock.release();
+
+		return new File(node, name);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		Node node = files.remove(name);
+		if (node != null) {
+			node.linked = false;
+			if (node.openCount == 0) {
+				node.truncate();
+			}
+		}
+		lock.release();
+		return node != null;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Return the number of bytes of pages the files are using.
+	 */
+	public int getBytesUsed() {
+		return numPages * pageSize;
+	}
+
+	/**
+	 * The contents of a file. The file system lock guards every field.
+	 */
+	private class Node {
+		/**
+		 * Give back every page and make the file empty.
+		 */
+		void truncate() {
+			for (byte[] page : pages) {
+				if (page != null) {
+					numPages--;
+				}
+			}
+			pages.clear();
+			length = 0;
+		}
+
+		/**
+		 * Return page <i>index</i>, allocating it if it is missing and
+		 * <i>allocate</i> is true. Missing pages before it are left as holes.
+		 *
+		 * @return the page, or <tt>null</tt> if it is a hole and was not
+		 * allocated, or there was no room for it.
+		 */
+		byte[] getPage(int index, boolean allocate) {
+			byte[] page = (index < pages.size()) ? pages.get(index) : null;
+			if (page != null || !allocate || numPages == maxPages) {
+				return page;
+			}
+			while (pages.size() <= index) {
+				pages.add(null);
+			}
+			page = new byte[pageSize];
+			pages.set(index, page);
+			numPages++;
+			return page;
+		}
+
+		// null entries are holes
+		ArrayList<byte[]> pages = new ArrayList<byte[]>();
+
+		int length = 0;
+
+		int openCount = 0;
+
+		// false once the file is removed
+		boolean linked = true;
+	}
+
+	/**
+	 * An open file in memory.
+	 */
+	private class File extends OpenFileWithPosition {
+		File(Node node, String name) {
+			super(TmpFileSystem.this, name);
+			this.node = node;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (node == null || pos < 0) {
+				return -1;
+			}
+
+			lock.acquire();
+			length = Math.max(0, Math.min(length, node.length - pos));
+			for (int done = 0; done < length;) {
+				int pageOffset = (pos + done) % pageSize;
+				int amount = Math.min(length - done, pageSize - pageOffset);
+				byte[] page = node.getPage((pos + done) / pageSize, false);
+				if (page == null) {
+					Arrays.fill(buf, offset + done, offset + done + amount, (byte) 0);
+				} else {
+					System.arraycopy(page, pageOffset, buf, offset + done, amount);
+				}
+				done += amount;
+			}
+			lock.release();
+			return length;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (node == null || pos < 0) {
+				return -1;
+			}
+
+			lock.acquire();
+			int done = 0;
+			while (done < length) {
+				int pageOffset = (pos + done) % pageSize;
+				int amount = Math.min(length - done, pageSize - pageOffset);
+				byte[] page = node.getPage((pos + done) / pageSize, true);
+				if (page == null) {
+					break;
+				}
+				System.arraycopy(buf, offset + done, page, pageOffset, amount);
+				done += amount;
+			}
+			node.length = Math.max(node.length, pos + done);
+			lock.release();
+			return done;
+		}
+
+		public int length() {
+			if (node == null) {
+				return -1;
+			}
+			return node.length;
+		}
+
+		public void close() {
+			if (node == null) {
+				return;
+			}
+
+			lock.acquire();
+			node.openCount--;
+			openCount--;
+			if (node.openCount == 0 && !node.linked) {
+				node.truncate();
+			}
+			lock.release();
+			node = null;
+		}
+
+		// null once the file is closed
+		private Node node;
+	}
+
+	// files by name
+	private HashMap<String, Node> files;
+
+	// the number of pages in use, and the most there may be
+	private int numPages = 0;
+
+	private int maxPages;
+
+	private int openCount = 0;
+
+	// guards the name table and every file
+	private Lock lock;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,75 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The sectors a file system is stored in. This volume maps every sector
+ * straight to the same sector of the disk; subclasses may store them some
+ * other way, as <tt>LogVolume</tt> does.
+ */
+class Volume {
+	/**
+	 * Allocate a new volume covering the whole of <i>disk</i>.
+	 *
+	 * @param disk the disk holding the volume.
+	 */
+	Volume(SynchDisk disk) {
+		Lib.assertTrue(disk != null, "a file system on the disk needs Machine.disk = true");
+
+		this.disk = disk;
+	}
+
+	/**
+	 * Return the number of sectors in this volume.
+	 */
+	int getNumSectors() {
+		return disk.getNumSectors();
+	}
+
+	/**
+	 * Read sector <i>sector</i> into <i>data</i>, starting at <i>offset</i>.
+	 */
+	void readSector(int sector, byte[] data, int offset) {
+		disk.readSector(sector, data, offset);
+	}
+
+	/**
+	 * Write <i>data</i>, starting at <i>offset</i>, to sector <i>sector</i>.
+	 */
+	void writeSector(int sector, byte[] data, int offset) {
+		disk.writeSector(sector, data, offset);
+	}
+
+	/**
+	 * Read sector <i>sectors[i]</i> into <i>data[i]</i> for every <i>i</i>,
+	 * letting the disk order and merge the reads.
+	 */
+	void readSectors(int[] sectors, byte[][] data) {
+		disk.readSectors(sectors, data);
+	}
+
+	/**
+	 * Write <i>data[i]</i> to sector <i>sectors[i]</i> for every <i>i</i>,
+	 * letting the disk order and merge the writes.
+	 */
+	void writeSectors(int[] sectors, byte[][] data) {
+		disk.writeSectors(sectors, data);
+	}
+
+	/**
+	 * Note that sector <i>sector</i> no longer holds anything the file system
+	 * needs.
+	 */
+	void free(int sector) {
+	}
+
+	/**
+	 * Make everything written so far safe on the disk.
+	 */
+	void sync() {
+	}
+
+	/** The disk holding the volume. */
+	protected SynchDisk disk;
+}
@@ -0,0 +1,285 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+/**
+ * A simulated disk, backed by a file on the host. The disk is an array of
+ * fixed-size sectors, <tt>sectorsPerTrack</tt> to a track, and can only
+ * transfer whole sectors. One request may transfer a run of consecutive
+ * sectors, which costs a single seek and rotational delay.
+ *
+ * <p>
+ * Requests are asynchronous. The disk handles one request at a time, and
+ * calls the interrupt handler once the request has completed; until then the
+ * buffer of the request must not be touched. The time a request takes models
+ * a real disk: the arm moves across the tracks at <tt>Stats.SeekTime</tt>
+ * ticks per track, then waits for the sector to rotate under the head, and
+ * finally reads or writes it while it passes. A run continuing onto the
+ * next track pays a track-to-track seek for each track crossed. The platter turns once every
+ * <tt>Stats.RotationTime</tt> ticks whether or not the disk is busy, so the
+ * rotational delay depends on when the request is made.
+ */
+public final class Disk {
+	/**
+	 * Allocate a new disk. The size of the disk is set by
+	 * <tt>Disk.numTracks</tt>, and the host file backing it by
+	 * <tt>Disk.fileName</tt>. A file that does not exist yet is created, and a
+	 * file that is too short is extended with zeroes.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	public Disk(Privilege privilege) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		numTracks = Config.getInteger("Disk.numTracks", 64);
+		Lib.assertTrue(numTracks > 0);
+		numSectors = numTracks * sectorsPerTrack;
+
+		final File f = new File(Config.getString("Disk.fileName", "DISK"));
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				openFile(f);
+			}
+		});
+		Lib.assertTrue(file != null, "unable to open disk file");
+
+		completeInterrupt = new Runnable() {
+			public void run() {
+				completeInterrupt();
+			}
+		};
+	}
+
+	private void openFile(File f) {
+		try {
+			file = new RandomAccessFile(f, "rw");
+			if (file.length() < (long) numSectors * sectorSize)
+				file.setLength((long) numSectors * sectorSize);
+		}
+		catch (IOException e) {
+			file = null;
+		}
+	}
+
+	/**
+	 * Set this disk's interrupt handler. The handler is called each time a
+	 * request completes.
+	 *
+	 * @param handler the interrupt handler.
+	 */
+	public void setInterruptHandler(Runnable handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Start reading sector <i>sector</i> into <i>data</i>, starting at
+	 * <i>offset</i>. The disk must not be busy.
+	 *
+	 * @param sector the sector to read.
+	 * @param data the array to read the sector into.
+	 * @param offset the first byte of <i>data</i> to transfer to.
+	 */
+	public void readRequest(int sector, byte[] data, int offset) {
+		startRequest(sector, 1, data, offset, false);
+	}
+
+	/**
+	 * Start reading <i>count</i> consecutive sectors, beginning with
+	 * <i>sector</i>, into <i>data</i>, starting at <i>offset</i>. The disk
+	 * must not be busy.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the array to read the sectors into.
+	 * @param offset the first byte of <i>data</i> to transfer to.
+	 */
+	public void readRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(sector, count, data, offset, false);
+	}
+
+	/**
+	 * Start writing <i>data</i>, starting at <i>offset</i>, to sector
+	 * <i>sector</i>. The disk must not be busy.
+	 *
+	 * @param sector the sector to write.
+	 * @param data the array to write the sector from.
+	 * @param offset the first byte of <i>data</i> to transfer from.
+	 */
+	public void writeRequest(int sector, byte[] data, int offset) {
+		startRequest(sector, 1, data, offset, true);
+	}
+
+	/**
+	 * Start writing <i>count</i> consecutive sectors, beginning with
+	 * <i>sector</i>, from <i>data</i>, starting at <i>offset</i>. The disk
+	 * must not be busy.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the array to write the sectors from.
+	 * @param offset the first byte of <i>data</i> to transfer from.
+	 */
+	public void writeRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(sector, count, data, offset, true);
+	}
+
+	private void startRequest(int sector, int count, byte[] data, int offset,
+			boolean writing) {
+		Lib.assertTrue(!busy);
+		Lib.assertTrue(count > 0 && sector >= 0 && sector + count <= numSectors);
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		busy = true;
+		requestSector = sector;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+		requestWriting = writing;
+
+		int latency = computeLatency(sector, count);
+		headTrack = (sector + count - 1) / sectorsPerTrack;
+		privilege.stats.diskTicks += latency;
+
+		Lib.debug(dbgDisk, (writing ? "write" : "read") + " request for "
+				+ count + " sectors at " + sector + ", latency " + latency);
+
+		privilege.interrupt.schedule(latency, "disk", completeInterrupt);
+	}
+
+	/**
+	 * Return the number of ticks a request for <i>sector</i> would take if it
+	 * were started now: the seek from the current track, the wait for the
+	 * sector to come around, and the time for it to pass under the head.
+	 *
+	 * @param sector the sector to access.
+	 * @return the latency of the request in ticks.
+	 */
+	public int computeLatency(int sector) {
+		return computeLatency(sector, 1);
+	}
+
+	/**
+	 * Return the number of ticks a request for <i>count</i> sectors starting
+	 * at <i>sector</i> would take if it were started now.
+	 *
+	 * @param sector the first sector to access.
+	 * @param count the number of sectors to access.
+	 * @return the latency of the request in ticks.
+	 */
+	public int computeLatency(int sector, int count) {
+		int seek = Math.abs(sector / sectorsPerTrack - headTrack) * Stats.SeekTime;
+
+		// where the platter is once the arm is over the track
+		long arrival = privilege.stats.totalTicks + seek;
+		int angle = (int) (arrival % Stats.RotationTime);
+		int target = (sector % sectorsPerTrack) * sectorTime;
+		int rotation = (target - angle + Stats.RotationTime) % Stats.RotationTime;
+
+		// moving to each following track is a seek of one track
+		int tracksCrossed = (sector + count - 1) / sectorsPerTrack - sector / sectorsPerTrack;
+
+		return seek + rotation + count * sectorTime + tracksCrossed * Stats.SeekTime;
+	}
+
+	private void completeInterrupt() {
+		Lib.assertTrue(busy);
+
+		try {
+			file.seek((long) requestSector * sectorSize);
+			if (requestWriting) {
+				file.write(requestData, requestOffset, requestCount * sectorSize);
+				privilege.stats.numDiskWrites += requestCount;
+			}
+			else {
+				file.readFully(requestData, requestOffset, requestCount * sectorSize);
+				privilege.stats.numDiskReads += requestCount;
+			}
+			privilege.stats.numDiskRequests++;
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("disk file I/O failed");
+		}
+
+		busy = false;
+		requestData = null;
+
+		if (handler != null)
+			handler.run();
+	}
+
+	/**
+	 * Test whether a request is in progress.
+	 *
+	 * @return <tt>true</tt> if the disk is busy.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Return the track the arm is over, or moving to if a request is in
+	 * progress.
+	 *
+	 * @return the current track.
+	 */
+	public int getHeadTrack() {
+		return headTrack;
+	}
+
+	/**
+	 * Return the number of sectors on this disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Return the number of tracks on this disk.
+	 *
+	 * @return the number of tracks.
+	 */
+	public int getNumTracks() {
+		return numTracks;
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 128;
+
+	/** The number of sectors on a track. */
+	public static final int sectorsPerTrack = 32;
+
+	// the time it takes a sector to pass under the head
+	private static final int sectorTime = Stats.RotationTime / sectorsPerTrack;
+
+	private static final char dbgDisk = 'd';
+
+	private Privilege privilege;
+
+	private RandomAccessFile file = null;
+
+	private Runnable completeInterrupt;
+
+	private Runnable handler = null;
+
+	private int numTracks, numSectors;
+
+	private int headTrack = 0;
+
+	private boolean busy = false;
+
+	private int requestSector, requestCount, requestOffset;
+
+	private byte[] requestData;
+
+	private boolean requestWriting;
+}
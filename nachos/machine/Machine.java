@@ -195,6 +195,9 @@ public final class Machine {
 		if (Config.getBoolean("Machine.console"))
 			console = new StandardConsole(privilege);
 
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege);
+
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
@@ -352,6 +355,15 @@ public final class Machine {
 		return console;
 	}
 
+	/**
+	 * Return the hardware disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the stub filesystem.
 	 * 
@@ -389,6 +401,8 @@ public final class Machine {
 
 	private static SerialConsole console = null;
 
+	private static Disk disk = null;
+
 	private static FileSystem stubFileSystem = null;
 
 	private static NetworkLink networkLink = null;
@@ -0,0 +1,306 @@
+package nachos.machine;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A sparse two-level page table. The virtual page number is split into a
+ * directory index and an index into a second-level table, and a second-level
+ * table is only allocated once a page in the region it covers is mapped, so an
+ * address space only pays for the regions it actually uses.
+ *
+ * <p>
+ * Each page table entry is packed into a single <tt>int</tt>: the physical
+ * page number in the upper bits, and the <tt>valid</tt>, <tt>readOnly</tt>,
+ * <tt>used</tt> and <tt>dirty</tt> bits below it. An entry of 0 means the page
+ * has no entry at all. The processor reads and updates the packed entries in
+ * place, so translating an address allocates nothing. <tt>get()</tt> and
+ * <tt>set()</tt> convert to and from <tt>TranslationEntry</tt> for code that
+ * still wants an object; the object returned by <tt>get()</tt> is a copy, and
+ * changing it does not change the page table.
+ *
+ * <p>
+ * A <tt>PageTable</tt> can be handed to <tt>Processor.setPageTable()</tt> in
+ * place of a single-level <tt>TranslationEntry[]</tt>.
+ */
+public final class PageTable implements Iterable<TranslationEntry> {
+	/**
+	 * Allocate a new, empty page table.
+	 */
+	public PageTable() {
+		directory = new int[directorySize][];
+	}
+
+	/**
+	 * Pack a physical page number and a set of flags into a page table entry.
+	 *
+	 * @param ppn the physical page number, or -1 if there is none yet.
+	 * @param flags any of <tt>valid</tt>, <tt>readOnly</tt>, <tt>used</tt> and
+	 * <tt>dirty</tt>, or'ed together.
+	 * @return the packed entry, never 0.
+	 */
+	public static int pack(int ppn, int flags) {
+		Lib.assertTrue((flags & ~flagMask) == 0);
+
+		return (ppn << ppnShift) | present | flags;
+	}
+
+	/**
+	 * Return the physical page number of a packed entry.
+	 *
+	 * @param pte a packed page table entry.
+	 * @return the physical page number.
+	 */
+	public static int getPPN(int pte) {
+		return pte >> ppnShift;
+	}
+
+	/**
+	 * Return the packed entry for the specified virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the packed entry, or 0 if none was set.
+	 */
+	public int getEntry(int vpn) {
+		int[] table = tableFor(vpn);
+		if (table == null)
+			return 0;
+
+		return table[vpn & tableMask];
+	}
+
+	/**
+	 * Set the packed entry for the specified virtual page, allocating the
+	 * second-level table covering it if necessary.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param pte the packed entry, or 0 to remove it.
+	 */
+	public void setEntry(int vpn, int pte) {
+		Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+		int[] table = directory[vpn >>> tableBits];
+		if (table == null) {
+			if (pte == 0)
+				return;
+			table = new int[tableSize];
+			directory[vpn >>> tableBits] = table;
+			numTables++;
+		}
+
+		if (table[vpn & tableMask] == 0 && pte != 0)
+			numEntries++;
+		else if (table[vpn & tableMask] != 0 && pte == 0)
+			numEntries--;
+		table[vpn & tableMask] = pte;
+	}
+
+	/**
+	 * Test whether the entry for the specified virtual page has all of the
+	 * specified flags set.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param flags the flags to test.
+	 * @return <tt>true</tt> if the page has an entry with every flag set.
+	 */
+	public boolean hasFlags(int vpn, int flags) {
+		return (getEntry(vpn) & flags) == flags;
+	}
+
+	/**
+	 * Set flags in the existing entry for the specified virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param flags the flags to set.
+	 */
+	public void setFlags(int vpn, int flags) {
+		Lib.assertTrue((flags & ~flagMask) == 0);
+
+		int[] table = tableFor(vpn);
+		Lib.assertTrue(table != null && table[vpn & tableMask] != 0);
+		table[vpn & tableMask] |= flags;
+	}
+
+	/**
+	 * Clear flags in the existing entry for the specified virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param flags the flags to clear.
+	 */
+	public void clearFlags(int vpn, int flags) {
+		Lib.assertTrue((flags & ~flagMask) == 0);
+
+		int[] table = tableFor(vpn);
+		Lib.assertTrue(table != null && table[vpn & tableMask] != 0);
+		table[vpn & tableMask] &= ~flags;
+	}
+
+	/**
+	 * Change the physical page number of the existing entry for the specified
+	 * virtual page, keeping its flags.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param ppn the new physical page number.
+	 */
+	public void setPPN(int vpn, int ppn) {
+		int[] table = tableFor(vpn);
+		Lib.assertTrue(table != null && table[vpn & tableMask] != 0);
+		table[vpn & tableMask] = (ppn << ppnShift)
+				| (table[vpn & tableMask] & (present | flagMask));
+	}
+
+	/**
+	 * Return a copy of the entry for the specified virtual page as a
+	 * <tt>TranslationEntry</tt>.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return a new translation entry, or <tt>null</tt> if none was set.
+	 */
+	public TranslationEntry get(int vpn) {
+		int pte = getEntry(vpn);
+		if (pte == 0)
+			return null;
+
+		return toTranslationEntry(vpn, pte);
+	}
+
+	/**
+	 * Set the entry for the specified virtual page from a
+	 * <tt>TranslationEntry</tt>. Later changes to <i>entry</i> do not change
+	 * the page table.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param entry the translation entry, or <tt>null</tt> to remove it.
+	 */
+	public void set(int vpn, TranslationEntry entry) {
+		if (entry == null) {
+			setEntry(vpn, 0);
+			return;
+		}
+
+		setEntry(vpn, pack(entry.ppn, (entry.valid ? valid : 0)
+				| (entry.readOnly ? readOnly : 0) | (entry.used ? used : 0)
+				| (entry.dirty ? dirty : 0)));
+	}
+
+	/**
+	 * Return the first virtual page at or after <i>vpn</i> that has an entry.
+	 * Regions without a second-level table are skipped without being looked
+	 * at.
+	 *
+	 * @param vpn the virtual page number to start at.
+	 * @return the next virtual page with an entry, or -1 if there is none.
+	 */
+	public int nextEntry(int vpn) {
+		while (vpn < Processor.maxPages) {
+			int[] table = directory[vpn >>> tableBits];
+			if (table == null) {
+				vpn = ((vpn >>> tableBits) + 1) << tableBits;
+				continue;
+			}
+			if (table[vpn & tableMask] != 0)
+				return vpn;
+			vpn++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the number of translation entries in this page table.
+	 *
+	 * @return the number of pages with a translation entry.
+	 */
+	public int getNumEntries() {
+		return numEntries;
+	}
+
+	/**
+	 * Return the number of second-level tables allocated so far.
+	 *
+	 * @return the number of second-level tables.
+	 */
+	public int getNumTables() {
+		return numTables;
+	}
+
+	/**
+	 * Return an iterator over copies of the translation entries in this page
+	 * table, in increasing virtual page number order.
+	 *
+	 * @return an iterator over the translation entries.
+	 */
+	public Iterator<TranslationEntry> iterator() {
+		return new Iterator<TranslationEntry>() {
+			public boolean hasNext() {
+				return nextEntry(vpn) != -1;
+			}
+
+			public TranslationEntry next() {
+				vpn = nextEntry(vpn);
+				if (vpn == -1)
+					throw new NoSuchElementException();
+
+				return get(vpn++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private int vpn = 0;
+		};
+	}
+
+	/**
+	 * Return the second-level table covering the specified virtual page, or
+	 * <tt>null</tt> if there is none. Used by the processor to translate
+	 * without going through the accessors.
+	 */
+	int[] tableFor(int vpn) {
+		if (vpn < 0 || vpn >= Processor.maxPages)
+			return null;
+
+		return directory[vpn >>> tableBits];
+	}
+
+	private static TranslationEntry toTranslationEntry(int vpn, int pte) {
+		return new TranslationEntry(vpn, getPPN(pte), (pte & valid) != 0,
+				(pte & readOnly) != 0, (pte & used) != 0, (pte & dirty) != 0);
+	}
+
+	/** Entry flag: the page is resident and the entry may be used. */
+	public static final int valid = 0x01;
+
+	/** Entry flag: the page may not be written. */
+	public static final int readOnly = 0x02;
+
+	/** Entry flag: set by the processor whenever the page is referenced. */
+	public static final int used = 0x04;
+
+	/** Entry flag: set by the processor whenever the page is written. */
+	public static final int dirty = 0x08;
+
+	// set in every entry, so that an entry is never 0
+	private static final int present = 0x10;
+
+	private static final int flagMask = valid | readOnly | used | dirty;
+
+	private static final int ppnShift = 5;
+
+	/** The number of virtual page number bits indexing a second-level table. */
+	public static final int tableBits = 10;
+
+	/** The number of entries in a second-level table. */
+	public static final int tableSize = 1 << tableBits;
+
+	static final int tableMask = tableSize - 1;
+
+	/** The number of entries in the directory. */
+	public static final int directorySize = Processor.maxPages >>> tableBits;
+
+	private int[][] directory;
+
+	private int numEntries = 0;
+
+	private int numTables = 0;
+}
@@ -48,7 +48,11 @@ public final class Processor {
 		mainMemory = new byte[pageSize * numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			Lib.assertTrue(tlbSize > 0);
+
 			translations = new TranslationEntry[tlbSize];
+			tlbASIDs = new int[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
 		}
@@ -175,6 +179,36 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		this.sparsePageTable = null;
+		flushTranslationCaches();
+	}
+
+	/**
+	 * Set the page table pointer to a two-level page table. All further
+	 * address translations will use the specified page table, and any virtual
+	 * page without a valid entry in it causes a page fault.
+	 * 
+	 * @param pageTable the page table to use.
+	 */
+	public void setPageTable(PageTable pageTable) {
+		Lib.assertTrue(!usingTLB);
+
+		this.sparsePageTable = pageTable;
+		this.translations = null;
+		flushTranslationCaches();
+	}
+
+	/**
+	 * Get the current two-level page table, set by the last call to
+	 * <tt>setPageTable(PageTable)</tt>.
+	 * 
+	 * @return the current two-level page table, or <tt>null</tt> if a
+	 * single-level page table is in use.
+	 */
+	public PageTable getSparsePageTable() {
+		Lib.assertTrue(!usingTLB);
+
+		return sparsePageTable;
 	}
 
 	/**
@@ -188,6 +222,44 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Set the address space ID of the running address space. Only TLB entries
+	 * tagged with this ID are used to translate addresses, so a kernel can
+	 * switch address spaces without flushing the TLB.
+	 * 
+	 * @param asid the address space ID to translate with.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+		flushTranslationCaches();
+	}
+
+	/**
+	 * Return the address space ID set by the last call to <tt>setASID()</tt>.
+	 * 
+	 * @return the current address space ID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Return the address space ID the specified TLB entry is tagged with.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the address space ID of the specified TLB entry.
+	 */
+	public int readTLBEntryASID(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return tlbASIDs[number];
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -201,6 +273,38 @@ public final class Processor {
 		return new TranslationEntry(translations[number]);
 	}
 
+	/**
+	 * Return the specified TLB entry packed the way <tt>PageTable</tt> packs
+	 * its entries. Unlike <tt>readTLBEntry()</tt>, this does not allocate a
+	 * copy of the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the packed contents of the specified TLB entry.
+	 */
+	public int readTLBEntryPacked(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		TranslationEntry entry = translations[number];
+		return PageTable.pack(entry.ppn, (entry.valid ? PageTable.valid : 0)
+				| (entry.readOnly ? PageTable.readOnly : 0)
+				| (entry.used ? PageTable.used : 0)
+				| (entry.dirty ? PageTable.dirty : 0));
+	}
+
+	/**
+	 * Return the virtual page number of the specified TLB entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the virtual page number of the specified TLB entry.
+	 */
+	public int readTLBEntryVPN(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].vpn;
+	}
+
 	/**
 	 * Fill the specified TLB entry.
 	 * 
@@ -212,10 +316,49 @@ public final class Processor {
 	 * @param entry the new contents of the TLB entry.
 	 */
 	public void writeTLBEntry(int number, TranslationEntry entry) {
+		writeTLBEntry(number, entry, asid);
+	}
+
+	/**
+	 * Fill the specified TLB entry, tagging it with the specified address space
+	 * ID instead of the current one.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param entry the new contents of the TLB entry.
+	 * @param asid the address space ID of the new entry.
+	 */
+	public void writeTLBEntry(int number, TranslationEntry entry, int asid) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		tlbASIDs[number] = asid;
+		flushTranslationCaches();
+	}
+
+	/**
+	 * Fill the specified TLB entry from a packed page table entry, tagging it
+	 * with the specified address space ID. The TLB entry is updated in place,
+	 * so nothing is allocated. A <i>pte</i> of 0 invalidates the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param vpn the virtual page number of the new entry.
+	 * @param pte the packed contents of the new entry.
+	 * @param asid the address space ID of the new entry.
+	 */
+	public void writeTLBEntry(int number, int vpn, int pte, int asid) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		TranslationEntry entry = translations[number];
+		entry.vpn = vpn;
+		entry.ppn = PageTable.getPPN(pte);
+		entry.valid = (pte & PageTable.valid) != 0;
+		entry.readOnly = (pte & PageTable.readOnly) != 0;
+		entry.used = (pte & PageTable.used) != 0;
+		entry.dirty = (pte & PageTable.dirty) != 0;
+		tlbASIDs[number] = asid;
+		flushTranslationCaches();
 	}
 
 	/**
@@ -284,14 +427,24 @@ public final class Processor {
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * The last page translated through <i>cache</i> is remembered, and a
+	 * further reference to that page whose entry has not changed since skips
+	 * the lookup and the debug output.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param cache the translation cache for this kind of reference.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing,
+			TranslationCache cache) throws MipsException {
+		// same page as last time, with the used and dirty bits already set
+		if ((vaddr & (size - 1)) == 0 && cache.hit(pageFromAddress(vaddr), writing))
+			return cache.pageBase + offsetFromAddress(vaddr);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -306,6 +459,39 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		// a two-level page table is looked up a level at a time, and its
+		// packed entries are checked and updated in place
+		if (!usingTLB && sparsePageTable != null) {
+			int[] table = sparsePageTable.tableFor(vpn);
+			int pte = (table == null) ? 0 : table[vpn & PageTable.tableMask];
+			if ((pte & PageTable.valid) == 0) {
+				privilege.stats.numPageFaults++;
+				Lib.debug(dbgProcessor, "\t\tpage fault");
+				throw new MipsException(exceptionPageFault, vaddr);
+			}
+
+			if ((pte & PageTable.readOnly) != 0 && writing) {
+				Lib.debug(dbgProcessor, "\t\tread-only exception");
+				throw new MipsException(exceptionReadOnly, vaddr);
+			}
+
+			int ppn = PageTable.getPPN(pte);
+			if (ppn < 0 || ppn >= numPhysPages) {
+				Lib.debug(dbgProcessor, "\t\tbad ppn");
+				throw new MipsException(exceptionBusError, vaddr);
+			}
+
+			pte |= PageTable.used | (writing ? PageTable.dirty : 0);
+			table[vpn & PageTable.tableMask] = pte;
+			cache.fill(vpn, ppn, table, pte);
+
+			int paddr = (ppn * pageSize) + offset;
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
+
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -319,10 +505,11 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through all TLB entries for matching vpn and address space
 		else {
 			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& tlbASIDs[i] == asid) {
 					entry = translations[i];
 					break;
 				}
@@ -351,6 +538,7 @@ public final class Processor {
 		entry.used = true;
 		if (writing)
 			entry.dirty = true;
+		cache.fill(vpn, ppn, entry, usingTLB ? null : translations);
 
 		int paddr = (ppn * pageSize) + offset;
 
@@ -369,14 +557,23 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		return readMem(vaddr, size, dataCache);
+	}
+
+	/**
+	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+	 * translating it through the specified translation cache.
+	 */
+	private int readMem(int vaddr, int size, TranslationCache cache)
+			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = Lib.bytesToInt(mainMemory,
+				translate(vaddr, size, false, cache), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +599,8 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true, dataCache),
+				size, value);
 	}
 
 	/**
@@ -534,6 +732,11 @@ public final class Processor {
 	/** Provides privilege to this processor. */
 	private Privilege privilege;
 
+	/** The last translations made for instruction fetches and for data. */
+	private TranslationCache fetchCache = new TranslationCache();
+
+	private TranslationCache dataCache = new TranslationCache();
+
 	/** MIPS registers accessible to the kernel. */
 	private int registers[] = new int[numUserRegisters];
 
@@ -552,12 +755,21 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** The address space ID each TLB entry is tagged with. */
+	private int[] tlbASIDs;
+
+	/** The address space ID of the running address space. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** The two-level page table in use instead, if any. */
+	private PageTable sparsePageTable = null;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -585,6 +797,100 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Forget the last translations made for instruction fetches and data
+	 * references, because the page table or TLB they came from was replaced.
+	 */
+	private void flushTranslationCaches() {
+		fetchCache.invalidate();
+		dataCache.invalidate();
+	}
+
+	/**
+	 * The last virtual page translated for one kind of memory reference. A
+	 * hit is only reported while the entry the translation came from is still
+	 * valid, still maps the same physical page, and already has its used bit
+	 * (and, for a write, its dirty bit) set, so the kernel can clear those
+	 * bits or invalidate the entry without telling the processor.
+	 */
+	private static final class TranslationCache {
+		/**
+		 * Test whether a reference to <i>vpn</i> can use the cached
+		 * translation.
+		 */
+		boolean hit(int vpn, boolean writing) {
+			if (vpn != this.vpn)
+				return false;
+
+			if (table != null) {
+				return table[index] == pte
+						&& (!writing || (pte & (PageTable.dirty | PageTable.readOnly)) == PageTable.dirty);
+			}
+
+			if (translations != null
+					&& (vpn >= translations.length || translations[vpn] != entry))
+				return false;
+
+			return entry.valid && entry.used && entry.ppn == ppn
+					&& (!writing || (entry.dirty && !entry.readOnly));
+		}
+
+		/**
+		 * Remember a translation made from a packed two-level page table
+		 * entry.
+		 */
+		void fill(int vpn, int ppn, int[] table, int pte) {
+			this.vpn = vpn;
+			this.ppn = ppn;
+			this.pageBase = ppn * pageSize;
+			this.table = table;
+			this.index = vpn & PageTable.tableMask;
+			this.pte = pte;
+			this.entry = null;
+			this.translations = null;
+		}
+
+		/**
+		 * Remember a translation made from a TLB entry, or from an entry of
+		 * the single-level page table <i>translations</i>, so that replacing
+		 * the entry in the table is noticed.
+		 */
+		void fill(int vpn, int ppn, TranslationEntry entry,
+				TranslationEntry[] translations) {
+			this.vpn = vpn;
+			this.ppn = ppn;
+			this.pageBase = ppn * pageSize;
+			this.table = null;
+			this.entry = entry;
+			this.translations = translations;
+		}
+
+		void invalidate() {
+			vpn = -1;
+			table = null;
+			entry = null;
+			translations = null;
+		}
+
+		int vpn = -1;
+
+		int ppn;
+
+		int pageBase;
+
+		// the second-level table and packed entry of a two-level translation
+		int[] table;
+
+		int index;
+
+		int pte;
+
+		// the entry of a single-level or TLB translation
+		TranslationEntry entry;
+
+		TranslationEntry[] translations;
+	}
+
 	private class MipsException extends Exception {
 		public MipsException(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
@@ -643,7 +949,7 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			value = readMem(registers[regPC], 4, fetchCache);
 		}
 
 		private void decode() {
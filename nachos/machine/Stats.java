@@ -21,7 +21,8 @@ public final class Stats {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
-				+ numDiskWrites);
+				+ numDiskWrites + ", requests " + numDiskRequests
+				+ ", busy ticks " + diskTicks);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
@@ -54,6 +55,12 @@ public final class Stats {
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
 
+	/** The total number of requests the simulated disk has served. */
+	public int numDiskRequests = 0;
+
+	/** The total amount of simulated time the disk has spent on requests. */
+	public long diskTicks = 0;
+
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 
@@ -8,10 +8,14 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
- * operating system's file system.
+ * operating system's file system. Open files of the same name share one host
+ * file, so only the number of different files open at once is limited.
  */
 public class StubFileSystem implements FileSystem {
 	/**
@@ -50,6 +54,10 @@ public class StubFileSystem implements FileSystem {
 
 		FileRemover fr = new FileRemover(new File(directory, name));
 		privilege.doPrivileged(fr);
+		// open files keep the removed file, but a new file by the same name
+		// must not share it
+		if (fr.successful)
+			channels.remove(name);
 		return fr.successful;
 	}
 
@@ -79,33 +87,43 @@ public class StubFileSystem implements FileSystem {
 				throws IOException {
 			super(StubFileSystem.this, name);
 
-			final File f = new File(directory, name);
+			shared = channels.get(name);
+			if (shared == null) {
+				final File f = new File(directory, name);
 
-			if (openCount == maxOpenFiles)
-				throw new IOException();
+				if (channels.size() == maxOpenFiles)
+					throw new IOException();
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					getRandomAccessFile(f, truncate);
-				}
-			});
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						getChannel(f, name, truncate);
+					}
+				});
 
-			if (file == null)
-				throw new IOException();
+				if (shared == null)
+					throw new IOException();
 
+				channels.put(name, shared);
+			} else if (truncate) {
+				shared.channel.truncate(0);
+			}
+
+			shared.references++;
 			open = true;
 			openCount++;
 		}
 
-		private void getRandomAccessFile(File f, boolean truncate) {
+		private void getChannel(File f, String name, boolean truncate) {
 			try {
 				if (!truncate && !f.exists())
 					return;
 
-				file = new RandomAccessFile(f, "rw");
+				FileChannel channel = new RandomAccessFile(f, "rw").getChannel();
 
 				if (truncate)
-					file.setLength(0);
+					channel.truncate(0);
+
+				shared = new SharedChannel(name, channel);
 			} catch (IOException e) {
 			}
 		}
@@ -118,8 +136,7 @@ public class StubFileSystem implements FileSystem {
 			try {
 				delay();
 
-				file.seek(pos);
-				return Math.max(0, file.read(buf, offset, length));
+				return shared.read(pos, buf, offset, length);
 			} catch (IOException e) {
 				return -1;
 			}
@@ -132,8 +149,7 @@ public class StubFileSystem implements FileSystem {
 			try {
 				delay();
 
-				file.seek(pos);
-				file.write(buf, offset, length);
+				shared.write(pos, buf, offset, length);
 				return length;
 			} catch (IOException e) {
 				return -1;
@@ -142,7 +158,7 @@ public class StubFileSystem implements FileSystem {
 
 		public int length() {
 			try {
-				return (int) file.length();
+				return (int) shared.channel.size();
 			} catch (IOException e) {
 				return -1;
 			}
@@ -152,23 +168,95 @@ public class StubFileSystem implements FileSystem {
 			if (open) {
 				open = false;
 				openCount--;
+				shared.release();
 			}
+		}
+
+		private SharedChannel shared = null;
+
+		private boolean open = false;
+	}
+
+	/**
+	 * A host file, opened once and shared by every open file of the same
+	 * name. Reads and writes go through its buffer at a given position, so
+	 * that no open file has to seek and nothing is allocated per call.
+	 */
+	private class SharedChannel {
+		SharedChannel(String name, FileChannel channel) {
+			this.name = name;
+			this.channel = channel;
+		}
+
+		int read(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			int done = 0;
+			while (done < length) {
+				buffer.clear();
+				buffer.limit(Math.min(length - done, buffer.capacity()));
+				int amount = channel.read(buffer, pos + done);
+				if (amount <= 0)
+					break;
+
+				buffer.flip();
+				buffer.get(buf, offset + done, amount);
+				done += amount;
+			}
+			return done;
+		}
+
+		void write(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			int done = 0;
+			while (done < length) {
+				int amount = Math.min(length - done, buffer.capacity());
+				buffer.clear();
+				buffer.put(buf, offset + done, amount);
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer, pos + done + buffer.position());
+				done += amount;
+			}
+		}
+
+		/**
+		 * Drop a reference, closing the host file after the last one. A file
+		 * removed while open has left the table already.
+		 */
+		void release() {
+			if (--references > 0)
+				return;
+
+			if (channels.get(name) == this)
+				channels.remove(name);
 
 			try {
-				file.close();
+				channel.close();
 			} catch (IOException e) {
 			}
 		}
 
-		private RandomAccessFile file = null;
+		private String name;
 
-		private boolean open = false;
+		private FileChannel channel;
+
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+		private int references = 0;
 	}
 
 	public int openCount = 0;
 
+	// the most host files open at once; any number of open files may share
+	// each of them
 	private static final int maxOpenFiles = 32;
 
+	// the size of the buffer of each host file
+	private static final int bufferSize = 4096;
+
+	// host files open now, by name
+	private HashMap<String, SharedChannel> channels = new HashMap<String, SharedChannel>();
+
 	private Privilege privilege;
 
 	private File directory;
@@ -0,0 +1,80 @@
+/*
+ * dirtest1.c
+ *
+ * Test mkdir, rmdir and chdir: nested paths, absolute and relative
+ * names, "." and "..", and removing a directory that is not empty.
+ * Run it with the NachosFileSystem; the stub file system has no
+ * directories, so every call fails there.
+ *
+ * Exits with status 0 if every call returned what it should, else with
+ * the number of calls that did not.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+int failures = 0;
+
+void
+check (char *what, char *name, int got, int want)
+{
+    if (got != want) {
+	printf ("%s(\"%s\") returned %d, expected %d\n", what, name, got, want);
+	failures++;
+    }
+}
+
+// open or create name, close it, and return 0, or -1 if that failed
+int
+touch (char *name, int create)
+{
+    int fd = create ? creat (name) : open (name);
+
+    if (fd < 0) {
+	return -1;
+    }
+    close (fd);
+    return 0;
+}
+
+int
+main (int argc, char *argv[])
+{
+    // nested directories, by relative and absolute names
+    check ("mkdir", "d1", mkdir ("d1"), 0);
+    check ("mkdir", "d1/d2", mkdir ("d1/d2"), 0);
+    check ("mkdir", "/d1/d2/d3", mkdir ("/d1/d2/d3"), 0);
+    check ("mkdir", "d1", mkdir ("d1"), -1);
+    check ("mkdir", "nope/d4", mkdir ("nope/d4"), -1);
+
+    // names are relative to the current directory, and ".." climbs out
+    check ("chdir", "d1/d2/d3", chdir ("d1/d2/d3"), 0);
+    check ("creat", "f", touch ("f", 1), 0);
+    check ("chdir", "../..", chdir ("../.."), 0);
+    check ("open", "d2/d3/f", touch ("d2/d3/f", 0), 0);
+    check ("open", "./d2/../d2/d3/f", touch ("./d2/../d2/d3/f", 0), 0);
+    check ("mkdir", "../d1/d2/e", mkdir ("../d1/d2/e"), 0);
+    check ("chdir", "/", chdir ("/"), 0);
+    check ("open", "d1/d2/d3/f", touch ("d1/d2/d3/f", 0), 0);
+    check ("chdir", "d1/d2/d3/f", chdir ("d1/d2/d3/f"), -1);
+    check ("chdir", "nope", chdir ("nope"), -1);
+
+    // only empty directories can be removed, and only by rmdir
+    check ("rmdir", "d1/d2/e", rmdir ("d1/d2/e"), 0);
+    check ("rmdir", "d1/d2/e", rmdir ("d1/d2/e"), -1);
+    check ("rmdir", "d1/d2", rmdir ("d1/d2"), -1);
+    check ("rmdir", "d1/d2/d3", rmdir ("d1/d2/d3"), -1);
+    check ("unlink", "d1/d2/d3", unlink ("d1/d2/d3"), -1);
+    check ("rmdir", "d1/d2/d3/f", rmdir ("d1/d2/d3/f"), -1);
+    check ("unlink", "d1/d2/d3/f", unlink ("d1/d2/d3/f"), 0);
+    check ("rmdir", "d1/d2/d3", rmdir ("d1/d2/d3"), 0);
+    check ("rmdir", "d1/d2", rmdir ("d1/d2"), 0);
+    check ("rmdir", "d1", rmdir ("d1"), 0);
+    check ("chdir", "d1", chdir ("d1"), -1);
+    check ("open", "d1/d2/d3/f", touch ("d1/d2/d3/f", 0), -1);
+
+    if (failures == 0) {
+	printf ("dirtest1: passed\n");
+    }
+    return failures;
+}
@@ -0,0 +1,81 @@
+/*
+ * fallocate1.c
+ *
+ * Test fallocate: preallocating an empty file must not change its
+ * length, and writing only part of the preallocated space, in pieces
+ * written through different descriptors, must read back as exactly the
+ * bytes written.  There is no seek, so a later piece is placed by
+ * reading up to where it goes before writing.  Run it with the
+ * NachosFileSystem; the stub file system allocates no space, so
+ * fallocate fails there.
+ *
+ * Exits with status 0 if every check passed, else with the number of
+ * checks that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define PREALLOCATED (16 * 1024)
+#define FIRST 128
+#define SECOND 4000
+
+char out[FIRST + SECOND], in[PREALLOCATED];
+
+int failures = 0;
+
+void
+check (char *what, int got, int want)
+{
+    if (got != want) {
+	printf ("%s returned %d, expected %d\n", what, got, want);
+	failures++;
+    }
+}
+
+int
+main (int argc, char *argv[])
+{
+    int fd, i;
+
+    for (i = 0; i < FIRST + SECOND; i++) {
+	out[i] = i * 7;
+    }
+
+    fd = creat ("fallocate.dat");
+    if (fd < 0) {
+	printf ("could not create fallocate.dat\n");
+	exit (-1);
+    }
+    check ("fallocate", fallocate (fd, PREALLOCATED), 0);
+    check ("read after fallocate", read (fd, in, PREALLOCATED), 0);
+    check ("write", write (fd, out, FIRST), FIRST);
+    close (fd);
+
+    // the rest of the space stays preallocated but unwritten
+    fd = open ("fallocate.dat");
+    check ("read", read (fd, in, PREALLOCATED), FIRST);
+    check ("write", write (fd, out + FIRST, SECOND), SECOND);
+    // less than the file holds already changes nothing
+    check ("fallocate within the file", fallocate (fd, FIRST), 0);
+    check ("fallocate of -1 bytes", fallocate (fd, -1), -1);
+    close (fd);
+    check ("fallocate of a closed descriptor", fallocate (fd, PREALLOCATED), -1);
+
+    fd = open ("fallocate.dat");
+    check ("read", read (fd, in, PREALLOCATED), FIRST + SECOND);
+    for (i = 0; i < FIRST + SECOND; i++) {
+	if (in[i] != out[i]) {
+	    printf ("byte %d is %d, expected %d\n", i, in[i], out[i]);
+	    failures++;
+	    break;
+	}
+    }
+    close (fd);
+
+    unlink ("fallocate.dat");
+    if (failures == 0) {
+	printf ("fallocate1: passed\n");
+    }
+    return failures;
+}
@@ -0,0 +1,91 @@
+/*
+ * fsynctest1.c
+ *
+ * Test fsync: syncing a file that was just written, a file that was
+ * not written at all, the console, and descriptors that are not open.
+ * After each sync the file is read back through a second descriptor.
+ *
+ * Exits with status 0 if every check passed, else with the number of
+ * checks that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define SIZE 2500
+
+char out[SIZE], in[SIZE];
+
+int failures = 0;
+
+void
+check (char *what, int got, int want)
+{
+    if (got != want) {
+	printf ("%s returned %d, expected %d\n", what, got, want);
+	failures++;
+    }
+}
+
+// read the whole file back and compare it with out
+void
+verify (char *name, int length)
+{
+    int fd = open (name), i;
+
+    if (fd < 0) {
+	printf ("could not reopen %s\n", name);
+	failures++;
+	return;
+    }
+    check ("read", read (fd, in, SIZE), length);
+    for (i = 0; i < length; i++) {
+	if (in[i] != out[i]) {
+	    printf ("byte %d is %d, expected %d\n", i, in[i], out[i]);
+	    failures++;
+	    break;
+	}
+    }
+    close (fd);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int fd, i;
+
+    for (i = 0; i < SIZE; i++) {
+	out[i] = i * 13;
+    }
+
+    fd = creat ("fsync.dat");
+    if (fd < 0) {
+	printf ("could not create fsync.dat\n");
+	exit (-1);
+    }
+    // nothing written yet
+    check ("fsync of an empty file", fsync (fd), 0);
+    verify ("fsync.dat", 0);
+
+    check ("write", write (fd, out, 1000), 1000);
+    check ("fsync", fsync (fd), 0);
+    verify ("fsync.dat", 1000);
+
+    // a second sync with nothing new to write, then more data
+    check ("fsync again", fsync (fd), 0);
+    check ("write", write (fd, out + 1000, SIZE - 1000), SIZE - 1000);
+    check ("fsync", fsync (fd), 0);
+    verify ("fsync.dat", SIZE);
+
+    check ("fsync of stdout", fsync (1), 0);
+    check ("fsync of -1", fsync (-1), -1);
+    check ("fsync of 99", fsync (99), -1);
+    close (fd);
+    check ("fsync of a closed descriptor", fsync (fd), -1);
+
+    unlink ("fsync.dat");
+    if (failures == 0) {
+	printf ("fsynctest1: passed\n");
+    }
+    return failures;
+}
@@ -0,0 +1,66 @@
+/*
+ * journal1.c
+ *
+ * Test removing files while the journal commits.  Creates, writes and
+ * closes four files in turn, removing each one two steps after it was
+ * written, many times over.  Every remove frees sectors while the
+ * journal's commit thread runs in the background, so a commit that
+ * hands freed sectors back to the free map at the wrong time hangs
+ * the kernel long before the last pass.
+ *
+ * Run it with the NachosFileSystem; on the stub file system it only
+ * checks create, write and unlink.
+ *
+ * Exits with status 0 if every call succeeded, else with the number
+ * of calls that failed.
+ */
+
+#include "syscall.h"
+
+#define NUMFILES 4
+#define NUMPASSES 150
+
+char *names[NUMFILES] = {
+    "journal0.dat", "journal1.dat", "journal2.dat", "journal3.dat"
+};
+int sizes[NUMFILES] = { 200, 1500, 3000, 700 };
+
+char buf[3000];
+
+int
+main (int argc, char *argv[])
+{
+    int pass, i, fd, failures = 0;
+
+    for (i = 0; i < sizeof (buf); i++) {
+	buf[i] = i;
+    }
+
+    for (pass = 0; pass < NUMPASSES; pass++) {
+	for (i = 0; i < NUMFILES; i++) {
+	    fd = creat (names[i]);
+	    if (fd < 0) {
+		failures++;
+		continue;
+	    }
+	    if (write (fd, buf, sizes[i]) != sizes[i]) {
+		failures++;
+	    }
+	    close (fd);
+
+	    // the file two behind is gone already on the first pass
+	    if (unlink (names[(i + 2) % NUMFILES]) != 0 && pass > 0) {
+		failures++;
+	    }
+	}
+    }
+
+    for (i = 0; i < NUMFILES; i++) {
+	unlink (names[i]);
+    }
+
+    if (failures > 0) {
+	printf ("journal1: %d calls failed\n", failures);
+    }
+    return failures;
+}
@@ -0,0 +1,153 @@
+/*
+ * shm1.c
+ *
+ * Test shared memory under memory pressure.  Run without arguments,
+ * it creates a segment and execs itself twice, as a producer and a
+ * consumer that attach the same segment.  The producer fills every
+ * page of the segment and then touches an array larger than physical
+ * memory, so the segment pages are swapped out.  The consumer checks
+ * the segment, touches its own array, and checks it again twice, so
+ * that segment pages swapped in and evicted again without being
+ * written must still hold the producer's data.
+ *
+ * Exits with status 0 if both processes saw the right data, else with
+ * the number of words that were wrong.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define KEY 120
+#define PAGESIZE 1024
+#define SEGPAGES 8
+#define WORDS (SEGPAGES * PAGESIZE / sizeof (int))
+#define BIGPAGES 40
+
+// the first two words of the segment are the producer's and consumer's flags
+#define READY 0
+#define DONE 1
+#define FIRST 2
+
+char big[BIGPAGES * PAGESIZE];
+
+void
+touch_big (int value)
+{
+    int i;
+
+    for (i = 0; i < BIGPAGES; i++) {
+	big[i * PAGESIZE] = value;
+    }
+}
+
+int
+check (volatile int *seg)
+{
+    int i, bad = 0;
+
+    for (i = FIRST; i < WORDS; i++) {
+	if (seg[i] != i * 7 + 1) {
+	    bad++;
+	}
+    }
+    return bad;
+}
+
+volatile int *
+attach (void)
+{
+    int shmid = shmget (KEY, SEGPAGES * PAGESIZE);
+
+    if (shmid < 0) {
+	printf ("shmget failed\n");
+	exit (-1);
+    }
+    volatile int *seg = shmat (shmid);
+    if (seg == (volatile int *) -1) {
+	printf ("shmat failed\n");
+	exit (-1);
+    }
+    return seg;
+}
+
+int
+producer (void)
+{
+    volatile int *seg = attach ();
+    int i;
+
+    for (i = FIRST; i < WORDS; i++) {
+	seg[i] = i * 7 + 1;
+    }
+    touch_big (1);
+    seg[READY] = 1;
+
+    // stay attached until the consumer is done
+    while (!seg[DONE]) {
+	touch_big (2);
+    }
+    return 0;
+}
+
+int
+consumer (void)
+{
+    volatile int *seg = attach ();
+    int pass, bad = 0;
+
+    while (!seg[READY]) {
+	touch_big (3);
+    }
+    for (pass = 0; pass < 3; pass++) {
+	bad += check (seg);
+	touch_big (pass);
+    }
+    seg[DONE] = 1;
+    if (bad > 0) {
+	printf ("consumer: %d words wrong\n", bad);
+    }
+    return bad;
+}
+
+int
+main (int argc, char *argv[])
+{
+    char *producerargv[2] = { "shm1.coff", "producer" };
+    char *consumerargv[2] = { "shm1.coff", "consumer" };
+    int producerpid, consumerpid, status, result = 0;
+
+    if (argc > 1 && strcmp (argv[1], "producer") == 0) {
+	return producer ();
+    }
+    if (argc > 1 && strcmp (argv[1], "consumer") == 0) {
+	return consumer ();
+    }
+
+    // hold the segment so it outlives whichever child exits first
+    if (shmget (KEY, SEGPAGES * PAGESIZE) < 0) {
+	printf ("shmget failed\n");
+	exit (-1);
+    }
+    producerpid = exec ("shm1.coff", 2, producerargv);
+    consumerpid = exec ("shm1.coff", 2, consumerargv);
+    if (producerpid < 0 || consumerpid < 0) {
+	printf ("exec failed\n");
+	exit (-1);
+    }
+
+    if (join (producerpid, &status) != 1 || status != 0) {
+	printf ("producer failed\n");
+	result++;
+    }
+    if (join (consumerpid, &status) != 1) {
+	printf ("consumer failed\n");
+	result++;
+    } else {
+	result += status;
+    }
+    if (result == 0) {
+	printf ("shm1: passed\n");
+    }
+    return result;
+}
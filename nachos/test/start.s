@@ -67,3 +67,13 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(brk, syscallBrk)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(fsync, syscallFsync)
+	SYSCALLSTUB(mkdir, syscallMkdir)
+	SYSCALLSTUB(rmdir, syscallRmdir)
+	SYSCALLSTUB(chdir, syscallChdir)
+	SYSCALLSTUB(fallocate, syscallFallocate)
@@ -25,6 +25,16 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallBrk		13
+#define syscallSbrk		14
+#define syscallShmget		15
+#define syscallShmat		16
+#define syscallShmdt		17
+#define syscallFsync		18
+#define syscallMkdir		19
+#define syscallRmdir		20
+#define syscallChdir		21
+#define syscallFallocate	22
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -246,6 +256,103 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Set the end of the calling process's heap, the program break, to addr. The
+ * heap starts right after the executable's sections and may grow up to a
+ * limit set by the kernel. Pages added to the heap are zero-filled, and are
+ * only given memory once they are touched. Memory above a lowered break is
+ * released, and its contents are lost.
+ *
+ * Returns 0 on success, or -1 if addr is outside the range the heap may
+ * occupy.
+ */
+int brk(void *addr);
+
+/**
+ * Move the program break by increment bytes, which may be negative. sbrk(0)
+ * returns the current break.
+ *
+ * Returns the previous program break on success, or (void *) -1 if the new
+ * break would be outside the range the heap may occupy.
+ */
+void *sbrk(int increment);
+
+/**
+ * Look up the shared memory segment named key, creating it with size bytes,
+ * rounded up to whole pages, if there is none yet. A new segment is
+ * zero-filled. The calling process holds the segment until it exits, and a
+ * segment is destroyed once no process holds it.
+ *
+ * Returns the ID of the segment, or -1 if an existing segment is smaller than
+ * size or a new one could not be created.
+ */
+int shmget(int key, int size);
+
+/**
+ * Attach the shared memory segment shmid, as returned by shmget(), to the
+ * calling process's address space. Every process that attaches a segment sees
+ * the same memory, so a write by one is immediately visible to the others.
+ *
+ * Returns the address the segment is attached at, or (void *) -1 if an error
+ * occurred.
+ */
+void *shmat(int shmid);
+
+/**
+ * Detach the shared memory segment attached at addr. The segment itself, and
+ * its contents, live on for as long as some process holds it.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at addr.
+ */
+int shmdt(void *addr);
+
+/**
+ * Write everything written to the file referred to by fileDescriptor to the
+ * disk, and wait until it is there. Only the changes to this file are waited
+ * for, not those other processes are making to other files.
+ *
+ * Returns 0 on success, or -1 if fileDescriptor is not open.
+ */
+int fsync(int fileDescriptor);
+
+/**
+ * Make a new, empty directory named name. A name that does not start with '/'
+ * is relative to the current directory, and "." and ".." may be used in it.
+ * The directory that will hold the new one must exist.
+ *
+ * Returns 0 on success, or -1 if the name is in use or the file system has no
+ * directories.
+ */
+int mkdir(char *name);
+
+/**
+ * Remove the directory named name, which must be empty.
+ *
+ * Returns 0 on success, or -1 if there is no such directory or it is not
+ * empty.
+ */
+int rmdir(char *name);
+
+/**
+ * Make the directory named name the current directory, which every other
+ * name not starting with '/' is relative to. A process starts in the current
+ * directory of the process that executed it.
+ *
+ * Returns 0 on success, or -1 if there is no such directory.
+ */
+int chdir(char *name);
+
+/**
+ * Set aside room on the disk for the first length bytes of the file referred
+ * to by fileDescriptor, in as few contiguous runs as the free space allows, so
+ * that writing them later needs no more space. The length of the file does
+ * not change.
+ *
+ * Returns 0 on success, or -1 if fileDescriptor is not open, the disk is too
+ * full, or the file system does not allocate space.
+ */
+int fallocate(int fileDescriptor, int length);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
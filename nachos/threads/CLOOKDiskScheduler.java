@@ -0,0 +1,33 @@
+package nachos.threads;
+
+import java.util.Iterator;
+
+/**
+ * A disk scheduler using circular LOOK. The head only serves requests while
+ * sweeping toward higher sectors; after the highest request it jumps back to
+ * the lowest one and sweeps up again. Every request waits at most one sweep,
+ * and runs of consecutive sectors are met in the order they lie on disk.
+ */
+public class CLOOKDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new C-LOOK disk scheduler.
+	 */
+	public CLOOKDiskScheduler() {
+	}
+
+	protected SynchDisk.Request select(int headSector) {
+		SynchDisk.Request ahead = null;
+		SynchDisk.Request lowest = null;
+		for (Iterator<SynchDisk.Request> i = queue.iterator(); i.hasNext();) {
+			SynchDisk.Request request = i.next();
+			int sector = request.getSector();
+			if (sector >= headSector && (ahead == null || sector < ahead.getSector())) {
+				ahead = request;
+			}
+			if (lowest == null || sector < lowest.getSector()) {
+				lowest = request;
+			}
+		}
+		return ahead != null ? ahead : lowest;
+	}
+}
@@ -0,0 +1,93 @@
+package nachos.threads;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Decides the order in which <tt>SynchDisk</tt> hands queued requests to the
+ * disk. Requests are kept in arrival order; a subclass only has to pick which
+ * one goes next, given where the disk head is.
+ *
+ * <p>
+ * Interrupts must be disabled whenever a disk scheduler is used, since the
+ * disk interrupt handler takes requests off the queue.
+ *
+ * @see nachos.threads.SynchDisk
+ */
+public abstract class DiskScheduler {
+	/**
+	 * Allocate a new disk scheduler.
+	 */
+	public DiskScheduler() {
+	}
+
+	/**
+	 * Add a request to the queue.
+	 *
+	 * @param request the request.
+	 */
+	public void add(SynchDisk.Request request) {
+		queue.add(request);
+	}
+
+	/**
+	 * Test whether any requests are queued.
+	 *
+	 * @return <tt>true</tt> if the queue is empty.
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Remove and return the request to serve next.
+	 *
+	 * @param headSector the sector the disk head is at.
+	 * @return the next request, or <tt>null</tt> if none are queued.
+	 */
+	public SynchDisk.Request next(int headSector) {
+		if (queue.isEmpty()) {
+			return null;
+		}
+		SynchDisk.Request request = select(headSector);
+		queue.remove(request);
+		return request;
+	}
+
+	/**
+	 * Remove and return a queued request for <i>sector</i> in the given
+	 * direction, so that it can be merged into a transfer that ends just
+	 * before it. A request is only taken if no earlier request for the same
+	 * sector is still waiting, so requests for one sector are never
+	 * reordered.
+	 *
+	 * @param sector the sector wanted.
+	 * @param writing <tt>true</tt> for a write, <tt>false</tt> for a read.
+	 * @return the request, or <tt>null</tt> if there is none to merge.
+	 */
+	public SynchDisk.Request take(int sector, boolean writing) {
+		for (Iterator<SynchDisk.Request> i = queue.iterator(); i.hasNext();) {
+			SynchDisk.Request request = i.next();
+			if (request.getSector() == sector) {
+				if (request.isWrite() != writing) {
+					return null;
+				}
+				i.remove();
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Pick the request to serve next. The queue is never empty. Of several
+	 * equally good requests, the one that arrived first should win.
+	 *
+	 * @param headSector the sector the disk head is at.
+	 * @return a request in the queue.
+	 */
+	protected abstract SynchDisk.Request select(int headSector);
+
+	/** The queued requests, in arrival order. */
+	protected LinkedList<SynchDisk.Request> queue = new LinkedList<SynchDisk.Request>();
+}
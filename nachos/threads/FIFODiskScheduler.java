@@ -0,0 +1,16 @@
+package nachos.threads;
+
+/**
+ * A disk scheduler that serves requests in the order they were made.
+ */
+public class FIFODiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new FIFO disk scheduler.
+	 */
+	public FIFODiskScheduler() {
+	}
+
+	protected SynchDisk.Request select(int headSector) {
+		return queue.getFirst();
+	}
+}
@@ -349,8 +349,11 @@ public class KThread {
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (idleTask != null)
+						idleTask.run();
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -513,6 +516,18 @@ public class KThread {
 	 */
 	private int id = numCreated++;
 
+	/**
+	 * Set a task for the idle thread to run each time it gets the CPU, that
+	 * is, whenever no other thread is ready. The task runs on the idle
+	 * thread, so it must never block, and it should do only a small amount of
+	 * work per call so that a thread that becomes ready is not kept waiting.
+	 * 
+	 * @param task the task to run when idle, or <tt>null</tt> for none.
+	 */
+	public static void setIdleTask(Runnable task) {
+		idleTask = task;
+	}
+
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
@@ -524,6 +539,8 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
+	private static Runnable idleTask = null;
+
 	// ----------------------------------------------------- THE CODE BELOW IS A
 	// TESTING METHODS
 	private static void joinTest1() {
@@ -0,0 +1,99 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Statistics the kernel keeps about its own work, such as its caches and
+ * swapping, as opposed to those the machine keeps about the hardware. They
+ * are printed when the kernel halts.
+ */
+public final class KernelStats {
+	/**
+	 * Allocate a new kernel statistics object.
+	 */
+	public KernelStats() {
+	}
+
+	/**
+	 * Print out the statistics in this object.
+	 */
+	public void print() {
+		System.out.println("Buffer cache: hits " + numCacheHits + ", misses "
+				+ numCacheMisses + ", write-backs " + numCacheWriteBacks
+				+ ", read ahead " + numReadAheadBlocks);
+		System.out.println("Log: segments written " + numSegmentsWritten
+				+ ", cleaned " + numSegmentsCleaned + ", blocks copied "
+				+ numCleanerCopies + ", checkpoints " + numCheckpoints);
+		System.out.println("Journal: commits " + numJournalCommits
+				+ ", sectors logged " + numJournalBlocks + ", checkpoints "
+				+ numJournalCheckpoints);
+		System.out.println("Name cache: hits " + numNameCacheHits + ", misses "
+				+ numNameCacheMisses);
+		System.out.println("Kernel paging: faults on TLB misses " + numTLBMissFaults
+				+ ", swap file reads " + numSwapReads + ", swap file writes "
+				+ numSwapWrites);
+		System.out.println("Page merging: pages merged " + numPagesMerged
+				+ ", merges broken " + numMergesBroken
+				+ ", most frames saved " + maxFramesSaved);
+	}
+
+	/** The total number of disk blocks found in the buffer cache. */
+	public int numCacheHits = 0;
+
+	/** The total number of disk blocks not found in the buffer cache. */
+	public int numCacheMisses = 0;
+
+	/** The total number of dirty buffers written back to the disk. */
+	public int numCacheWriteBacks = 0;
+
+	/** The total number of disk blocks read into the buffer cache ahead of use. */
+	public int numReadAheadBlocks = 0;
+
+	/** The total number of log segments written to the simulated disk. */
+	public int numSegmentsWritten = 0;
+
+	/** The total number of log segments emptied by the segment cleaner. */
+	public int numSegmentsCleaned = 0;
+
+	/** The total number of live blocks the segment cleaner has copied. */
+	public int numCleanerCopies = 0;
+
+	/** The total number of log checkpoints written. */
+	public int numCheckpoints = 0;
+
+	/** The total number of journal transactions committed. */
+	public int numJournalCommits = 0;
+
+	/** The total number of metadata sectors written to the journal. */
+	public int numJournalBlocks = 0;
+
+	/** The total number of times the journal was written in place and emptied. */
+	public int numJournalCheckpoints = 0;
+
+	/** The total number of directory lookups found in the name cache. */
+	public int numNameCacheHits = 0;
+
+	/** The total number of directory lookups not found in the name cache. */
+	public int numNameCacheMisses = 0;
+
+	/**
+	 * The total number of page faults found on TLB misses, which the processor
+	 * counts only as TLB misses.
+	 */
+	public int numTLBMissFaults = 0;
+
+	/** The total number of pages read from the swap file. */
+	public int numSwapReads = 0;
+
+	/** The total number of pages written to the swap file. */
+	public int numSwapWrites = 0;
+
+	/** The total number of pages merged into a frame shared with other pages. */
+	public int numPagesMerged = 0;
+
+	/** The total number of merged pages given a private frame again. */
+	public int numMergesBroken = 0;
+
+	/** The largest number of frames saved by page merging at any one time. */
+	public int maxFramesSaved = 0;
+}
@@ -0,0 +1,42 @@
+package nachos.threads;
+
+import java.util.Iterator;
+
+/**
+ * A disk scheduler using the elevator algorithm. The head sweeps toward
+ * higher sectors serving every request it passes, then turns around and
+ * sweeps back down. Like most real implementations, it turns around at the
+ * last request in its direction rather than at the edge of the disk.
+ */
+public class SCANDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new SCAN disk scheduler.
+	 */
+	public SCANDiskScheduler() {
+	}
+
+	protected SynchDisk.Request select(int headSector) {
+		SynchDisk.Request request = nearestAhead(headSector);
+		if (request == null) {
+			ascending = !ascending;
+			request = nearestAhead(headSector);
+		}
+		return request;
+	}
+
+	// the closest request at or past headSector in the current direction
+	private SynchDisk.Request nearestAhead(int headSector) {
+		SynchDisk.Request best = null;
+		for (Iterator<SynchDisk.Request> i = queue.iterator(); i.hasNext();) {
+			SynchDisk.Request request = i.next();
+			int distance = ascending ? request.getSector() - headSector
+					: headSector - request.getSector();
+			if (distance >= 0 && (best == null || distance < Math.abs(best.getSector() - headSector))) {
+				best = request;
+			}
+		}
+		return best;
+	}
+
+	private boolean ascending = true;
+}
@@ -0,0 +1,28 @@
+package nachos.threads;
+
+import java.util.Iterator;
+
+/**
+ * A disk scheduler that serves the request closest to the disk head next
+ * (shortest seek time first). This keeps seeks short, but a request far from
+ * a busy region of the disk can wait for a long time.
+ */
+public class SSTFDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new SSTF disk scheduler.
+	 */
+	public SSTFDiskScheduler() {
+	}
+
+	protected SynchDisk.Request select(int headSector) {
+		SynchDisk.Request best = null;
+		for (Iterator<SynchDisk.Request> i = queue.iterator(); i.hasNext();) {
+			SynchDisk.Request request = i.next();
+			if (best == null || Math.abs(request.getSector() - headSector)
+					< Math.abs(best.getSector() - headSector)) {
+				best = request;
+			}
+		}
+		return best;
+	}
+}
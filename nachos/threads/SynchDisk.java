@@ -0,0 +1,288 @@
+package nachos.threads;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A synchronous interface to the machine's disk. Any number of threads may
+ * call <tt>readSector()</tt> and <tt>writeSector()</tt> at once; their
+ * requests are queued and handed to the disk one at a time, and each caller
+ * sleeps until its own request has completed.
+ *
+ * <p>
+ * The order requests are served in is up to a <tt>DiskScheduler</tt>, chosen
+ * by <tt>SynchDisk.scheduler</tt>. Once the scheduler has picked a request,
+ * queued requests for the sectors right after it in the same direction are
+ * merged into one transfer of up to <tt>SynchDisk.maxTransferSectors</tt>
+ * sectors, which pays for only one seek and rotational delay.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new <tt>SynchDisk</tt>.
+	 *
+	 * @param disk the underlying disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+		scheduler = (DiskScheduler) Lib.constructObject(Config.getString(
+				"SynchDisk.scheduler", "nachos.threads.CLOOKDiskScheduler"));
+		maxTransferSectors = Config.getInteger("SynchDisk.maxTransferSectors",
+				Disk.sectorsPerTrack);
+		Lib.assertTrue(maxTransferSectors > 0);
+		transfer = new LinkedList<Request>();
+		transferBuffer = new byte[maxTransferSectors * Disk.sectorSize];
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Read sector <i>sector</i> into <i>data</i>, starting at <i>offset</i>.
+	 * Blocks until the data has been read.
+	 *
+	 * @param sector the sector to read.
+	 * @param data the array to read the sector into.
+	 * @param offset the first byte of <i>data</i> to transfer to.
+	 */
+	public void readSector(int sector, byte[] data, int offset) {
+		doRequest(new Request(sector, data, offset, false));
+	}
+
+	/**
+	 * Write <i>data</i>, starting at <i>offset</i>, to sector <i>sector</i>.
+	 * Blocks until the data has been written.
+	 *
+	 * @param sector the sector to write.
+	 * @param data the array to write the sector from.
+	 * @param offset the first byte of <i>data</i> to transfer from.
+	 */
+	public void writeSector(int sector, byte[] data, int offset) {
+		doRequest(new Request(sector, data, offset, true));
+	}
+
+	/**
+	 * Read sector <i>sectors[i]</i> into <i>data[i]</i> for every <i>i</i>.
+	 * All the reads are queued at once, so the scheduler can order and merge
+	 * them. Blocks until every sector has been read.
+	 *
+	 * @param sectors the sectors to read.
+	 * @param data the arrays to read each sector into.
+	 */
+	public void readSectors(int[] sectors, byte[][] data) {
+		Request[] requests = new Request[sectors.length];
+		for (int i = 0; i < sectors.length; i++) {
+			requests[i] = new Request(sectors[i], data[i], 0, false);
+		}
+		doRequests(requests);
+	}
+
+	/**
+	 * Write <i>data[i]</i> to sector <i>sectors[i]</i> for every <i>i</i>.
+	 * All the writes are queued at once, so the scheduler can order and
+	 * merge them. Blocks until every sector has been written.
+	 *
+	 * @param sectors the sectors to write.
+	 * @param data the contents of each sector.
+	 */
+	public void writeSectors(int[] sectors, byte[][] data) {
+		Request[] requests = new Request[sectors.length];
+		for (int i = 0; i < sectors.length; i++) {
+			requests[i] = new Request(sectors[i], data[i], 0, true);
+		}
+		doRequests(requests);
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return disk.getNumSectors();
+	}
+
+	private void doRequest(Request request) {
+		doRequests(new Request[] { request });
+	}
+
+	private void doRequests(Request[] requests) {
+		for (int i = 0; i < requests.length; i++) {
+			Lib.assertTrue(requests[i].sector >= 0 && requests[i].sector < disk.getNumSectors());
+		}
+
+		// the queue is shared with the interrupt handler, which cannot block
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < requests.length; i++) {
+			scheduler.add(requests[i]);
+		}
+		if (!disk.isBusy()) {
+			startNext();
+		}
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < requests.length; i++) {
+			requests[i].done.P();
+		}
+	}
+
+	/**
+	 * Hand the next request the scheduler picks to the disk, together with
+	 * any queued requests it can be merged with. Interrupts must be disabled.
+	 */
+	private void startNext() {
+		Request first = scheduler.next(headSector);
+		if (first == null) {
+			return;
+		}
+		transfer.add(first);
+		Request request;
+		while (transfer.size() < maxTransferSectors
+				&& first.sector + transfer.size() < disk.getNumSectors()
+				&& (request = scheduler.take(first.sector + transfer.size(), first.writing)) != null) {
+			transfer.add(request);
+		}
+		int count = transfer.size();
+		headSector = first.sector + count;
+
+		// a single request transfers straight to or from its own buffer
+		if (count == 1) {
+			if (first.writing) {
+				disk.writeRequest(first.sector, first.data, first.offset);
+			}
+			else {
+				disk.readRequest(first.sector, first.data, first.offset);
+			}
+			return;
+		}
+		Lib.debug(dbgDisk, "merged " + count + " requests at sector " + first.sector);
+		if (first.writing) {
+			for (int i = 0; i < count; i++) {
+				request = transfer.get(i);
+				System.arraycopy(request.data, request.offset, transferBuffer,
+						i * Disk.sectorSize, Disk.sectorSize);
+			}
+			disk.writeRequest(first.sector, count, transferBuffer, 0);
+		}
+		else {
+			disk.readRequest(first.sector, count, transferBuffer, 0);
+		}
+	}
+
+	private void requestDone() {
+		// hand each merged read its own sector before the buffer is reused
+		if (transfer.size() > 1 && !transfer.getFirst().writing) {
+			for (int i = 0; i < transfer.size(); i++) {
+				Request request = transfer.get(i);
+				System.arraycopy(transferBuffer, i * Disk.sectorSize, request.data,
+						request.offset, Disk.sectorSize);
+			}
+		}
+		LinkedList<Request> finished = new LinkedList<Request>(transfer);
+		transfer.clear();
+		startNext();
+		for (Request request : finished) {
+			request.done.V();
+		}
+	}
+
+	/**
+	 * Test that this module is working. The sectors used are restored
+	 * afterwards, so the contents of the disk are left alone.
+	 */
+	public static void selfTest(final SynchDisk synchDisk) {
+		final int numSectors = Math.min(4, synchDisk.getNumSectors());
+		final byte[] saved = new byte[numSectors * Disk.sectorSize];
+		for (int i = 0; i < numSectors; i++) {
+			synchDisk.readSector(i, saved, i * Disk.sectorSize);
+		}
+
+		// two threads write their own sectors at the same time
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				byte[] data = new byte[Disk.sectorSize];
+				for (int i = 1; i < numSectors; i += 2) {
+					Arrays.fill(data, (byte) i);
+					synchDisk.writeSector(i, data, 0);
+				}
+			}
+		});
+		writer.setName("disk test").fork();
+		byte[] data = new byte[Disk.sectorSize];
+		for (int i = 0; i < numSectors; i += 2) {
+			Arrays.fill(data, (byte) i);
+			synchDisk.writeSector(i, data, 0);
+		}
+		writer.join();
+
+		for (int i = 0; i < numSectors; i++) {
+			synchDisk.readSector(i, data, 0);
+			for (int j = 0; j < Disk.sectorSize; j++) {
+				Lib.assertTrue(data[j] == (byte) i);
+			}
+		}
+
+		for (int i = 0; i < numSectors; i++) {
+			synchDisk.writeSector(i, saved, i * Disk.sectorSize);
+		}
+	}
+
+	/**
+	 * A request waiting for the disk.
+	 */
+	public static class Request {
+		Request(int sector, byte[] data, int offset, boolean writing) {
+			this.sector = sector;
+			this.data = data;
+			this.offset = offset;
+			this.writing = writing;
+		}
+
+		/**
+		 * Return the sector this request is for.
+		 *
+		 * @return the sector.
+		 */
+		public int getSector() {
+			return sector;
+		}
+
+		/**
+		 * Test whether this request is a write.
+		 *
+		 * @return <tt>true</tt> for a write, <tt>false</tt> for a read.
+		 */
+		public boolean isWrite() {
+			return writing;
+		}
+
+		int sector;
+		byte[] data;
+		int offset;
+		boolean writing;
+		// signalled by the interrupt handler when the request completes
+		Semaphore done = new Semaphore(0);
+	}
+
+	private Disk disk;
+
+	// decides which of the requests not yet handed to the disk goes next
+	private DiskScheduler scheduler;
+
+	// the requests the disk is working on, in sector order
+	private LinkedList<Request> transfer;
+
+	// holds the sectors of a merged transfer
+	private byte[] transferBuffer;
+
+	private int maxTransferSectors;
+
+	// the sector just past the last transfer, where the head is
+	private int headSector = 0;
+
+	private static final char dbgDisk = 'd';
+}
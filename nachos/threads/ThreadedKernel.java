@@ -18,11 +18,23 @@ public class ThreadedKernel extends Kernel {
 	 * alarm, and enables interrupts. Creates a file system if necessary.
 	 */
 	public void initialize(String[] args) {
+		stats = new KernelStats();
+
 		// set scheduler
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
-		// set fileSystem
+		// start threading
+		new KThread(null);
+
+		alarm = new Alarm();
+
+		if (Machine.disk() != null)
+			synchDisk = new SynchDisk(Machine.disk());
+
+		Machine.interrupt().enable();
+
+		// set fileSystem, after the disk is up since a file system may use it
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
 			fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
@@ -30,13 +42,6 @@ public class ThreadedKernel extends Kernel {
 			fileSystem = Machine.stubFileSystem();
 		else
 			fileSystem = null;
-
-		// start threading
-		new KThread(null);
-
-		alarm = new Alarm();
-
-		Machine.interrupt().enable();
 	}
 
 	/**
@@ -56,6 +61,10 @@ public class ThreadedKernel extends Kernel {
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+		// the test writes raw sectors, so leave a disk holding a file system alone
+		if (synchDisk != null && fileSystem == Machine.stubFileSystem()) {
+			SynchDisk.selfTest(synchDisk);
+		}
 	}
 
 	/**
@@ -69,6 +78,7 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		stats.print();
 		Machine.halt();
 	}
 
@@ -81,6 +91,15 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/** Globally accessible reference to the kernel's statistics. */
+	public static KernelStats stats = null;
+
+	/**
+	 * Globally accessible reference to the synchronized disk, or <tt>null</tt>
+	 * if the machine has no disk.
+	 */
+	public static SynchDisk synchDisk = null;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
@@ -99,4 +118,12 @@ public class ThreadedKernel extends Kernel {
 	private static GameMatch dummy8 = null;
 
 	private static Future dummy9 = null;
+
+	private static FIFODiskScheduler dummy10 = null;
+
+	private static SSTFDiskScheduler dummy11 = null;
+
+	private static SCANDiskScheduler dummy12 = null;
+
+	private static CLOOKDiskScheduler dummy13 = null;
 }
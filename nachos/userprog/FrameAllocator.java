@@ -0,0 +1,277 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A buddy allocator for physical pages. Free memory is kept as blocks of
+ * 2<sup><i>k</i></sup> pages aligned to their size, one free list per order
+ * <i>k</i>. Allocating a page splits the smallest free block that is large
+ * enough, and freeing a page merges it with its buddy for as long as the buddy
+ * is free too, so runs of contiguous pages stay available for
+ * <tt>allocateContiguous()</tt>.
+ *
+ * <p>
+ * The free lists are threaded through arrays indexed by physical page number,
+ * so nothing is allocated or boxed per page, and a bitmap records which pages
+ * are free. A <tt>FrameAllocator</tt> does no locking of its own; callers must
+ * serialize access to it.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator managing physical pages 0 through
+	 * <i>numPages</i> - 1, all of them free.
+	 *
+	 * @param numPages the number of physical pages.
+	 */
+	public FrameAllocator(int numPages) {
+		this.numPages = numPages;
+		maxOrder = 0;
+		while ((1 << (maxOrder + 1)) <= numPages) {
+			maxOrder++;
+		}
+		freeLists = new int[maxOrder + 1];
+		for (int k = 0; k <= maxOrder; k++) {
+			freeLists[k] = -1;
+		}
+		next = new int[numPages];
+		prev = new int[numPages];
+		blockOrder = new byte[numPages];
+		freeMap = new long[(numPages + 63) / 64];
+
+		// carve memory into the largest aligned blocks that fit
+		int ppn = 0;
+		while (ppn < numPages) {
+			int order = maxOrder;
+			while ((ppn & ((1 << order) - 1)) != 0 || ppn + (1 << order) > numPages) {
+				order--;
+			}
+			markFree(ppn, 1 << order, true);
+			insertBlock(ppn, order);
+			ppn += 1 << order;
+		}
+		numFree = numPages;
+	}
+
+	/**
+	 * Allocate a single physical page.
+	 *
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public int allocate() {
+		return allocateBlock(0);
+	}
+
+	/**
+	 * Allocate <i>count</i> physical pages, not necessarily contiguous, and
+	 * store their numbers in <i>ppns</i>. Either all of the pages are
+	 * allocated or none are.
+	 *
+	 * @param ppns  the array to store the physical page numbers in.
+	 * @param count the number of pages to allocate.
+	 * @return <tt>true</tt> if the pages were allocated.
+	 */
+	public boolean allocate(int[] ppns, int count) {
+		Lib.assertTrue(count >= 0 && count <= ppns.length);
+
+		if (count > numFree) {
+			return false;
+		}
+		int filled = 0;
+		while (filled < count) {
+			// take whole blocks at a time, largest first, instead of
+			// splitting one page off at a time
+			int order = largestFreeOrder(count - filled);
+			int first = allocateBlock(order);
+			for (int i = 0; i < (1 << order); i++) {
+				ppns[filled++] = first + i;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Allocate <i>count</i> physically contiguous pages.
+	 *
+	 * @param count the number of pages to allocate.
+	 * @return the first physical page of the run, or -1 if no run of that
+	 *         length is free.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		int order = 0;
+		while ((1 << order) < count) {
+			order++;
+		}
+		if (order > maxOrder) {
+			return -1;
+		}
+		int first = allocateBlock(order);
+		if (first == -1) {
+			return -1;
+		}
+		// give back the part of the block beyond the run
+		for (int ppn = first + count; ppn < first + (1 << order); ppn++) {
+			free(ppn);
+		}
+		return first;
+	}
+
+	/**
+	 * Free a single physical page.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void free(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPages && !isFree(ppn));
+
+		markFree(ppn, 1, true);
+		numFree++;
+		int order = 0;
+		// merge with the buddy for as long as it is a whole free block
+		while (order < maxOrder) {
+			int buddy = ppn ^ (1 << order);
+			if (buddy >= numPages || !isFree(buddy) || blockOrder[buddy] != order + 1) {
+				break;
+			}
+			removeBlock(buddy, order);
+			ppn = Math.min(ppn, buddy);
+			order++;
+		}
+		insertBlock(ppn, order);
+	}
+
+	/**
+	 * Free the first <i>count</i> physical pages listed in <i>ppns</i>.
+	 *
+	 * @param ppns  the physical page numbers.
+	 * @param count the number of pages to free.
+	 */
+	public void free(int[] ppns, int count) {
+		for (int i = 0; i < count; i++) {
+			free(ppns[i]);
+		}
+	}
+
+	/**
+	 * Test whether a physical page is free.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page is free.
+	 */
+	public boolean isFree(int ppn) {
+		return (freeMap[ppn >>> 6] & (1L << ppn)) != 0;
+	}
+
+	/**
+	 * Return the number of free physical pages.
+	 *
+	 * @return the number of free pages.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Take a free block of 2<sup><i>order</i></sup> pages off the free lists,
+	 * splitting a larger block if none of that size is free.
+	 */
+	private int allocateBlock(int order) {
+		int k = order;
+		while (k <= maxOrder && freeLists[k] == -1) {
+			k++;
+		}
+		if (k > maxOrder) {
+			return -1;
+		}
+		int first = freeLists[k];
+		removeBlock(first, k);
+		// put the upper halves back until the block is the right size
+		while (k > order) {
+			k--;
+			insertBlock(first + (1 << k), k);
+		}
+		markFree(first, 1 << order, false);
+		numFree -= 1 << order;
+		return first;
+	}
+
+	/**
+	 * Return the order of the largest free block no larger than <i>limit</i>
+	 * pages. There must be at least one free page.
+	 */
+	private int largestFreeOrder(int limit) {
+		int order = 0;
+		while (order < maxOrder && (2 << order) <= limit) {
+			order++;
+		}
+		while (order > 0 && !hasFreeBlock(order)) {
+			order--;
+		}
+		return order;
+	}
+
+	// true if there is a free block of at least this order to split
+	private boolean hasFreeBlock(int order) {
+		for (int k = order; k <= maxOrder; k++) {
+			if (freeLists[k] != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void insertBlock(int first, int order) {
+		// orders are stored plus one, so that 0 means not a free block head
+		blockOrder[first] = (byte) (order + 1);
+		prev[first] = -1;
+		next[first] = freeLists[order];
+		if (freeLists[order] != -1) {
+			prev[freeLists[order]] = first;
+		}
+		freeLists[order] = first;
+	}
+
+	private void removeBlock(int first, int order) {
+		blockOrder[first] = 0;
+		if (prev[first] != -1) {
+			next[prev[first]] = next[first];
+		} else {
+			freeLists[order] = next[first];
+		}
+		if (next[first] != -1) {
+			prev[next[first]] = prev[first];
+		}
+	}
+
+	private void markFree(int first, int count, boolean free) {
+		for (int ppn = first; ppn < first + count; ppn++) {
+			if (free) {
+				freeMap[ppn >>> 6] |= 1L << ppn;
+			} else {
+				freeMap[ppn >>> 6] &= ~(1L << ppn);
+			}
+		}
+	}
+
+	private int numPages;
+
+	private int numFree;
+
+	// the largest block order that fits in memory
+	private int maxOrder;
+
+	// first block on the free list of each order, or -1
+	private int[] freeLists;
+
+	// free list links, valid for the first page of a free block
+	private int[] next;
+
+	private int[] prev;
+
+	// order plus one of the free block starting at each page, or 0
+	private byte[] blockOrder;
+
+	// one bit per physical page, set while the page is free
+	private long[] freeMap;
+}
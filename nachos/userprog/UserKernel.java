@@ -3,7 +3,8 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
+import nachos.filesys.*;
+import java.util.Arrays;
 
 /**
  * A kernel that can support multiple user processes.
@@ -33,8 +34,26 @@ public class UserKernel extends ThreadedKernel {
 
 		// Initialize the free pages lock
 		freePagesLock = new Lock();
-		// initialize the freePages list with all available physical pages
-		initializePageLinkedList();
+		// start out with all available physical pages free
+		initializeFrameAllocator();
+
+		// keep some free frames zeroed ahead of time, zeroing them whenever
+		// there is nothing else to run
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		zeroedFrames = new int[Config.getInteger("UserKernel.zeroedFramePool",
+				Math.max(1, numPhysPages / 16))];
+		KThread.setIdleTask(new Runnable() {
+			public void run() {
+				refillZeroedFrames();
+			}
+		});
+
+		// scratch files named under TmpFileSystem.mountPoint live in memory
+		String mountPoint = Config.getString("TmpFileSystem.mountPoint", null);
+		if (mountPoint != null) {
+			tmpMountPoint = mountPoint.replaceAll("^/+|/+$", "");
+			tmpFileSystem = new TmpFileSystem();
+		}
 	}
 
 	/**
@@ -122,84 +141,230 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		// the native file system may still hold writes in its buffer cache
+		if (fileSystem instanceof NachosFileSystem) {
+			((NachosFileSystem) fileSystem).sync();
+		}
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/**
+	 * The in-memory file system holding the names under
+	 * <tt>tmpMountPoint</tt>, or <tt>null</tt> if none is mounted.
+	 */
+	public static TmpFileSystem tmpFileSystem = null;
+
+	/** Where <tt>tmpFileSystem</tt> is mounted, as a path from the root. */
+	public static String tmpMountPoint = null;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	// a static linked list of free physical pages
-	private static LinkedList<Integer> freePhysicalPages;
+	// allocator handing out the free physical pages
+	private static FrameAllocator frameAllocator;
 
 	// a static lock for free pages to make methods synchronous
 	private static Lock freePagesLock;
 
+	// free frames already filled with zeroes, taken off the frame allocator;
+	// guarded by disabling interrupts, since the idle thread refills it
+	private static int[] zeroedFrames;
+
+	private static int numZeroedFrames = 0;
+
 	/**
-	 * This method initializes the linked list of free physical pages with the
-	 * number of pages of physical memory attached to the simulated
-	 * processor
+	 * This method initializes the frame allocator with the number of pages of
+	 * physical memory attached to the simulated processor, all of them free.
 	 */
-	public static void initializePageLinkedList() {
-		// make a new linked list of all free physical pages
-		freePhysicalPages = new LinkedList<Integer>();
-		// get the number of physical pages
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		// initialize the linked list of free physical pages with the number of
-		// of pages of physical memory attached to this simulated processor.
-		for (int index = 0; index < numPhysPages; index++) {
-			// add the page
-			freePhysicalPages.add(index);
-		}
+	public static void initializeFrameAllocator() {
+		frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
 	}
 
 	/**
-	 * This method allocates a page by removing a free page from our linked list of
-	 * free pages. It does things synchronously.
+	 * This method allocates a free physical page. It does things
+	 * synchronously.
 	 * 
 	 * @return -1 if no page was allocated, else return a number greater than -1
 	 */
 	public static int allocatePage() {
-		// we will return -1 if no page was allocated
-		int page = -1;
 		// acquire the lock
 		freePagesLock.acquire();
-		if (!freePhysicalPages.isEmpty()) {
-			page = freePhysicalPages.removeFirst();
-		}
+		int page = frameAllocator.allocate();
 		// release the lock
 		freePagesLock.release();
+		// the zeroed frames are free too, so use them rather than fail
+		if (page == -1) {
+			page = takeZeroedFrame();
+		}
 		return page;
 	}
 
 	/**
-	 * This method deallocates page by adding a free page to our linked list of free
-	 * pages.
+	 * Allocate a free physical page whose contents are all zeroes. A frame
+	 * zeroed ahead of time by the idle thread is used if there is one, so the
+	 * caller usually does not have to wait for the page to be cleared.
+	 * 
+	 * @return -1 if no page was allocated, else the zeroed physical page
+	 */
+	public static int allocateZeroedPage() {
+		int page = takeZeroedFrame();
+		if (page == -1) {
+			freePagesLock.acquire();
+			page = frameAllocator.allocate();
+			freePagesLock.release();
+			if (page != -1) {
+				zeroFrame(page);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Allocate <i>count</i> free physical pages whose contents are all
+	 * zeroes, storing their numbers in <i>pages</i>. Either all of them are
+	 * allocated or none are.
+	 * 
+	 * @param pages the array to store the physical page numbers in
+	 * @param count the number of pages to allocate
+	 * @return true if the pages were allocated
+	 */
+	public static boolean allocateZeroedPages(int[] pages, int count) {
+		for (int i = 0; i < count; i++) {
+			pages[i] = allocateZeroedPage();
+			if (pages[i] == -1) {
+				deallocatePages(pages, i);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Allocate <i>count</i> free physical pages in one call, storing their
+	 * numbers in <i>pages</i>. Either all of them are allocated or none are.
+	 * 
+	 * @param pages the array to store the physical page numbers in
+	 * @param count the number of pages to allocate
+	 * @return true if the pages were allocated
+	 */
+	public static boolean allocatePages(int[] pages, int count) {
+		freePagesLock.acquire();
+		int fromAllocator = Math.min(count, frameAllocator.getNumFree());
+		boolean allocated = frameAllocator.allocate(pages, fromAllocator);
+		freePagesLock.release();
+		Lib.assertTrue(allocated);
+		// the zeroed frames are free too, so make up any shortfall from them
+		for (int i = fromAllocator; i < count; i++) {
+			pages[i] = takeZeroedFrame();
+			if (pages[i] == -1) {
+				deallocatePages(pages, i);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Allocate <i>count</i> physically contiguous free pages.
+	 * 
+	 * @param count the number of pages to allocate
+	 * @return the first page of the run, or -1 if no run that long is free
+	 */
+	public static int allocateContiguousPages(int count) {
+		freePagesLock.acquire();
+		int first = frameAllocator.allocateContiguous(count);
+		freePagesLock.release();
+		return first;
+	}
+
+	/**
+	 * This method deallocates a page, making it free again.
 	 * 
 	 * @param page number of page that is free
 	 */
 	public static void deallocatePage(int page) {
 		// acquire the lock
 		freePagesLock.acquire();
-		// add a page to the linked list
-		freePhysicalPages.add(page);
+		frameAllocator.free(page);
 		// release the lock
 		freePagesLock.release();
 	}
 
+	/**
+	 * Free the first <i>count</i> physical pages listed in <i>pages</i> in
+	 * one call.
+	 * 
+	 * @param pages the physical page numbers
+	 * @param count the number of pages to free
+	 */
+	public static void deallocatePages(int[] pages, int count) {
+		freePagesLock.acquire();
+		frameAllocator.free(pages, count);
+		freePagesLock.release();
+	}
+
 	public static int getNumOfFreePages() {
-		return freePhysicalPages.size();
+		return frameAllocator.getNumFree() + numZeroedFrames;
+	}
+
+	/**
+	 * Return the number of free frames that are already zeroed.
+	 * 
+	 * @return the number of frames in the zeroed frame pool
+	 */
+	public static int getNumOfZeroedPages() {
+		return numZeroedFrames;
+	}
+
+	private static int takeZeroedFrame() {
+		int page = -1;
+		boolean intStatus = Machine.interrupt().disable();
+		if (numZeroedFrames > 0) {
+			page = zeroedFrames[--numZeroedFrames];
+		}
+		Machine.interrupt().restore(intStatus);
+		return page;
+	}
+
+	/**
+	 * Zero one more free frame for the zeroed frame pool, if it is not full.
+	 * Runs on the idle thread, which must never block, so the frame allocator
+	 * is used without taking the free pages lock. That is safe because the
+	 * idle thread only runs when every other thread is blocked, and no thread
+	 * ever blocks while holding the lock.
+	 */
+	private static void refillZeroedFrames() {
+		boolean intStatus = Machine.interrupt().disable();
+		if (numZeroedFrames < zeroedFrames.length) {
+			int page = frameAllocator.allocate();
+			if (page != -1) {
+				zeroFrame(page);
+				zeroedFrames[numZeroedFrames++] = page;
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void zeroFrame(int page) {
+		int pageSize = Processor.pageSize;
+		Arrays.fill(Machine.processor().getMemory(), page * pageSize, (page + 1) * pageSize, (byte) 0);
 	}
 
 	public static void printFreePages() {
-		int numOfFreePages = getNumOfFreePages();
-		if (freePhysicalPages.isEmpty()) {
+		for (int i = 0; i < numZeroedFrames; i++) {
+			System.out.println("ZEROED FREE PPN: " + zeroedFrames[i]);
+		}
+		if (frameAllocator.getNumFree() == 0) {
 			System.out.println("NO FREE PPNS!");
 		} else {
-			for (int index = 0; index < numOfFreePages; index++) {
-				System.out.println("FREE PPN: " + freePhysicalPages.get(index));
+			int numPhysPages = Machine.processor().getNumPhysPages();
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				if (frameAllocator.isFree(ppn)) {
+					System.out.println("FREE PPN: " + ppn);
+				}
 			}
 		}
 	}
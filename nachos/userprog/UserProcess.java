@@ -4,6 +4,7 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
+import nachos.filesys.*;
 
 import java.util.*;
 import java.util.Map.Entry;
@@ -360,6 +361,9 @@ public class UserProcess {
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
 
+		// a subclass may reserve room for a heap right after the sections
+		numPages += heapPages;
+
 		// next comes the stack; stack pointer initially points to top of it
 		numPages += stackPages;
 		initialSP = numPages * pageSize;
@@ -411,6 +415,24 @@ public class UserProcess {
 		// physical page number reference
 		int physPageNum;
 		int vpn = 0;
+		// allocate every physical page the process needs in one go, with
+		// the stack and argument pages zeroed
+		int[] physPages = new int[numPages];
+		int numStackPages = stackPages + 1;
+		int[] stackPhysPages = new int[numStackPages];
+		if (!UserKernel.allocatePages(physPages, numPages - numStackPages)) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+		if (!UserKernel.allocateZeroedPages(stackPhysPages, numStackPages)) {
+			UserKernel.deallocatePages(physPages, numPages - numStackPages);
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+		System.arraycopy(stackPhysPages, 0, physPages, numPages - numStackPages, numStackPages);
+		int nextPhysPage = 0;
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -423,15 +445,12 @@ public class UserProcess {
 				vpn = section.getFirstVPN() + i;
 				// check if vpn is within bounds of memory
 				if (vpn < 0 || vpn >= numPages) {
+					UserKernel.deallocatePages(physPages, numPages);
 					return false;
 				}
 
-				// allocate a physical page
-				physPageNum = UserKernel.allocatePage();
-				// check if the physical page was allocated
-				if (physPageNum == -1) {
-					return false;
-				}
+				// take the next allocated physical page
+				physPageNum = physPages[nextPhysPage++];
 				// set if the page isReadable according to the section constraint
 				isReadable = section.isReadOnly();
 				// create new table entry
@@ -447,14 +466,11 @@ public class UserProcess {
 			// vpns are contigous so keep incrementing where previous value left off
 			vpn++;
 			if (vpn < 0 || vpn >= numPages) {
+				UserKernel.deallocatePages(physPages, numPages);
 				return false;
 			}
-			// allocate a physical page
-			physPageNum = UserKernel.allocatePage();
-			// check if the physical page was allocated
-			if (physPageNum == -1) {
-				return false;
-			}
+			// take the next allocated physical page
+			physPageNum = physPages[nextPhysPage++];
 			// create new table entry
 			pageTableEntry = new TranslationEntry(vpn, physPageNum, true, false, false, false);
 			// insert the entry into the page table
@@ -468,14 +484,14 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		// update linked list data structure
-		int physPageNum;
+		// give every physical page back in one call
+		int[] physPages = new int[numPages];
 		for (int i = 0; i < numPages; i++) {
-			physPageNum = pageTable[i].ppn;
-			UserKernel.deallocatePage(physPageNum);
+			physPages[i] = pageTable[i].ppn;
 			// empty out contents of page table
 			pageTable[i] = null;
 		}
+		UserKernel.deallocatePages(physPages, numPages);
 	}
 
 	/**
@@ -502,10 +518,11 @@ public class UserProcess {
 	}
 
 	/*
-	 * Halt the Nachos machine by calling Machine.halt(). Only the root process
-	 * (the first process, executed by UserKernel.run()) should be allowed to
-	 * execute this syscall. Any other process should ignore the syscall and return
-	 * immediately.
+	 * Halt the Nachos machine by terminating the kernel, which writes back
+	 * what the file system still holds before calling Machine.halt(). Only the
+	 * root process (the first process, executed by UserKernel.run()) should be
+	 * allowed to execute this syscall. Any other process should ignore the
+	 * syscall and return immediately.
 	 */
 	private int handleHalt() {
 		// check to see if the root process is calling halt
@@ -519,9 +536,9 @@ public class UserProcess {
 		} else {
 			// HALT can only be invoked by the "root" process
 			// - that is, the initial process in the system
-			Machine.halt();
+			Kernel.kernel.terminate();
 			// if this is reached, then the machine did not halt
-			Lib.assertNotReached("Machine.halt() did not halt machine!");
+			Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 			return 0;
 		}
 	}
@@ -645,6 +662,7 @@ public class UserProcess {
 		if (!fileName.endsWith(".coff")) {
 			return -1;
 		}
+		fileName = resolvePath(fileName);
 
 		// Declare a byte buffer to read argument addresses
 		byte[] byteBuffer;
@@ -678,6 +696,8 @@ public class UserProcess {
 
 		// create a new child process
 		UserProcess childProcess = newUserProcess();
+		// the child starts in the same directory
+		childProcess.workingDirectory = workingDirectory;
 
 		// Try to load the executable and prepare it to run with the given arguments
 		if (!childProcess.execute(fileName, args)) {
@@ -813,6 +833,7 @@ public class UserProcess {
 		if (fileName == null || fileName.equals("")) {
 			return -1;
 		}
+		fileName = resolvePath(fileName);
 		// return a file descriptor that can be used to access the file
 		int availableFileDescriptor = getNextAvailableFileDescriptor();
 		// if no space exists inside our fileDescriptors array, then
@@ -821,7 +842,7 @@ public class UserProcess {
 			return -1;
 		}
 		// create a new file object by passing in the file name and the value true
-		OpenFile createdFile = ThreadedKernel.fileSystem.open(fileName, true);
+		OpenFile createdFile = getFileSystem(fileName).open(getLocalName(fileName), true);
 		// if the file was not opened, return an error
 		if (createdFile == null) {
 			return -1;
@@ -849,6 +870,7 @@ public class UserProcess {
 		if (fileName == null || fileName.equals("")) {
 			return -1;
 		}
+		fileName = resolvePath(fileName);
 		// return a file descriptor that can be used to access the file
 		int availableFileDescriptor = getNextAvailableFileDescriptor();
 		// if no space exists inside our fileDescriptors array, then
@@ -857,7 +879,7 @@ public class UserProcess {
 			return -1;
 		}
 		// open a file object by passing in the file name and the value true
-		OpenFile openedFile = ThreadedKernel.fileSystem.open(fileName, false);
+		OpenFile openedFile = getFileSystem(fileName).open(getLocalName(fileName), false);
 		// if the file was not opened, return an error
 		if (openedFile == null) {
 			return -1;
@@ -1089,6 +1111,28 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * Write everything written to the file referred to by fileDescriptor to
+	 * the disk, and wait until it is there.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 *
+	 * int fsync(int fileDescriptor);
+	 */
+	private int handleFsync(int fileDescriptor) {
+		if (fileDescriptor < 0
+				|| fileDescriptor >= MAX_FILE_TABLE_SIZE
+				|| fileDescriptors[fileDescriptor] == null) {
+			return -1;
+		}
+		// only a file system on the disk has anything to wait for; streams
+		// and stub files are written through already
+		if (ThreadedKernel.fileSystem instanceof NachosFileSystem) {
+			((NachosFileSystem) ThreadedKernel.fileSystem).fsync(fileDescriptors[fileDescriptor]);
+		}
+		return 0;
+	}
+
 	/**
 	 * Delete a file from the file system.
 	 *
@@ -1109,13 +1153,138 @@ public class UserProcess {
 		if (fileName == null) {
 			return -1;
 		}
+		fileName = resolvePath(fileName);
 		// attempt to Delete a file from the file system. If open, handled
 		// by the file system
-		boolean isFileRemoved = ThreadedKernel.fileSystem.remove(fileName);
+		boolean isFileRemoved = getFileSystem(fileName).remove(getLocalName(fileName));
 		// return 0 if the file was removed, else return -1
 		return (isFileRemoved ? 0 : -1);
 	}
 
+	/**
+	 * Set aside room on the disk for the first length bytes of the file
+	 * referred to by fileDescriptor, so that writing them needs no more
+	 * space. The length of the file does not change.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 *
+	 * int fallocate(int fileDescriptor, int length);
+	 */
+	private int handleFallocate(int fileDescriptor, int length) {
+		if (fileDescriptor < 0
+				|| fileDescriptor >= MAX_FILE_TABLE_SIZE
+				|| fileDescriptors[fileDescriptor] == null
+				|| length < 0) {
+			return -1;
+		}
+		// only a file system on the disk allocates space for files
+		if (!(ThreadedKernel.fileSystem instanceof NachosFileSystem)) {
+			return -1;
+		}
+		NachosFileSystem fileSystem = (NachosFileSystem) ThreadedKernel.fileSystem;
+		return fileSystem.preallocate(fileDescriptors[fileDescriptor], length) ? 0 : -1;
+	}
+
+	/**
+	 * Make a new, empty directory named name.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 *
+	 * int mkdir(char *name);
+	 */
+	private int handleMkdir(int name) {
+		String path = readVirtualMemoryString(name, MAX_STRING_LENGTH);
+		// only a file system on the disk has directories
+		if (path == null || !(ThreadedKernel.fileSystem instanceof NachosFileSystem)) {
+			return -1;
+		}
+		NachosFileSystem fileSystem = (NachosFileSystem) ThreadedKernel.fileSystem;
+		return fileSystem.createDirectory(resolvePath(path)) ? 0 : -1;
+	}
+
+	/**
+	 * Remove the directory named name, which must be empty.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 *
+	 * int rmdir(char *name);
+	 */
+	private int handleRmdir(int name) {
+		String path = readVirtualMemoryString(name, MAX_STRING_LENGTH);
+		if (path == null || !(ThreadedKernel.fileSystem instanceof NachosFileSystem)) {
+			return -1;
+		}
+		NachosFileSystem fileSystem = (NachosFileSystem) ThreadedKernel.fileSystem;
+		return fileSystem.removeDirectory(resolvePath(path)) ? 0 : -1;
+	}
+
+	/**
+	 * Make the directory named name the current directory.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 *
+	 * int chdir(char *name);
+	 */
+	private int handleChdir(int name) {
+		String path = readVirtualMemoryString(name, MAX_STRING_LENGTH);
+		if (path == null || !(ThreadedKernel.fileSystem instanceof NachosFileSystem)) {
+			return -1;
+		}
+		path = resolvePath(path);
+		if (!((NachosFileSystem) ThreadedKernel.fileSystem).isDirectory(path)) {
+			return -1;
+		}
+		workingDirectory = path;
+		return 0;
+	}
+
+	/**
+	 * Turn <i>name</i>, relative to the working directory unless it starts
+	 * with <tt>/</tt>, into a path from the root with no <tt>.</tt> or
+	 * <tt>..</tt> left in it. <tt>..</tt> is taken to mean the directory
+	 * named before it, without looking at the file system, and the root is
+	 * its own parent.
+	 */
+	private String resolvePath(String name) {
+		if (!name.startsWith("/")) {
+			name = workingDirectory + "/" + name;
+		}
+		LinkedList<String> path = new LinkedList<String>();
+		for (String component : name.split("/")) {
+			if (component.equals("..")) {
+				if (!path.isEmpty()) {
+					path.removeLast();
+				}
+			} else if (component.length() > 0 && !component.equals(".")) {
+				path.add(component);
+			}
+		}
+		return String.join("/", path);
+	}
+
+	/**
+	 * Return the file system holding resolved path <i>path</i>: the in-memory
+	 * one if the path is under its mount point, else the kernel's. Programs
+	 * are always loaded from the kernel's file system.
+	 */
+	private FileSystem getFileSystem(String path) {
+		String mountPoint = UserKernel.tmpMountPoint;
+		if (mountPoint != null && path.startsWith(mountPoint + "/")) {
+			return UserKernel.tmpFileSystem;
+		}
+		return ThreadedKernel.fileSystem;
+	}
+
+	/**
+	 * Return resolved path <i>path</i> as named on the file system holding it.
+	 */
+	private String getLocalName(String path) {
+		if (getFileSystem(path) == ThreadedKernel.fileSystem) {
+			return path;
+		}
+		return path.substring(UserKernel.tmpMountPoint.length() + 1);
+	}
+
 	/**
 	 * This method is sctrictly designed to acquire the index position of the next
 	 * available
@@ -1139,7 +1308,8 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallFsync = 18, syscallMkdir = 19,
+			syscallRmdir = 20, syscallChdir = 21, syscallFallocate = 22;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1193,6 +1363,26 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  fsync(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  mkdir(char *name);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  rmdir(char *name);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  chdir(char *name);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int  fallocate(int fd, int length);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -1244,6 +1434,21 @@ public class UserProcess {
 			case syscallUnlink:
 				// a0 is the name of the file
 				return handleUnlink(a0);
+			case syscallFsync:
+				// a0 is the file descriptor
+				return handleFsync(a0);
+			case syscallMkdir:
+				// a0 is the name of the directory
+				return handleMkdir(a0);
+			case syscallRmdir:
+				// a0 is the name of the directory
+				return handleRmdir(a0);
+			case syscallChdir:
+				// a0 is the name of the directory
+				return handleChdir(a0);
+			case syscallFallocate:
+				// a0 is the file descriptor, a1 the length to set aside
+				return handleFallocate(a0, a1);
 			// the system call was not recognized
 			default:
 				Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -1292,8 +1497,18 @@ public class UserProcess {
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
-	/** The number of pages in the program's stack. */
-	protected final int stackPages = 8;
+	/**
+	 * The number of pages in the program's stack. A subclass that pages the
+	 * stack in on demand may reserve a larger region in its constructor.
+	 */
+	protected int stackPages = 8;
+
+	/**
+	 * The number of pages reserved between the sections and the stack, for
+	 * the heap and any other memory a subclass maps there. A subclass that
+	 * supports <tt>brk()</tt> sets this in its constructor.
+	 */
+	protected int heapPages = 0;
 
 	/** The thread that executes the user-level program. */
 	protected UThread thread;
@@ -1309,6 +1524,9 @@ public class UserProcess {
 	// list of available file descriptors
 	private OpenFile[] fileDescriptors;
 
+	// the working directory, as a path from the root; "" is the root
+	private String workingDirectory = "";
+
 	private int initialPC, initialSP;
 
 	private int argc, argv;
@@ -0,0 +1,172 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A compressed, in-memory swap tier that sits in front of the swap file. Pages
+ * evicted to swap are compressed and kept in a bounded pool, keyed by their
+ * swap page number (SPN). Only when the pool overflows are its least recently
+ * stored pages written out to the swap file, so a page that is faulted back in
+ * soon after being evicted never costs any disk I/O.
+ *
+ * <p>
+ * Every SPN still owns its slot in the swap file, so a page can always be
+ * written back at <tt>spn * pageSize</tt> without allocating anything.
+ */
+public class CompressedSwapPool {
+	/**
+	 * Allocate a new compressed swap pool in front of <i>swapFile</i>.
+	 *
+	 * @param swapFile the file backing the pool.
+	 * @param capacity the maximum number of bytes of compressed pages to keep
+	 *                 in memory. A capacity of 0 disables the pool, so that
+	 *                 every page goes straight to the swap file.
+	 */
+	public CompressedSwapPool(OpenFile swapFile, int capacity) {
+		this.swapFile = swapFile;
+		this.capacity = capacity;
+		pool = new LinkedHashMap<Integer, byte[]>();
+		compressor = new PageCompressor();
+		writeBuffer = new byte[pageSize];
+		poolLock = new Lock();
+	}
+
+	/**
+	 * Store the physical page starting at <i>offset</i> in <i>memory</i> as
+	 * swap page <i>spn</i>, replacing anything previously stored there.
+	 *
+	 * @return <tt>true</tt> on success, <tt>false</tt> if the page or a page
+	 *         pushed out of the pool could not be written to the swap file.
+	 */
+	public boolean store(int spn, byte[] memory, int offset) {
+		poolLock.acquire();
+		// drop any stale copy of this page first
+		discardLocked(spn);
+		if (capacity == 0) {
+			boolean written = writeToFile(spn, memory, offset);
+			poolLock.release();
+			return written;
+		}
+		byte[] encoded = compressor.compress(memory, offset);
+		pool.put(spn, encoded);
+		usedBytes += encoded.length + entryOverhead;
+		numStored++;
+		boolean written = shrinkToCapacity();
+		poolLock.release();
+		return written;
+	}
+
+	/**
+	 * Load swap page <i>spn</i> into the physical page starting at
+	 * <i>offset</i> in <i>memory</i>. The page is served from the pool if it
+	 * is there, and read from the swap file otherwise. Either way the pool no
+	 * longer holds a copy of the page afterwards.
+	 *
+	 * @return <tt>true</tt> on success, <tt>false</tt> if the swap file could
+	 *         not be read.
+	 */
+	public boolean load(int spn, byte[] memory, int offset) {
+		poolLock.acquire();
+		byte[] encoded = pool.remove(spn);
+		if (encoded != null) {
+			usedBytes -= encoded.length + entryOverhead;
+			compressor.decompress(encoded, memory, offset);
+			numHits++;
+			poolLock.release();
+			return true;
+		}
+		int bytesRead = swapFile.read(spn * pageSize, memory, offset, pageSize);
+		ThreadedKernel.stats.numSwapReads++;
+		poolLock.release();
+		return bytesRead == pageSize;
+	}
+
+	/**
+	 * Forget swap page <i>spn</i>, because the SPN is being released.
+	 */
+	public void discard(int spn) {
+		poolLock.acquire();
+		discardLocked(spn);
+		poolLock.release();
+	}
+
+	/**
+	 * Return the number of bytes of compressed pages currently in the pool.
+	 */
+	public int getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Print how well the pool has been doing (debugging purposes).
+	 */
+	public void printStats() {
+		System.out.println("Swap pool: stored " + numStored + ", hits "
+				+ numHits + ", written back " + numWrittenBack + ", resident "
+				+ pool.size() + " pages in " + usedBytes + " bytes");
+	}
+
+	private void discardLocked(int spn) {
+		byte[] encoded = pool.remove(spn);
+		if (encoded != null) {
+			usedBytes -= encoded.length + entryOverhead;
+		}
+	}
+
+	/**
+	 * Write the least recently stored pages out to the swap file until the
+	 * pool fits within its capacity again.
+	 */
+	private boolean shrinkToCapacity() {
+		boolean written = true;
+		while (usedBytes > capacity && !pool.isEmpty()) {
+			Iterator<Entry<Integer, byte[]>> oldest = pool.entrySet().iterator();
+			Entry<Integer, byte[]> entry = oldest.next();
+			oldest.remove();
+			byte[] encoded = entry.getValue();
+			usedBytes -= encoded.length + entryOverhead;
+			compressor.decompress(encoded, writeBuffer, 0);
+			written &= writeToFile(entry.getKey(), writeBuffer, 0);
+			numWrittenBack++;
+		}
+		return written;
+	}
+
+	private boolean writeToFile(int spn, byte[] buf, int offset) {
+		int bytesWritten = swapFile.write(spn * pageSize, buf, offset, pageSize);
+		ThreadedKernel.stats.numSwapWrites++;
+		return bytesWritten == pageSize;
+	}
+
+	private OpenFile swapFile;
+
+	// compressed pages keyed by spn, in least recently stored order
+	private LinkedHashMap<Integer, byte[]> pool;
+
+	private PageCompressor compressor;
+
+	// holds a page while it is decompressed on its way to the swap file
+	private byte[] writeBuffer;
+
+	private Lock poolLock;
+
+	private int capacity;
+
+	private int usedBytes = 0;
+
+	private int numStored = 0;
+
+	private int numHits = 0;
+
+	private int numWrittenBack = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	// bookkeeping charged per pooled page, so zero pages are not free
+	private static final int entryOverhead = 16;
+}
@@ -0,0 +1,253 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * A fast page codec used by the compressed swap pool. Pages that are entirely
+ * zero are detected up front and encoded as a single tag byte; every other
+ * page is run through a small LZ77-style compressor (the LZF token format),
+ * and stored raw if compression does not make it any smaller.
+ *
+ * <p>
+ * A <tt>PageCompressor</tt> keeps a reusable hash table, so a single instance
+ * must not be used by two threads at once.
+ */
+public class PageCompressor {
+	/**
+	 * Allocate a new page compressor.
+	 */
+	public PageCompressor() {
+		hashTable = new int[1 << hashLog];
+		scratch = new byte[pageSize];
+	}
+
+	/**
+	 * Compress the page starting at <i>offset</i> in <i>page</i>. The first
+	 * byte of the returned array is a tag describing how the rest of the array
+	 * is encoded.
+	 *
+	 * @param page   the array holding the page, usually main memory.
+	 * @param offset the offset of the first byte of the page.
+	 * @return a newly allocated array holding the encoded page.
+	 */
+	public byte[] compress(byte[] page, int offset) {
+		// zero pages are by far the most common case for stack and bss pages
+		if (isZeroPage(page, offset)) {
+			return new byte[] { tagZero };
+		}
+		int length = compressInto(page, offset, pageSize, scratch);
+		// page did not compress, so keep an uncompressed copy of it
+		if (length == -1) {
+			byte[] encoded = new byte[pageSize + 1];
+			encoded[0] = tagRaw;
+			System.arraycopy(page, offset, encoded, 1, pageSize);
+			return encoded;
+		}
+		byte[] encoded = new byte[length + 1];
+		encoded[0] = tagCompressed;
+		System.arraycopy(scratch, 0, encoded, 1, length);
+		return encoded;
+	}
+
+	/**
+	 * Expand a page previously encoded with <tt>compress()</tt> into
+	 * <i>page</i>, starting at <i>offset</i>.
+	 *
+	 * @param encoded the encoded page.
+	 * @param page    the array to store the page in, usually main memory.
+	 * @param offset  the offset of the first byte of the page.
+	 */
+	public void decompress(byte[] encoded, byte[] page, int offset) {
+		switch (encoded[0]) {
+			case tagZero:
+				Arrays.fill(page, offset, offset + pageSize, (byte) 0);
+				break;
+			case tagRaw:
+				System.arraycopy(encoded, 1, page, offset, pageSize);
+				break;
+			case tagCompressed:
+				int length = expandInto(encoded, 1, encoded.length - 1, page, offset);
+				Lib.assertTrue(length == pageSize);
+				break;
+			default:
+				Lib.assertNotReached("bad compressed page tag");
+		}
+	}
+
+	/**
+	 * Test whether every byte of the page starting at <i>offset</i> is zero.
+	 *
+	 * @param page   the array holding the page.
+	 * @param offset the offset of the first byte of the page.
+	 * @return <tt>true</tt> if the page is all zeroes.
+	 */
+	public static boolean isZeroPage(byte[] page, int offset) {
+		for (int i = offset; i < offset + pageSize; i++) {
+			if (page[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compress <i>length</i> bytes of <i>in</i> into <i>out</i>. Each token is
+	 * either a control byte below 32 followed by that many literals plus one,
+	 * or a back reference holding a match length and a 13-bit distance.
+	 *
+	 * @return the number of bytes written to <i>out</i>, or -1 if the output
+	 *         would not be smaller than the input.
+	 */
+	private int compressInto(byte[] in, int inOffset, int length, byte[] out) {
+		Arrays.fill(hashTable, -1);
+		// the output has to be smaller than the page to be worth keeping
+		int outLimit = length - 1;
+		int ip = 0;
+		// reserve the control byte of the first literal run
+		int op = 1;
+		int literals = 0;
+
+		while (ip < length - 2) {
+			int base = inOffset + ip;
+			int hash = hash(in[base], in[base + 1], in[base + 2]);
+			int ref = hashTable[hash];
+			hashTable[hash] = ip;
+			int distance = ip - ref - 1;
+
+			if (ref >= 0 && distance < maxDistance
+					&& in[inOffset + ref] == in[base]
+					&& in[inOffset + ref + 1] == in[base + 1]
+					&& in[inOffset + ref + 2] == in[base + 2]) {
+				// extend the match as far as it goes
+				int matchLength = 3;
+				int maxLength = Math.min(length - ip, maxMatch);
+				while (matchLength < maxLength
+						&& in[inOffset + ref + matchLength] == in[base + matchLength]) {
+					matchLength++;
+				}
+				// a back reference takes at most three bytes, plus the next control byte
+				if (op + 4 > outLimit) {
+					return -1;
+				}
+				// close the pending literal run, or drop its unused control byte
+				if (literals > 0) {
+					out[op - literals - 1] = (byte) (literals - 1);
+				} else {
+					op--;
+				}
+				int encodedLength = matchLength - 2;
+				if (encodedLength < 7) {
+					out[op++] = (byte) ((encodedLength << 5) + (distance >> 8));
+				} else {
+					out[op++] = (byte) ((7 << 5) + (distance >> 8));
+					out[op++] = (byte) (encodedLength - 7);
+				}
+				out[op++] = (byte) distance;
+				ip += matchLength;
+				// start a new literal run
+				literals = 0;
+				op++;
+			} else {
+				if (op + 2 > outLimit) {
+					return -1;
+				}
+				out[op++] = in[base];
+				ip++;
+				literals++;
+				if (literals == maxLiterals) {
+					out[op - literals - 1] = (byte) (literals - 1);
+					literals = 0;
+					op++;
+				}
+			}
+		}
+
+		// the last couple of bytes can only be literals
+		while (ip < length) {
+			if (op + 2 > outLimit) {
+				return -1;
+			}
+			out[op++] = in[inOffset + ip];
+			ip++;
+			literals++;
+			if (literals == maxLiterals) {
+				out[op - literals - 1] = (byte) (literals - 1);
+				literals = 0;
+				op++;
+			}
+		}
+
+		if (literals > 0) {
+			out[op - literals - 1] = (byte) (literals - 1);
+		} else {
+			op--;
+		}
+		return op;
+	}
+
+	/**
+	 * Expand the tokens produced by <tt>compressInto()</tt>.
+	 *
+	 * @return the number of bytes written to <i>out</i>.
+	 */
+	private static int expandInto(byte[] in, int inOffset, int length,
+			byte[] out, int outOffset) {
+		int ip = inOffset;
+		int end = inOffset + length;
+		int op = outOffset;
+
+		while (ip < end) {
+			int control = in[ip++] & 0xFF;
+			if (control < maxLiterals) {
+				// literal run
+				int count = control + 1;
+				System.arraycopy(in, ip, out, op, count);
+				ip += count;
+				op += count;
+			} else {
+				// back reference, which may overlap the bytes it produces
+				int matchLength = control >> 5;
+				int ref = op - ((control & 0x1F) << 8) - 1;
+				if (matchLength == 7) {
+					matchLength += in[ip++] & 0xFF;
+				}
+				ref -= in[ip++] & 0xFF;
+				matchLength += 2;
+				Lib.assertTrue(ref >= outOffset);
+				for (int i = 0; i < matchLength; i++) {
+					out[op++] = out[ref++];
+				}
+			}
+		}
+		return op - outOffset;
+	}
+
+	private static int hash(byte b0, byte b1, byte b2) {
+		int v = ((b0 & 0xFF) << 16) | ((b1 & 0xFF) << 8) | (b2 & 0xFF);
+		return (v * 0x9E3779B1) >>> (32 - hashLog);
+	}
+
+	// reusable match table, indexed by a hash of the next three bytes
+	private int[] hashTable;
+
+	// reusable output buffer for compressInto()
+	private byte[] scratch;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final int hashLog = 10;
+
+	private static final int maxLiterals = 32;
+
+	private static final int maxMatch = 264;
+
+	private static final int maxDistance = 1 << 13;
+
+	private static final byte tagZero = 0;
+
+	private static final byte tagCompressed = 1;
+
+	private static final byte tagRaw = 2;
+}
@@ -0,0 +1,366 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+import java.util.AbstractMap.SimpleEntry;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Same-page merging for user memory. A kernel thread periodically hashes every
+ * resident frame in the inverted page table, and maps pages whose contents are
+ * identical onto a single shared frame, freeing the others. Shared frames are
+ * mapped read-only and belong to the kernel rather than to any process, so the
+ * clock never evicts them. The first write to a merged page raises
+ * <tt>exceptionReadOnly</tt> and gives the writer a private copy again.
+ *
+ * <p>
+ * A page is only merged once its hash is the same in two scans in a row, so
+ * pages that are being written to are left alone.
+ */
+public class PageMerger {
+	/**
+	 * Allocate a new page merger that scans memory every <i>interval</i>
+	 * ticks once started.
+	 *
+	 * @param interval the number of ticks between scans.
+	 */
+	public PageMerger(int interval) {
+		this.interval = interval;
+		sharedFrames = new HashMap<Integer, SharedFrame>();
+		sharedByHash = new HashMap<Integer, Integer>();
+		lastHashes = new HashMap<Long, Integer>();
+	}
+
+	/**
+	 * Fork the scanner thread.
+	 */
+	public void start() {
+		KThread scanner = new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(interval);
+					scan();
+				}
+			}
+		});
+		scanner.setName("page merger").fork();
+	}
+
+	/**
+	 * Test whether physical page <i>ppn</i> is a shared frame.
+	 *
+	 * @param ppn the physical page to check.
+	 * @return <tt>true</tt> if the frame holds merged pages.
+	 */
+	public boolean isShared(int ppn) {
+		return sharedFrames.containsKey(ppn);
+	}
+
+	/**
+	 * Test whether page <i>vpn</i> of process <i>pID</i> was writable before
+	 * it was merged into shared frame <i>ppn</i>, so that a write to it
+	 * should break the sharing rather than kill the process.
+	 *
+	 * @param ppn the shared frame.
+	 * @param pID the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page was merged and is writable.
+	 */
+	public boolean isWritableMapping(int ppn, int pID, int vpn) {
+		SharedFrame frame = sharedFrames.get(ppn);
+		if (frame == null) {
+			return false;
+		}
+		Mapping mapping = frame.find(pID, vpn);
+		return mapping != null && !mapping.readOnly;
+	}
+
+	/**
+	 * Remove page <i>vpn</i> of process <i>pID</i> from shared frame
+	 * <i>ppn</i>, because the page was given a private copy or its process is
+	 * exiting. Once a single page is left in the frame, the frame is handed
+	 * back to that page's process as an ordinary private frame. The caller
+	 * must hold the page fault lock.
+	 *
+	 * @param ppn the shared frame.
+	 * @param pID the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @return whether the page was read-only before it was merged.
+	 */
+	public boolean unshare(int ppn, int pID, int vpn) {
+		SharedFrame frame = sharedFrames.get(ppn);
+		Lib.assertTrue(frame != null);
+		Mapping mapping = frame.find(pID, vpn);
+		Lib.assertTrue(mapping != null);
+		frame.mappings.remove(mapping);
+		framesSaved--;
+
+		if (frame.mappings.size() == 1) {
+			Mapping last = frame.mappings.getFirst();
+			sharedFrames.remove(ppn);
+			Integer byHash = sharedByHash.get(frame.hash);
+			if (byHash != null && byHash == ppn) {
+				sharedByHash.remove(frame.hash);
+			}
+			// the last page gets the frame to itself
+			VMProcess owner = VMProcess.lookupProcess(last.pID);
+			PageTable pageTable = owner.getSparsePageTable();
+			boolean intStatus = Machine.interrupt().disable();
+			VMKernel.invalidateTLBPage(last.pID, last.vpn);
+			// merged pages have no swap copy, only read-only pages can be
+			// reloaded from the executable
+			pageTable.clearFlags(last.vpn, PageTable.readOnly | PageTable.dirty);
+			pageTable.setFlags(last.vpn, last.readOnly ? PageTable.readOnly : PageTable.dirty);
+			Machine.interrupt().restore(intStatus);
+
+			VMProcess.updateIPTLock.acquire();
+			VMKernel.invertedPageTable.put(ppn, new SimpleEntry<Integer, Integer>(last.pID, last.vpn));
+			VMProcess.updateIPTLock.release();
+		}
+		return mapping.readOnly;
+	}
+
+	/**
+	 * Hash every resident frame, and merge each page whose hash has not
+	 * changed since the last scan into an existing shared frame with the same
+	 * contents, or into another such page.
+	 */
+	private void scan() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		HashMap<Long, Integer> hashes = new HashMap<Long, Integer>();
+		// unshared stable pages seen in this scan, by hash
+		HashMap<Integer, Integer> candidates = new HashMap<Integer, Integer>();
+
+		VMProcess.pageFaultLock.acquire();
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			if (mergeableEntry(ppn) == 0) {
+				continue;
+			}
+			Entry<Integer, Integer> owner = VMKernel.invertedPageTable.get(ppn);
+			long key = ((long) owner.getKey() << 32) | owner.getValue();
+			int hash = hashFrame(ppn);
+			hashes.put(key, hash);
+
+			Integer lastHash = lastHashes.get(key);
+			if (lastHash == null || lastHash != hash) {
+				continue;
+			}
+			Integer target = sharedByHash.get(hash);
+			if (target != null && mergeInto(ppn, target)) {
+				continue;
+			}
+			Integer other = candidates.get(hash);
+			if (other != null && mergeableEntry(other) != 0 && mergePair(other, ppn, hash)) {
+				candidates.remove(hash);
+				continue;
+			}
+			candidates.put(hash, ppn);
+		}
+		lastHashes = hashes;
+		VMProcess.pageFaultLock.release();
+
+		KernelStats stats = ThreadedKernel.stats;
+		stats.maxFramesSaved = Math.max(stats.maxFramesSaved, framesSaved);
+	}
+
+	/**
+	 * Return the packed page table entry of the private page in physical page
+	 * <i>ppn</i>, or 0 if the frame is free, shared, pinned or being written
+	 * by the page cleaner.
+	 */
+	private int mergeableEntry(int ppn) {
+		Entry<Integer, Integer> owner = VMKernel.invertedPageTable.get(ppn);
+		if (owner == null || VMKernel.isPinned(ppn) || VMKernel.isBeingCleaned(ppn)) {
+			return 0;
+		}
+		VMProcess process = VMProcess.lookupProcess(owner.getKey());
+		if (process == null) {
+			return 0;
+		}
+		int pte = process.getSparsePageTable().getEntry(owner.getValue());
+		if ((pte & PageTable.valid) == 0 || PageTable.getPPN(pte) != ppn) {
+			return 0;
+		}
+		return pte;
+	}
+
+	/**
+	 * Point the page in <i>owner</i> at shared frame <i>target</i>, read-only
+	 * and clean. Interrupts must be disabled.
+	 */
+	private static void mapShared(Entry<Integer, Integer> owner, int target) {
+		PageTable pageTable = VMProcess.lookupProcess(owner.getKey()).getSparsePageTable();
+		int vpn = owner.getValue();
+		pageTable.setPPN(vpn, target);
+		pageTable.setFlags(vpn, PageTable.readOnly);
+		pageTable.clearFlags(vpn, PageTable.dirty);
+	}
+
+	/**
+	 * Merge the private page in physical page <i>ppn</i> into shared frame
+	 * <i>target</i> if their contents are the same, and free <i>ppn</i>.
+	 */
+	private boolean mergeInto(int ppn, int target) {
+		Entry<Integer, Integer> owner = VMKernel.invertedPageTable.get(ppn);
+		int pte = mergeableEntry(ppn);
+		SharedFrame frame = sharedFrames.get(target);
+
+		// compare and remap without letting the owner run in between
+		boolean intStatus = Machine.interrupt().disable();
+		boolean same = framesEqual(ppn, target);
+		if (same) {
+			VMKernel.invalidateTLBFrame(ppn);
+			frame.mappings.add(new Mapping(owner.getKey(), owner.getValue(),
+					(pte & PageTable.readOnly) != 0));
+			mapShared(owner, target);
+		}
+		Machine.interrupt().restore(intStatus);
+		if (!same) {
+			return false;
+		}
+
+		freePrivateFrame(ppn, owner);
+		ThreadedKernel.stats.numPagesMerged++;
+		framesSaved++;
+		Lib.debug(dbgVM, "merged ppn " + ppn + " into shared ppn " + target);
+		return true;
+	}
+
+	/**
+	 * Turn physical page <i>first</i> into a shared frame holding both its
+	 * own page and the page in physical page <i>second</i>, if their contents
+	 * are the same, and free <i>second</i>.
+	 */
+	private boolean mergePair(int first, int second, int hash) {
+		Entry<Integer, Integer> firstOwner = VMKernel.invertedPageTable.get(first);
+		Entry<Integer, Integer> secondOwner = VMKernel.invertedPageTable.get(second);
+		int firstEntry = mergeableEntry(first);
+		int secondEntry = mergeableEntry(second);
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean same = framesEqual(first, second);
+		if (same) {
+			VMKernel.invalidateTLBFrame(first);
+			VMKernel.invalidateTLBFrame(second);
+			SharedFrame frame = new SharedFrame(hash);
+			frame.mappings.add(new Mapping(firstOwner.getKey(), firstOwner.getValue(),
+					(firstEntry & PageTable.readOnly) != 0));
+			frame.mappings.add(new Mapping(secondOwner.getKey(), secondOwner.getValue(),
+					(secondEntry & PageTable.readOnly) != 0));
+			sharedFrames.put(first, frame);
+			sharedByHash.put(hash, first);
+			mapShared(firstOwner, first);
+			mapShared(secondOwner, first);
+		}
+		Machine.interrupt().restore(intStatus);
+		if (!same) {
+			return false;
+		}
+
+		// the first frame now belongs to the kernel
+		VMProcess.updateIPTLock.acquire();
+		VMKernel.invertedPageTable.remove(first);
+		VMProcess.updateIPTLock.release();
+		VMProcess.lookupProcess(firstOwner.getKey()).releaseSwapCopy(firstOwner.getValue());
+
+		freePrivateFrame(second, secondOwner);
+		ThreadedKernel.stats.numPagesMerged++;
+		framesSaved++;
+		Lib.debug(dbgVM, "merged ppn " + second + " and ppn " + first);
+		return true;
+	}
+
+	/**
+	 * Give back the frame and any swap copy of a page that now lives in a
+	 * shared frame.
+	 */
+	private void freePrivateFrame(int ppn, Entry<Integer, Integer> owner) {
+		VMProcess.updateIPTLock.acquire();
+		VMKernel.invertedPageTable.remove(ppn);
+		VMProcess.updateIPTLock.release();
+		VMProcess.lookupProcess(owner.getKey()).releaseSwapCopy(owner.getValue());
+		UserKernel.deallocatePage(ppn);
+	}
+
+	private static int hashFrame(int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		// FNV-1a
+		int hash = 0x811C9DC5;
+		for (int i = ppn * pageSize; i < (ppn + 1) * pageSize; i++) {
+			hash = (hash ^ (memory[i] & 0xFF)) * 0x01000193;
+		}
+		return hash;
+	}
+
+	private static boolean framesEqual(int ppn1, int ppn2) {
+		byte[] memory = Machine.processor().getMemory();
+		int offset1 = ppn1 * pageSize;
+		int offset2 = ppn2 * pageSize;
+		for (int i = 0; i < pageSize; i++) {
+			if (memory[offset1 + i] != memory[offset2 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A virtual page mapped to a shared frame.
+	 */
+	private static class Mapping {
+		Mapping(int pID, int vpn, boolean readOnly) {
+			this.pID = pID;
+			this.vpn = vpn;
+			this.readOnly = readOnly;
+		}
+
+		int pID;
+		int vpn;
+		// the page's read-only bit from before it was merged
+		boolean readOnly;
+	}
+
+	/**
+	 * A frame shared by several virtual pages with the same contents.
+	 */
+	private static class SharedFrame {
+		SharedFrame(int hash) {
+			this.hash = hash;
+			mappings = new LinkedList<Mapping>();
+		}
+
+		Mapping find(int pID, int vpn) {
+			for (Iterator<Mapping> i = mappings.iterator(); i.hasNext();) {
+				Mapping mapping = i.next();
+				if (mapping.pID == pID && mapping.vpn == vpn) {
+					return mapping;
+				}
+			}
+			return null;
+		}
+
+		int hash;
+		LinkedList<Mapping> mappings;
+	}
+
+	private int interval;
+
+	// shared frames by physical page number, and by the hash of their contents
+	private HashMap<Integer, SharedFrame> sharedFrames;
+	private HashMap<Integer, Integer> sharedByHash;
+
+	// the hash of every private page at the last scan, keyed by PID and VPN
+	private HashMap<Long, Integer> lastHashes;
+
+	// frames currently saved by merging
+	private int framesSaved = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
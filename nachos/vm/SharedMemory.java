@@ -0,0 +1,257 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.AbstractMap.SimpleEntry;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * Shared memory segments for <tt>shmget()</tt>, <tt>shmat()</tt> and
+ * <tt>shmdt()</tt>. A segment is a run of pages that several processes map
+ * into their address spaces, each page backed by a single physical frame that
+ * every attached process's page table points at.
+ *
+ * <p>
+ * A resident segment page is owned in the inverted page table by the segment
+ * rather than by any process, under a negative owner ID, and the segment
+ * counts how many page tables currently map it. Segment frames are evicted by
+ * the clock like private frames: a frame counts as used if any process
+ * referenced it, and eviction unmaps it from every process at once and writes
+ * it to the segment's own swap page if any of them dirtied it.
+ *
+ * <p>
+ * A segment lives for as long as some process holds it, that is, has looked it
+ * up with <tt>shmget()</tt> and not yet exited. Callers must hold the page
+ * fault lock.
+ */
+public class SharedMemory {
+	/**
+	 * Allocate a new, empty set of shared memory segments.
+	 *
+	 * @param maxSegmentPages the largest number of pages a segment may have.
+	 */
+	public SharedMemory(int maxSegmentPages) {
+		this.maxSegmentPages = maxSegmentPages;
+		segments = new HashMap<Integer, Segment>();
+		segmentsByKey = new HashMap<Integer, Segment>();
+	}
+
+	/**
+	 * Return the segment named <i>key</i>, creating it with <i>numPages</i>
+	 * zero-filled pages if there is none.
+	 *
+	 * @param key      the name of the segment.
+	 * @param numPages the number of pages the caller needs.
+	 * @return the segment, or <tt>null</tt> if an existing segment is too
+	 *         small or a new one would be too large.
+	 */
+	public Segment get(int key, int numPages) {
+		Segment segment = segmentsByKey.get(key);
+		if (segment != null) {
+			return numPages <= segment.numPages ? segment : null;
+		}
+		if (numPages <= 0 || numPages > maxSegmentPages) {
+			return null;
+		}
+		segment = new Segment(nextID++, key, numPages);
+		segments.put(segment.id, segment);
+		segmentsByKey.put(key, segment);
+		Lib.debug(dbgVM, "created shared segment " + segment.id + " (" + numPages + " pages)");
+		return segment;
+	}
+
+	/**
+	 * Return the segment owning frames under <i>owner</i> in the inverted
+	 * page table.
+	 *
+	 * @param owner a negative owner ID, see <tt>isSegmentOwner()</tt>.
+	 * @return the segment, or <tt>null</tt> if it no longer exists.
+	 */
+	public Segment forOwner(int owner) {
+		return segments.get(-owner - 1);
+	}
+
+	/**
+	 * Test whether an owner ID from the inverted page table names a shared
+	 * segment rather than a process.
+	 *
+	 * @param owner the owner ID.
+	 * @return <tt>true</tt> if the frame belongs to a shared segment.
+	 */
+	public static boolean isSegmentOwner(int owner) {
+		return owner < 0;
+	}
+
+	/**
+	 * Note that one more process holds <i>segment</i>.
+	 */
+	public void hold(Segment segment) {
+		segment.holders++;
+	}
+
+	/**
+	 * Note that a process no longer holds <i>segment</i>, and destroy the
+	 * segment once nobody does, giving back its frames and swap pages. The
+	 * segment must no longer be attached by that process.
+	 */
+	public void release(Segment segment) {
+		Lib.assertTrue(segment.holders > 0);
+		if (--segment.holders > 0) {
+			return;
+		}
+		Lib.assertTrue(segment.attachments.isEmpty());
+
+		for (int page = 0; page < segment.numPages; page++) {
+			if (segment.frames[page] != -1) {
+				VMProcess.updateIPTLock.acquire();
+				VMKernel.invertedPageTable.remove(segment.frames[page]);
+				VMProcess.updateIPTLock.release();
+				UserKernel.deallocatePage(segment.frames[page]);
+			}
+			if (segment.spns[page] != -1) {
+				VMKernel.releaseSwapPage(segment.spns[page]);
+			}
+		}
+		segments.remove(segment.id);
+		segmentsByKey.remove(segment.key);
+		Lib.debug(dbgVM, "destroyed shared segment " + segment.id);
+	}
+
+	/**
+	 * Test whether any process referenced page <i>page</i> of
+	 * <i>segment</i> since the last call, and clear the used bits of all of
+	 * its mappings. The caller must have synced the TLB for the frame.
+	 *
+	 * @return <tt>true</tt> if the page was referenced.
+	 */
+	public boolean clearReferenced(Segment segment, int page) {
+		boolean referenced = false;
+		for (Iterator<SimpleEntry<Integer, Integer>> i = segment.attachments.iterator(); i.hasNext();) {
+			SimpleEntry<Integer, Integer> attachment = i.next();
+			PageTable pageTable = VMProcess.lookupProcess(attachment.getKey()).getSparsePageTable();
+			int vpn = attachment.getValue() + page;
+			if (segment.maps(pageTable, vpn, page) && pageTable.hasFlags(vpn, PageTable.used)) {
+				pageTable.clearFlags(vpn, PageTable.used);
+				referenced = true;
+			}
+		}
+		return referenced;
+	}
+
+	/**
+	 * Evict page <i>page</i> of <i>segment</i>, unmapping it from every
+	 * attached process and writing it to the segment's swap page if it was
+	 * written. The frame is left to the caller.
+	 *
+	 * @return <tt>false</tt> if the page could not be written to swap.
+	 */
+	public boolean evict(Segment segment, int page) {
+		int ppn = segment.frames[page];
+		VMKernel.invalidateTLBFrame(ppn);
+		boolean dirty = segment.dirty[page];
+		for (Iterator<SimpleEntry<Integer, Integer>> i = segment.attachments.iterator(); i.hasNext();) {
+			SimpleEntry<Integer, Integer> attachment = i.next();
+			PageTable pageTable = VMProcess.lookupProcess(attachment.getKey()).getSparsePageTable();
+			int vpn = attachment.getValue() + page;
+			if (segment.maps(pageTable, vpn, page)) {
+				dirty |= pageTable.hasFlags(vpn, PageTable.dirty);
+				pageTable.clearFlags(vpn, PageTable.valid | PageTable.dirty);
+			}
+		}
+		segment.refCounts[page] = 0;
+
+		if (dirty) {
+			// a segment page keeps its swap page until the segment goes away
+			if (segment.spns[page] == -1) {
+				if (VMKernel.getNumOfFreeSPNS() == 0) {
+					VMKernel.addMoreSPNSToList();
+				}
+				segment.spns[page] = VMKernel.allocateSPN();
+			}
+			if (!VMKernel.writeSwapPage(segment.spns[page], ppn)) {
+				segment.dirty[page] = true;
+				return false;
+			}
+		}
+		segment.dirty[page] = false;
+
+		VMProcess.updateIPTLock.acquire();
+		VMKernel.invertedPageTable.remove(ppn);
+		VMProcess.updateIPTLock.release();
+		segment.frames[page] = -1;
+		return true;
+	}
+
+	/**
+	 * A shared memory segment.
+	 */
+	public static class Segment {
+		Segment(int id, int key, int numPages) {
+			this.id = id;
+			this.key = key;
+			this.numPages = numPages;
+			frames = new int[numPages];
+			spns = new int[numPages];
+			refCounts = new int[numPages];
+			dirty = new boolean[numPages];
+			for (int page = 0; page < numPages; page++) {
+				frames[page] = -1;
+				spns[page] = -1;
+			}
+			attachments = new LinkedList<SimpleEntry<Integer, Integer>>();
+		}
+
+		/**
+		 * Return the ID the segment's frames are owned by in the inverted page
+		 * table.
+		 */
+		int getOwnerID() {
+			return -id - 1;
+		}
+
+		/**
+		 * Test whether <i>vpn</i> in <i>pageTable</i> currently maps page
+		 * <i>page</i> of this segment.
+		 */
+		boolean maps(PageTable pageTable, int vpn, int page) {
+			int pte = pageTable.getEntry(vpn);
+			return frames[page] != -1 && (pte & PageTable.valid) != 0
+					&& PageTable.getPPN(pte) == frames[page];
+		}
+
+		final int id;
+		final int key;
+		final int numPages;
+
+		// the frame holding each page, or -1 if the page is not resident
+		int[] frames;
+
+		// the swap page holding each page, or -1 if it was never written out
+		int[] spns;
+
+		// the number of page tables mapping each resident page
+		int[] refCounts;
+
+		// pages written through a mapping that has since gone away
+		boolean[] dirty;
+
+		// processes holding the segment
+		int holders = 0;
+
+		// the PID and first virtual page of every attachment
+		LinkedList<SimpleEntry<Integer, Integer>> attachments;
+	}
+
+	private int maxSegmentPages;
+
+	private int nextID = 0;
+
+	private HashMap<Integer, Segment> segments;
+
+	private HashMap<Integer, Segment> segmentsByKey;
+
+	private static final char dbgVM = 'v';
+}
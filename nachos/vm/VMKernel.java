@@ -7,6 +7,7 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
+import nachos.filesys.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
@@ -32,7 +33,49 @@ public class VMKernel extends UserKernel {
 		freeSPNLock = new Lock();
 		updateCurrSPNLock = new Lock();
 		invertedPageTable = new HashMap<Integer, Entry<Integer,Integer>>();
-		swapFile =  ThreadedKernel.fileSystem.open("swapFile", true);
+		addressSpaces = new HashMap<Integer, PageTable>();
+		if (Config.getBoolean("VMKernel.zeroPage", true)) {
+			// set aside one frame of zeroes that is never evicted or written
+			zeroFrame = UserKernel.allocateZeroedPage();
+		}
+		// tests of the replacement policy can keep swap in memory, so that
+		// the cost of swap I/O does not blur what they measure; it gets a
+		// file system of its own, out of reach of user programs
+		swapFileSystem = ThreadedKernel.fileSystem;
+		if (Config.getBoolean("VMKernel.tmpSwap", false)) {
+			swapFileSystem = new TmpFileSystem();
+		}
+		swapFile = swapFileSystem.open("swapFile", true);
+		// set aside the swap space on the disk up front, in as few runs as it
+		// takes, so that swapping does not scatter it
+		if (swapFileSystem instanceof NachosFileSystem) {
+			int swapPages = Config.getInteger("VMKernel.swapPages",
+					4 * Machine.processor().getNumPhysPages());
+			((NachosFileSystem) swapFileSystem).preallocate(swapFile,
+					swapPages * Processor.pageSize);
+		}
+		// by default let compressed swap pages use up to a quarter of physical memory
+		int poolBytes = Config.getInteger("VMKernel.swapPoolBytes",
+				Machine.processor().getNumPhysPages() * Processor.pageSize / 4);
+		swapPool = new CompressedSwapPool(swapFile, poolBytes);
+		cleaningFrames = new HashSet<Integer>();
+		cleanerLock = new Lock();
+		cleanerDone = new Condition(cleanerLock);
+		if (Config.getBoolean("VMKernel.pageCleaner", true)) {
+			startPageCleaner();
+		}
+		loadControlLock = new Lock();
+		processResumed = new Condition(loadControlLock);
+		suspendedProcesses = new LinkedList<VMProcess>();
+		if (Config.getBoolean("VMKernel.loadControl", true)) {
+			startLoadController();
+		}
+		if (Config.getBoolean("VMKernel.pageMerging", false)) {
+			pageMerger = new PageMerger(Config.getInteger("VMKernel.mergeInterval",
+					8 * Stats.TimerTicks));
+			pageMerger.start();
+		}
+		sharedMemory = new SharedMemory(Config.getInteger("VMProcess.maxSharedPages", 256));
 	}
 
 	/**
@@ -53,8 +96,11 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (Lib.test(dbgVM)) {
+			swapPool.printStats();
+		}
 		swapFile.close();
-		ThreadedKernel.fileSystem.remove("swapFile");
+		swapFileSystem.remove("swapFile");
 		super.terminate();
 	}
 
@@ -66,9 +112,62 @@ public class VMKernel extends UserKernel {
 	// data structure that represents an inverted page table, mapping PPNs (key)
 	// to a user processes' PID and VPN (value)
 	public static HashMap<Integer, Entry<Integer,Integer>> invertedPageTable;
+	// page tables of the running processes, keyed by address space ID, used
+	// to refill the TLB
+	private static HashMap<Integer, PageTable> addressSpaces;
+
+	// the TLB entry to replace next once every entry is in use
+	private static int tlbHand = 0;
+
+	// physical page of zeroes mapped read-only into every untouched zero-fill
+	// page, or -1 if zero-fill pages get a private frame on first touch
+	public static int zeroFrame = -1;
+
 	// swap file 
 	public static OpenFile swapFile;
 
+	// the file system holding the swap file
+	private static FileSystem swapFileSystem;
+
+	// compressed in-memory tier in front of the swap file
+	private static CompressedSwapPool swapPool;
+
+	// physical pages the page cleaner is currently writing to swap
+	private static HashSet<Integer> cleaningFrames;
+
+	// lock and condition for waiting on the page cleaner
+	private static Lock cleanerLock;
+	private static Condition cleanerDone;
+
+	// the page cleaner starts once fewer than this many frames are reclaimable
+	// without I/O, and cleans until this many are
+	private static int cleanerLowWater;
+	private static int cleanerHighWater;
+
+	// ticks between page cleaner checks
+	private static int cleanerInterval;
+
+	// processes swapped out by the load controller, oldest first
+	private static LinkedList<VMProcess> suspendedProcesses;
+
+	// lock and condition for suspended processes waiting to be resumed
+	private static Lock loadControlLock;
+	private static Condition processResumed;
+
+	// ticks between working set samples, and the number of samples a page
+	// stays in its process's working set after its last reference
+	private static int workingSetInterval;
+	private static int workingSetWindow;
+
+	// merges identical pages into shared frames, or null if disabled
+	public static PageMerger pageMerger = null;
+
+	// segments created by shmget(), shared between processes
+	public static SharedMemory sharedMemory;
+
+	// the order in which processes were last (re)activated
+	private static int activationCount = 0;
+
 
 	// map physical pages to if pinned
 	public static HashMap<Integer, Boolean> ppnPinMap;
@@ -137,6 +236,451 @@ public class VMKernel extends UserKernel {
 		return freeSpnList.size();
 	}
 
+	/**
+	 * Write physical page <i>ppn</i> out as swap page <i>spn</i>. The page is
+	 * compressed into the swap pool and only reaches the swap file once the
+	 * pool overflows.
+	 * 
+	 * @param spn the swap page to write
+	 * @param ppn the physical page holding the contents
+	 * @return true on success, false if the swap file could not be written
+	 */
+	public static boolean writeSwapPage(int spn, int ppn) {
+		return swapPool.store(spn, Machine.processor().getMemory(), ppn * Processor.pageSize);
+	}
+
+	/**
+	 * Read swap page <i>spn</i> into physical page <i>ppn</i>, from the swap
+	 * pool if it is still there, else from the swap file.
+	 * 
+	 * @param spn the swap page to read
+	 * @param ppn the physical page to fill
+	 * @return true on success, false if the swap file could not be read
+	 */
+	public static boolean readSwapPage(int spn, int ppn) {
+		return swapPool.load(spn, Machine.processor().getMemory(), ppn * Processor.pageSize);
+	}
+
+	/**
+	 * Release swap page <i>spn</i> whose contents are no longer needed, and
+	 * return it to the list of free spns.
+	 * 
+	 * @param spn the swap page to release
+	 */
+	public static void releaseSwapPage(int spn) {
+		swapPool.discard(spn);
+		deallocateSPN(spn);
+	}
+
+	/**
+	 * Record <i>pageTable</i> as the page table of address space <i>asid</i>,
+	 * so that TLB misses can be served from it. Does nothing if the processor
+	 * has no TLB.
+	 * 
+	 * @param asid      the address space ID
+	 * @param pageTable the page table of the address space
+	 */
+	public static void mapAddressSpace(int asid, PageTable pageTable) {
+		if (Machine.processor().hasTLB()) {
+			addressSpaces.put(asid, pageTable);
+		}
+	}
+
+	/**
+	 * Forget the page table of address space <i>asid</i>.
+	 * 
+	 * @param asid the address space ID
+	 */
+	public static void unmapAddressSpace(int asid) {
+		if (Machine.processor().hasTLB()) {
+			addressSpaces.remove(asid);
+		}
+	}
+
+	/**
+	 * Look up the translation for page <i>vpn</i> of address space
+	 * <i>asid</i>.
+	 * 
+	 * @param asid the address space the page belongs to
+	 * @param vpn  the virtual page number
+	 * @return the packed page table entry, or 0 if the page is not mapped
+	 */
+	public static int lookupPage(int asid, int vpn) {
+		PageTable pageTable = addressSpaces.get(asid);
+		return pageTable == null ? 0 : pageTable.getEntry(vpn);
+	}
+
+	/**
+	 * Load the translation for page <i>vpn</i> of address space <i>asid</i>
+	 * into the TLB. An invalid TLB entry is used if there is one, else the
+	 * entries are replaced round robin, and the used and dirty bits of the
+	 * replaced entry are copied back to its page table entry first. Nothing is
+	 * loaded if the page was evicted again in the meantime.
+	 * 
+	 * @param asid the address space the page belongs to
+	 * @param vpn  the virtual page to load
+	 */
+	public static void fillTLB(int asid, int vpn) {
+		Processor processor = Machine.processor();
+		boolean intStatus = Machine.interrupt().disable();
+		int pte = lookupPage(asid, vpn);
+		if ((pte & PageTable.valid) != 0) {
+			int tlbSize = processor.getTLBSize();
+			int slot = -1;
+			for (int i = 0; i < tlbSize; i++) {
+				if ((processor.readTLBEntryPacked(i) & PageTable.valid) == 0) {
+					slot = i;
+					break;
+				}
+			}
+			if (slot == -1) {
+				slot = tlbHand;
+				tlbHand = (tlbHand + 1) % tlbSize;
+				syncTLBEntry(slot);
+			}
+			processor.writeTLBEntry(slot, vpn, pte, asid);
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry mapping physical page
+	 * <i>ppn</i> back to its page table entry, and clear them in the TLB, so
+	 * that the page table entry alone tells whether the page was referenced
+	 * since. Does nothing if the processor has no TLB.
+	 * 
+	 * @param ppn the physical page about to be inspected
+	 */
+	public static void syncTLBFrame(int ppn) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB()) {
+			return;
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			int cached = processor.readTLBEntryPacked(i);
+			if ((cached & PageTable.valid) != 0 && PageTable.getPPN(cached) == ppn
+					&& (cached & (PageTable.used | PageTable.dirty)) != 0) {
+				syncTLBEntry(i);
+				processor.writeTLBEntry(i, processor.readTLBEntryVPN(i),
+						cached & ~(PageTable.used | PageTable.dirty),
+						processor.readTLBEntryASID(i));
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove every TLB entry mapping physical page <i>ppn</i>, after copying
+	 * its used and dirty bits back to its page table entry. Must be called
+	 * before a resident page is evicted. Does nothing if the processor has no
+	 * TLB.
+	 * 
+	 * @param ppn the physical page being evicted
+	 */
+	public static void invalidateTLBFrame(int ppn) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB()) {
+			return;
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			int cached = processor.readTLBEntryPacked(i);
+			if ((cached & PageTable.valid) != 0 && PageTable.getPPN(cached) == ppn) {
+				syncTLBEntry(i);
+				invalidateTLBEntry(i);
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove the TLB entry for page <i>vpn</i> of address space <i>asid</i>,
+	 * if there is one, because the page is being remapped. Does nothing if the
+	 * processor has no TLB.
+	 * 
+	 * @param asid the address space the page belongs to
+	 * @param vpn  the virtual page number
+	 */
+	public static void invalidateTLBPage(int asid, int vpn) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB()) {
+			return;
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			if ((processor.readTLBEntryPacked(i) & PageTable.valid) != 0
+					&& processor.readTLBEntryVPN(i) == vpn
+					&& processor.readTLBEntryASID(i) == asid) {
+				invalidateTLBEntry(i);
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove every TLB entry tagged with address space <i>asid</i>, because
+	 * the address space is going away and its ID may be reused. Does nothing
+	 * if the processor has no TLB.
+	 * 
+	 * @param asid the address space being torn down
+	 */
+	public static void flushTLBAddressSpace(int asid) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB()) {
+			return;
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			if (processor.readTLBEntryASID(i) == asid) {
+				invalidateTLBEntry(i);
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void invalidateTLBEntry(int slot) {
+		Processor processor = Machine.processor();
+		processor.writeTLBEntry(slot, 0, 0, processor.readTLBEntryASID(slot));
+	}
+
+	/**
+	 * Copy the used and dirty bits of TLB entry <i>slot</i> back to the page
+	 * table entry it was loaded from. Interrupts must be disabled.
+	 */
+	private static void syncTLBEntry(int slot) {
+		Processor processor = Machine.processor();
+		int cached = processor.readTLBEntryPacked(slot);
+		if ((cached & PageTable.valid) == 0) {
+			return;
+		}
+		PageTable pageTable = addressSpaces.get(processor.readTLBEntryASID(slot));
+		int vpn = processor.readTLBEntryVPN(slot);
+		int pte = (pageTable == null) ? 0 : pageTable.getEntry(vpn);
+		// the page may have been evicted and reloaded elsewhere since
+		if ((pte & PageTable.valid) != 0 && PageTable.getPPN(pte) == PageTable.getPPN(cached)) {
+			pageTable.setFlags(vpn, cached & (PageTable.used | PageTable.dirty));
+		}
+	}
+
+	/**
+	 * Start the page cleaner, a kernel thread that keeps a reserve of frames
+	 * that can be reclaimed without any I/O. Whenever the number of free or
+	 * clean frames drops below the low watermark, it writes dirty, unpinned,
+	 * not recently used frames to swap until the high watermark is reached,
+	 * so that page faults rarely have to wait for a swap write.
+	 */
+	private static void startPageCleaner() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		cleanerLowWater = Config.getInteger("VMKernel.cleanerLowWater",
+				Math.max(1, numPhysPages / 4));
+		cleanerHighWater = Config.getInteger("VMKernel.cleanerHighWater",
+				Math.max(cleanerLowWater + 1, numPhysPages / 2));
+		cleanerInterval = Config.getInteger("VMKernel.cleanerInterval",
+				2 * Stats.TimerTicks);
+
+		KThread cleaner = new KThread(new Runnable() {
+			public void run() {
+				runPageCleaner();
+			}
+		});
+		cleaner.setName("page cleaner").fork();
+	}
+
+	/**
+	 * The body of the page cleaner thread. Never returns.
+	 */
+	private static void runPageCleaner() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(cleanerInterval);
+
+			int reclaimable = 0;
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				if (VMProcess.isFrameReclaimable(ppn)) {
+					reclaimable++;
+				}
+			}
+			if (reclaimable >= cleanerLowWater) {
+				continue;
+			}
+			// sweep at most once around memory per wake up, starting with the
+			// frames the clock algorithm will look at next
+			int hand = VMProcess.getClockHand();
+			for (int i = 0; i < numPhysPages && reclaimable < cleanerHighWater; i++) {
+				int ppn = (hand + i) % numPhysPages;
+				if (VMProcess.cleanFrame(ppn)) {
+					Lib.debug(dbgVM, "page cleaner wrote ppn " + ppn);
+					reclaimable++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start the load controller, a kernel thread that samples the used bits of
+	 * every resident page to estimate each process's working set, and keeps
+	 * the sum of the working sets of the running processes within physical
+	 * memory by suspending and swapping out whole processes, and resuming them
+	 * once there is room again.
+	 */
+	private static void startLoadController() {
+		workingSetInterval = Config.getInteger("VMKernel.workingSetInterval",
+				Stats.TimerTicks);
+		workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 4);
+
+		KThread controller = new KThread(new Runnable() {
+			public void run() {
+				runLoadController();
+			}
+		});
+		controller.setName("load controller").fork();
+	}
+
+	/**
+	 * The body of the load controller thread. Never returns. Memory is
+	 * overcommitted when the working sets add up to more than physical memory
+	 * and more than one process is page faulting; a single faulting process
+	 * gains nothing from suspending the others. Suspended processes are
+	 * resumed oldest first once they fit or nobody is faulting. At most one
+	 * process is suspended or resumed per sample, so that working set
+	 * estimates can catch up with each change.
+	 */
+	private static void runLoadController() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(workingSetInterval);
+
+			List<VMProcess> active = VMProcess.sampleWorkingSets(workingSetWindow);
+			int demand = 0;
+			int faulting = 0;
+			VMProcess youngest = null;
+			for (VMProcess process : active) {
+				demand += process.getWorkingSetSize();
+				if (process.getRecentFaults() == 0) {
+					continue;
+				}
+				faulting++;
+				if (youngest == null || process.getActivation() > youngest.getActivation()) {
+					youngest = process;
+				}
+			}
+
+			loadControlLock.acquire();
+			if (demand > numPhysPages && faulting > 1) {
+				Lib.debug(dbgVM, "load controller suspends pid " + youngest.getCurrentID()
+						+ ", working sets " + demand + " pages");
+				youngest.setSuspended(true);
+				suspendedProcesses.add(youngest);
+				loadControlLock.release();
+				if (!youngest.swapOut()) {
+					// swap is full, so suspending it frees no memory
+					Lib.debug(dbgVM, "load controller could not swap out pid "
+							+ youngest.getCurrentID() + ", resuming it");
+					loadControlLock.acquire();
+					suspendedProcesses.remove(youngest);
+					youngest.setSuspended(false);
+					processResumed.wakeAll();
+					loadControlLock.release();
+				}
+				continue;
+			}
+			if (!suspendedProcesses.isEmpty()) {
+				VMProcess oldest = suspendedProcesses.getFirst();
+				if (faulting == 0 || demand + oldest.getWorkingSetSize() <= numPhysPages) {
+					Lib.debug(dbgVM, "load controller resumes pid " + oldest.getCurrentID());
+					suspendedProcesses.removeFirst();
+					oldest.setSuspended(false);
+					processResumed.wakeAll();
+				}
+			}
+			loadControlLock.release();
+		}
+	}
+
+	/**
+	 * Return a number ordering process activations, larger for more recently
+	 * started or resumed processes.
+	 */
+	public static int nextActivation() {
+		return ++activationCount;
+	}
+
+	/**
+	 * Block the calling process for as long as the load controller keeps it
+	 * suspended. Called on every entry into the kernel from user mode.
+	 * 
+	 * @param process the calling process
+	 */
+	public static void waitWhileSuspended(VMProcess process) {
+		if (!process.isSuspended()) {
+			return;
+		}
+		loadControlLock.acquire();
+		while (process.isSuspended()) {
+			processResumed.sleep();
+		}
+		loadControlLock.release();
+	}
+
+	/**
+	 * Forget an exiting process, so that it is never resumed.
+	 * 
+	 * @param process the process that is exiting
+	 */
+	public static void forgetSuspended(VMProcess process) {
+		loadControlLock.acquire();
+		suspendedProcesses.remove(process);
+		loadControlLock.release();
+	}
+
+	/**
+	 * Mark physical page <i>ppn</i> as being written out by the page cleaner,
+	 * which keeps it from being evicted or freed in the meantime.
+	 * 
+	 * @param ppn the physical page being cleaned
+	 */
+	public static void beginCleaning(int ppn) {
+		cleanerLock.acquire();
+		cleaningFrames.add(ppn);
+		cleanerLock.release();
+	}
+
+	/**
+	 * Mark physical page <i>ppn</i> as written out, and wake up anyone
+	 * waiting for the page cleaner.
+	 * 
+	 * @param ppn the physical page that was cleaned
+	 */
+	public static void endCleaning(int ppn) {
+		cleanerLock.acquire();
+		cleaningFrames.remove(ppn);
+		cleanerDone.wakeAll();
+		cleanerLock.release();
+	}
+
+	/**
+	 * this method checks if the page cleaner is writing the specified ppn
+	 * @param ppn
+	 * @return true if the ppn is being cleaned, else false
+	 */
+	public static boolean isBeingCleaned(int ppn) {
+		return cleaningFrames.contains(ppn);
+	}
+
+	/**
+	 * Block until the page cleaner is done writing physical page <i>ppn</i>.
+	 * 
+	 * @param ppn the physical page about to be freed
+	 */
+	public static void waitForCleaning(int ppn) {
+		cleanerLock.acquire();
+		while (cleaningFrames.contains(ppn)) {
+			cleanerDone.sleep();
+		}
+		cleanerLock.release();
+	}
+
 	/**
 	 * this method will add a certain amount of spns to the spnlist
 	 */
@@ -157,8 +701,8 @@ public class VMKernel extends UserKernel {
 	 */
 	public static boolean pin(int ppn, int pID) {
 		updatePPMapLock.acquire();
-		// check so a process can't pin another process's page
-		if(pID != invertedPageTable.get(ppn).getKey()) {
+		// check so a process can't pin another process's page, or the zero frame
+		if(invertedPageTable.get(ppn) == null || pID != invertedPageTable.get(ppn).getKey()) {
 			updatePPMapLock.release();
 			return false;
 		}
@@ -181,7 +725,7 @@ public class VMKernel extends UserKernel {
 	public static boolean unpin(int ppn, int pID) {
 		updatePPMapLock.acquire();
 		// need to check if current process is owner of pinned page 
-		if (pID != invertedPageTable.get(ppn).getKey()){
+		if (invertedPageTable.get(ppn) == null || pID != invertedPageTable.get(ppn).getKey()){
 			updatePPMapLock.release();
 			return false;			
 		}
@@ -19,6 +19,16 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+		// pages live in a two-level page table instead, see loadSections()
+		pageTable = null;
+		activation = VMKernel.nextActivation();
+		// reserve room for a deep stack plus a guard page below it; stack
+		// pages are only given memory once the stack grows into them
+		stackPages = Config.getInteger("VMProcess.maxStackPages", 256) + 1;
+		// the heap is reserved the same way and grows with brk(), with the
+		// region shared memory segments are attached in right above it
+		sharedPages = Config.getInteger("VMProcess.maxSharedPages", 256);
+		heapPages = Config.getInteger("VMProcess.maxHeapPages", 1024) + sharedPages;
 	}
 
 	/**
@@ -34,12 +44,18 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		// TLB entries are tagged with the PID, so there is nothing to flush
+		if (Machine.processor().hasTLB()) {
+			Machine.processor().setASID(getCurrentID());
+		} else {
+			Machine.processor().setPageTable(sparsePageTable);
+		}
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. The page table starts out empty; the entry of a page is
+	 * only created when the page is first faulted in.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
@@ -51,11 +67,8 @@ public class VMProcess extends UserProcess {
 		// 	Lib.debug(dbgProcess, "\tinsufficient physical memory");
 		// 	// return false;
 		// }
-		pageTable = new TranslationEntry[numPages];
-		// boolean isReadable variable for if the section is readable
-		boolean isReadable;
-		// page table entry reference
-		TranslationEntry pageTableEntry;
+		sparsePageTable = new PageTable();
+		VMKernel.mapAddressSpace(getCurrentID(), sparsePageTable);
 		// physical page number reference
 		int vpn = 0;
 		// load sections
@@ -72,39 +85,117 @@ public class VMProcess extends UserProcess {
 				if (vpn < 0 || vpn >= numPages) {
 					return false;
 				}
-				// allocate a physical page
-				// set if the page isReadable according to the section constraint
-				isReadable = section.isReadOnly();
-				// create new table entry with valid set to false
-				pageTableEntry = new TranslationEntry(vpn, -1, false, isReadable, false, false);
-				// insert the entry into the page table
-				pageTable[vpn] = pageTableEntry;
-
 			}
 		}
-		// reserve pages for stack and args
-		for (int i = 0; i < stackPages + 1; i++) {
-			// vpns are contigous so keep incrementing where previous value left off
-			vpn++;
-			if (vpn < 0 || vpn >= numPages) {
-				return false;
-			}
-			// allocate a physical page
-			// check if the physical page was allocated
-			// create new table entry
-			pageTableEntry = new TranslationEntry(vpn, -1, false, false, false, false);
-			// insert the entry into the page table
-			pageTable[vpn] = pageTableEntry;
+		// the stack and args pages follow the sections
+		if (vpn + stackPages + 1 >= numPages) {
+			return false;
 		}
+		lastReferenced = new HashMap<Integer, Integer>();
+		// the stack starts out as large as a UserProcess stack
+		stackGuardVPN = numPages - stackPages - 1;
+		stackLowVPN = numPages - 1 - initialStackPages;
+		// the heap and the shared region sit right below the stack region,
+		// and both start out empty
+		heapStartVPN = stackGuardVPN - heapPages;
+		heapBreak = heapStartVPN * pageSize;
+		sharedStartVPN = stackGuardVPN - sharedPages;
+		attachedSegments = new HashMap<Integer, SharedMemory.Segment>();
+		heldSegments = new HashMap<Integer, SharedMemory.Segment>();
 
 		return true;	
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Create an invalid page table entry for page <i>vpn</i> the first time
+	 * the page is touched.
+	 * 
+	 * @param vpn a virtual page of this process
+	 */
+	private void createEntry(int vpn) {
+		if (sparsePageTable.getEntry(vpn) == 0) {
+			sparsePageTable.setEntry(vpn, PageTable.pack(-1, 0));
+		}
+	}
+
+	/**
+	 * Return a copy of the page table entry of page <i>vpn</i>. The page
+	 * table itself holds packed entries, see <tt>getSparsePageTable()</tt>.
+	 * 
+	 * @param vpn the virtual page
+	 * @return the entry, or null if the page has never been touched
+	 */
+	@Override
+	public TranslationEntry getTranslationEntry(int vpn) {
+		return sparsePageTable.get(vpn);
+	}
+
+	/**
+	 * Return the page table of this process.
+	 * 
+	 * @return the two-level page table holding the packed entries
+	 */
+	PageTable getSparsePageTable() {
+		return sparsePageTable;
+	}
+
+	/**
+	 * Release any resources allocated by <tt>loadSections()</tt>. Only pages
+	 * that are resident own a physical page; pages that were evicted own a
+	 * swap page instead, and both have to be given back.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel.forgetSuspended(this);
+		// keep other processes from evicting our pages while we tear down
+		pageFaultLock.acquire();
+		// shared frames stay with their segments, so take them out first
+		if (attachedSegments != null) {
+			while (!attachedSegments.isEmpty()) {
+				detachSegment(attachedSegments.keySet().iterator().next());
+			}
+			for (Iterator<SharedMemory.Segment> segments = heldSegments.values().iterator(); segments.hasNext();) {
+				VMKernel.sharedMemory.release(segments.next());
+			}
+			heldSegments.clear();
+		}
+		// our PID may be handed to a new process, so drop our TLB entries
+		VMKernel.flushTLBAddressSpace(getCurrentID());
+		// private frames are collected and freed in one call at the end
+		int[] frames = new int[sparsePageTable.getNumEntries()];
+		int numFrames = 0;
+		for (int vpn = sparsePageTable.nextEntry(0); vpn != -1; vpn = sparsePageTable.nextEntry(vpn + 1)) {
+			int pte = sparsePageTable.getEntry(vpn);
+			if ((pte & PageTable.valid) == 0) {
+				continue;
+			}
+			int ppn = PageTable.getPPN(pte);
+			// the zero frame is shared and never freed
+			if (isZeroMapped(pte)) {
+				sparsePageTable.clearFlags(vpn, PageTable.valid);
+				continue;
+			}
+			// merged frames are freed by the page merger once unused
+			if (isMerged(pte)) {
+				VMKernel.pageMerger.unshare(ppn, getCurrentID(), vpn);
+				sparsePageTable.clearFlags(vpn, PageTable.valid);
+				continue;
+			}
+			// the page cleaner may still be writing this frame to swap
+			VMKernel.waitForCleaning(ppn);
+			updateIPTLock.acquire();
+			VMKernel.invertedPageTable.remove(ppn);
+			updateIPTLock.release();
+			frames[numFrames++] = ppn;
+			sparsePageTable.clearFlags(vpn, PageTable.valid);
+		}
+		UserKernel.deallocatePages(frames, numFrames);
+		VMKernel.unmapAddressSpace(getCurrentID());
+		// release the swap pages still holding evicted pages
+		for (Iterator<Integer> spns = vpnToSpnMap.values().iterator(); spns.hasNext();) {
+			VMKernel.releaseSwapPage(spns.next());
+		}
+		vpnToSpnMap.clear();
+		pageFaultLock.release();
 	}
 
 	/**
@@ -144,25 +235,26 @@ public class VMProcess extends UserProcess {
 			// get VPN from address
 			int virtualPageNum = Processor.pageFromAddress(currVaddr);
 			// check if the virtual page number is not out of bounds
-			if (virtualPageNum < 0 || virtualPageNum >= pageTable.length) {
+			if (virtualPageNum < 0 || virtualPageNum >= numPages) {
 				break;
 			}
 			// System.out.println("reading VPN " + virtualPageNum);
 			// extract the current page table entry specified by the virtual page number
-			TranslationEntry pEntry = pageTable[virtualPageNum];
+			int pte = sparsePageTable.getEntry(virtualPageNum);
 			// check if page table entry is valid 
-			if(!pEntry.valid){
+			if((pte & PageTable.valid) == 0){
 				// if preparing a demanded page failed, break out the loop
 				// bad address = vpn * pagesize
 				// System.out.println("faulting page" + virtualPageNum);
-				if (!prepareDemandedPage(pEntry.vpn * pageSize)){
+				if (!prepareDemandedPage(virtualPageNum * pageSize)){
 					break;
 				}
+				pte = sparsePageTable.getEntry(virtualPageNum);
 			}
 			// get offset from address
 			int vaOffset = Processor.offsetFromAddress(currVaddr);
 			// get ppn fron vpn
-			int physicalPageNum = pageTable[virtualPageNum].ppn;
+			int physicalPageNum = PageTable.getPPN(pte);
 			// check of physical page num is not out of bounds
 			if (physicalPageNum < 0 || physicalPageNum >= Machine.processor().getNumPhysPages()) {
 				break;
@@ -181,7 +273,7 @@ public class VMProcess extends UserProcess {
 			int bytesRead = Math.min(bytesToRead, Math.min(pageSize - vaOffset, remainingLength));
 			System.arraycopy(memory, physicalAddr, data, currOffset, bytesRead);
 			// update page table entries 
-			pEntry.used = true;
+			sparsePageTable.setFlags(virtualPageNum, PageTable.used);
 			// update the byte data, address data and offset date
 			currVaddr += bytesRead;
 			currOffset += bytesRead;
@@ -227,27 +319,28 @@ public class VMProcess extends UserProcess {
 			// get VPN from address
 			int virtualPageNum = Processor.pageFromAddress(currVaddr);
 			// check if the virtual page number is not out of bounds
-			if (virtualPageNum < 0 || virtualPageNum >= pageTable.length) {
+			if (virtualPageNum < 0 || virtualPageNum >= numPages) {
 				break;
 			}
 			// System.out.println("writing to VPN " + virtualPageNum);
 
 			// extract the current page table entry specified by the virtual page number
-			TranslationEntry pEntry = pageTable[virtualPageNum];
-			// check if page table entry is valid 
-			if(!pEntry.valid){
+			int pte = sparsePageTable.getEntry(virtualPageNum);
+			// check if page table entry is valid, and not the shared zero frame
+			if((pte & PageTable.valid) == 0 || isZeroMapped(pte) || isMerged(pte)){
 				// if preparing a demanded page failed, break out the loop
 				// bad address = vpn * pagesize
 				// System.out.println("write fault VPN " + virtualPageNum);
 
-				if (!prepareDemandedPage(pEntry.vpn * pageSize)){
+				if (!prepareDemandedPage(virtualPageNum * pageSize, true)){
 					break;
 				}
+				pte = sparsePageTable.getEntry(virtualPageNum);
 			}
 			// get offset from address
 			int vaOffset = Processor.offsetFromAddress(currVaddr);
 			// get ppn fron vpn
-			int physicalPageNum = pageTable[virtualPageNum].ppn;
+			int physicalPageNum = PageTable.getPPN(pte);
 			// check if physical page num is not out of bounds
 			if (physicalPageNum < 0 || physicalPageNum >= Machine.processor().getNumPhysPages()) {
 				break;
@@ -267,8 +360,7 @@ public class VMProcess extends UserProcess {
 			int bytesWritten = Math.min(bytesToWrite, Math.min(pageSize - vaOffset, remainingLength));
 			System.arraycopy(data, currOffset, memory, physicalAddr, bytesWritten);
 			// update page table entries 
-			pEntry.used = true;
-			pEntry.dirty = true;
+			sparsePageTable.setFlags(virtualPageNum, PageTable.used | PageTable.dirty);
 			
 			// update the byte data, address data and offset date
 			currVaddr += bytesWritten;
@@ -283,6 +375,292 @@ public class VMProcess extends UserProcess {
 		return totalBytesWritten;
 	}
 
+	/**
+	 * Handle a syscall exception, taking care of the heap syscalls and
+	 * passing everything else on to <tt>UserProcess</tt>.
+	 * 
+	 * @param syscall the syscall number.
+	 * @param a0      the first syscall argument.
+	 * @param a1      the second syscall argument.
+	 * @param a2      the third syscall argument.
+	 * @param a3      the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	@Override
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+			case syscallBrk:
+				// a0 is the new program break
+				return setBreak(a0) ? 0 : -1;
+			case syscallSbrk:
+				// a0 is the increment, which may be negative
+				int oldBreak = heapBreak;
+				if ((a0 > 0 && oldBreak + a0 < oldBreak) || (a0 < 0 && oldBreak + a0 > oldBreak)) {
+					return -1;
+				}
+				return setBreak(oldBreak + a0) ? oldBreak : -1;
+			case syscallShmget:
+				// a0 is the key, a1 the size in bytes
+				return handleShmget(a0, a1);
+			case syscallShmat:
+				// a0 is the segment ID
+				return handleShmat(a0);
+			case syscallShmdt:
+				// a0 is the address the segment is attached at
+				return handleShmdt(a0);
+			default:
+				return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Move the program break to <i>newBreak</i>. Growing the heap only moves
+	 * the break, the new pages are zero filled on demand like any other page.
+	 * Shrinking it gives back the frames and swap pages of the pages that are
+	 * no longer part of the heap.
+	 * 
+	 * @param newBreak the new end of the heap
+	 * @return false if the break would leave the heap region
+	 */
+	private boolean setBreak(int newBreak) {
+		if (newBreak < heapStartVPN * pageSize || newBreak > sharedStartVPN * pageSize) {
+			return false;
+		}
+		pageFaultLock.acquire();
+		int newEndVPN = heapEndVPN(newBreak);
+		for (int vpn = newEndVPN; vpn < heapEndVPN(heapBreak); vpn++) {
+			releaseHeapPage(vpn);
+		}
+		Lib.debug(dbgVM, "\tbreak moved from 0x" + Lib.toHexString(heapBreak)
+				+ " to 0x" + Lib.toHexString(newBreak));
+		heapBreak = newBreak;
+		pageFaultLock.release();
+		return true;
+	}
+
+	/**
+	 * Return the first page above a heap ending at <i>heapBreak</i>.
+	 */
+	private static int heapEndVPN(int heapBreak) {
+		return (heapBreak + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * Drop heap page <i>vpn</i>, because the break was lowered below it. Its
+	 * frame and swap page are given back, and its entry is removed, so the
+	 * page is zero filled again if the heap grows back over it. The caller
+	 * must hold the page fault lock.
+	 * 
+	 * @param vpn the virtual page to drop
+	 */
+	private void releaseHeapPage(int vpn) {
+		int pte = sparsePageTable.getEntry(vpn);
+		if ((pte & PageTable.valid) != 0) {
+			int ppn = PageTable.getPPN(pte);
+			VMKernel.invalidateTLBPage(getCurrentID(), vpn);
+			if (isMerged(pte)) {
+				VMKernel.pageMerger.unshare(ppn, getCurrentID(), vpn);
+			} else if (!isZeroMapped(pte)) {
+				// the page cleaner may still be writing this frame to swap
+				VMKernel.waitForCleaning(ppn);
+				updateIPTLock.acquire();
+				VMKernel.invertedPageTable.remove(ppn);
+				updateIPTLock.release();
+				UserKernel.deallocatePage(ppn);
+			}
+		}
+		sparsePageTable.setEntry(vpn, 0);
+		releaseSwapCopy(vpn);
+		lastReferenced.remove(vpn);
+	}
+
+	/**
+	 * Handle the shmget() system call, looking up the shared memory segment
+	 * named <i>key</i>, or creating it if there is none. The process holds
+	 * the segment from now on until it exits.
+	 * 
+	 * @param key  the name of the segment
+	 * @param size the size of the segment in bytes
+	 * @return the segment ID, or -1 if the segment could not be created or is
+	 *         smaller than <i>size</i>
+	 */
+	private int handleShmget(int key, int size) {
+		if (size <= 0) {
+			return -1;
+		}
+		pageFaultLock.acquire();
+		SharedMemory.Segment segment = VMKernel.sharedMemory.get(key, (size + pageSize - 1) / pageSize);
+		if (segment == null) {
+			pageFaultLock.release();
+			return -1;
+		}
+		if (!heldSegments.containsKey(segment.id)) {
+			VMKernel.sharedMemory.hold(segment);
+			heldSegments.put(segment.id, segment);
+		}
+		pageFaultLock.release();
+		return segment.id;
+	}
+
+	/**
+	 * Handle the shmat() system call, attaching a segment this process holds
+	 * at the lowest free address of the shared region. No page is mapped
+	 * until it is touched.
+	 * 
+	 * @param shmid the segment ID returned by shmget()
+	 * @return the address the segment is attached at, or -1 on error
+	 */
+	private int handleShmat(int shmid) {
+		pageFaultLock.acquire();
+		SharedMemory.Segment segment = heldSegments.get(shmid);
+		if (segment == null) {
+			pageFaultLock.release();
+			return -1;
+		}
+		// first fit over the attachments, which are few
+		int startVPN = sharedStartVPN;
+		boolean moved = true;
+		while (moved) {
+			moved = false;
+			for (Iterator<Entry<Integer, SharedMemory.Segment>> i = attachedSegments.entrySet().iterator(); i.hasNext();) {
+				Entry<Integer, SharedMemory.Segment> attached = i.next();
+				int otherStart = attached.getKey();
+				int otherEnd = otherStart + attached.getValue().numPages;
+				if (startVPN < otherEnd && otherStart < startVPN + segment.numPages) {
+					startVPN = otherEnd;
+					moved = true;
+				}
+			}
+		}
+		if (startVPN + segment.numPages > stackGuardVPN) {
+			pageFaultLock.release();
+			return -1;
+		}
+		attachedSegments.put(startVPN, segment);
+		segment.attachments.add(new SimpleEntry<Integer, Integer>(getCurrentID(), startVPN));
+		pageFaultLock.release();
+		return startVPN * pageSize;
+	}
+
+	/**
+	 * Handle the shmdt() system call, detaching the segment attached at
+	 * <i>address</i>.
+	 * 
+	 * @param address the address returned by shmat()
+	 * @return 0 on success, or -1 if no segment is attached there
+	 */
+	private int handleShmdt(int address) {
+		if (address % pageSize != 0) {
+			return -1;
+		}
+		pageFaultLock.acquire();
+		int startVPN = address / pageSize;
+		if (!attachedSegments.containsKey(startVPN)) {
+			pageFaultLock.release();
+			return -1;
+		}
+		detachSegment(startVPN);
+		pageFaultLock.release();
+		return 0;
+	}
+
+	/**
+	 * Unmap the segment attached at <i>startVPN</i> from this process. Writes
+	 * made through the mapping are remembered by the segment, and its frames
+	 * stay with the segment. The caller must hold the page fault lock.
+	 * 
+	 * @param startVPN the first virtual page of the attachment
+	 */
+	private void detachSegment(int startVPN) {
+		SharedMemory.Segment segment = attachedSegments.remove(startVPN);
+		for (int page = 0; page < segment.numPages; page++) {
+			int vpn = startVPN + page;
+			int pte = sparsePageTable.getEntry(vpn);
+			if (segment.maps(sparsePageTable, vpn, page)) {
+				// pick up writes made through the TLB before dropping it
+				VMKernel.syncTLBFrame(PageTable.getPPN(pte));
+				VMKernel.invalidateTLBPage(getCurrentID(), vpn);
+				pte = sparsePageTable.getEntry(vpn);
+				segment.dirty[page] |= (pte & PageTable.dirty) != 0;
+				segment.refCounts[page]--;
+			}
+			sparsePageTable.setEntry(vpn, 0);
+			lastReferenced.remove(vpn);
+		}
+		for (Iterator<SimpleEntry<Integer, Integer>> i = segment.attachments.iterator(); i.hasNext();) {
+			SimpleEntry<Integer, Integer> attachment = i.next();
+			if (attachment.getKey() == getCurrentID() && attachment.getValue() == startVPN) {
+				i.remove();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Map page <i>vpn</i> of an attached segment, bringing the segment page
+	 * into memory first if no process has it resident. The caller must hold
+	 * the page fault lock.
+	 * 
+	 * @param vpn a virtual page in the shared region
+	 * @return false if no segment is attached at <i>vpn</i>, or the page
+	 *         could not be loaded
+	 */
+	private boolean faultSharedPage(int vpn) {
+		SharedMemory.Segment segment = null;
+		int startVPN = 0;
+		for (Iterator<Entry<Integer, SharedMemory.Segment>> i = attachedSegments.entrySet().iterator(); i.hasNext();) {
+			Entry<Integer, SharedMemory.Segment> attached = i.next();
+			if (vpn >= attached.getKey() && vpn < attached.getKey() + attached.getValue().numPages) {
+				startVPN = attached.getKey();
+				segment = attached.getValue();
+				break;
+			}
+		}
+		if (segment == null) {
+			Lib.debug(dbgVM, "\taccess to unattached shared page " + vpn);
+			return false;
+		}
+		int page = vpn - startVPN;
+		if (segment.maps(sparsePageTable, vpn, page)) {
+			return true;
+		}
+
+		if (segment.frames[page] == -1) {
+			int ppn = allocateFrame(segment.spns[page] == -1);
+			if (ppn == -1) {
+				return false;
+			}
+			// another process may have brought the page in while we waited
+			if (segment.frames[page] != -1) {
+				UserKernel.deallocatePage(ppn);
+			} else {
+				int owner = segment.getOwnerID();
+				updateIPTLock.acquire();
+				VMKernel.invertedPageTable.put(ppn, new SimpleEntry<Integer, Integer>(owner, page));
+				updateIPTLock.release();
+				if (segment.spns[page] != -1) {
+					VMKernel.pin(ppn, owner);
+					boolean loaded = VMKernel.readSwapPage(segment.spns[page], ppn);
+					VMKernel.unpin(ppn, owner);
+					if (!loaded) {
+						updateIPTLock.acquire();
+						VMKernel.invertedPageTable.remove(ppn);
+						updateIPTLock.release();
+						UserKernel.deallocatePage(ppn);
+						return false;
+					}
+					// loading from the swap pool drops the pool's copy, so the
+					// page must be written out again before it is evicted
+					segment.dirty[page] = true;
+				}
+				segment.frames[page] = ppn;
+			}
+		}
+		sparsePageTable.setEntry(vpn, PageTable.pack(segment.frames[page], PageTable.valid | PageTable.used));
+		segment.refCounts[page]++;
+		return true;
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -292,6 +670,8 @@ public class VMProcess extends UserProcess {
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
+		// stay off the processor while the load controller has us swapped out
+		VMKernel.waitWhileSuspended(this);
 
 		switch (cause) {
 			case pageFault:
@@ -303,6 +683,20 @@ public class VMProcess extends UserProcess {
 				// System.out.println("failed to prepare page on demand, throwing execption...");
 				super.handleException(cause);
 				break;
+			case readOnlyFault:
+				// a write to an untouched zero-fill page gets a private frame
+				int writeAddr = processor.readRegister(Processor.regBadVAddr);
+				int writeVPN = Processor.pageFromAddress(writeAddr);
+				if (writeVPN >= 0 && writeVPN < numPages
+						&& (isZeroMapped(sparsePageTable.getEntry(writeVPN)) || isMergedWritable(writeVPN))
+						&& prepareDemandedPage(writeAddr, true)) {
+					return;
+				}
+				super.handleException(cause);
+				break;
+			case tlbMiss:
+				handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+				break;
 			default:
 				super.handleException(cause);
 				break;
@@ -310,39 +704,99 @@ public class VMProcess extends UserProcess {
 		}
 	}
 	/**
-	 * This method prepares a page on demand
+	 * Handle a TLB miss by loading the translation for the faulting page from
+	 * the page table, faulting the page in first if it is not
+	 * resident. Kills the process if the address is outside its address
+	 * space.
+	 * 
+	 * @param badAddress the virtual address that missed in the TLB
+	 */
+	private void handleTLBMiss(int badAddress) {
+		int vpn = Processor.pageFromAddress(badAddress);
+		int pte = VMKernel.lookupPage(getCurrentID(), vpn);
+		// the page table entry is created by the first fault on the page
+		if ((pte & PageTable.valid) == 0) {
+			// the processor only counts the TLB miss, so count the fault here
+			ThreadedKernel.stats.numTLBMissFaults++;
+			if (!prepareDemandedPage(badAddress)) {
+				super.handleException(tlbMiss);
+				return;
+			}
+		}
+		VMKernel.fillTLB(getCurrentID(), vpn);
+	}
+
+	/**
+	 * This method prepares a page on demand for a read
 	 * @param p int badAddress which is the bad adress that caused the page fault
 	 * @return boolean if page was allocated
 	 */
 	public boolean prepareDemandedPage(int badAddress) {
+		return prepareDemandedPage(badAddress, false);
+	}
+
+	/**
+	 * This method prepares a page on demand. An untouched zero-fill page is
+	 * mapped to the shared zero frame unless it is about to be written, in
+	 * which case it gets a private frame of its own.
+	 * @param badAddress the bad adress that caused the page fault
+	 * @param writing true if the page is needed for a write
+	 * @return boolean if page was allocated
+	 */
+	public boolean prepareDemandedPage(int badAddress, boolean writing) {
 		pageFaultLock.acquire();
+		numPageFaults++;
 		// extract the bad virtual page number from the bad virtual address
 		int badVPN = Processor.pageFromAddress(badAddress);
 		// if the virtual page number is an invalid one, return false
 		// System.out.println("VPN TO FIX: " + badVPN);
-		if (badVPN < 0 || badVPN >= super.pageTable.length){
+		if (badVPN < 0 || badVPN >= numPages || isAboveBreak(badVPN) || !growStack(badAddress)){
 			pageFaultLock.release();
 			return false;
 		}
+		// pages of shared segments are never private, see faultSharedPage()
+		if (isSharedPage(badVPN)) {
+			boolean mapped = faultSharedPage(badVPN);
+			pageFaultLock.release();
+			return mapped;
+		}
 		// get the page table entry for the bad virtual page number
-		TranslationEntry pTEntry = super.pageTable[badVPN];
+		createEntry(badVPN);
+		int pte = sparsePageTable.getEntry(badVPN);
+		if (isZeroMapped(pte)) {
+			if (!writing) {
+				pageFaultLock.release();
+				return true;
+			}
+			// drop the zero frame mapping, the page is loaded privately below
+			VMKernel.invalidateTLBPage(getCurrentID(), badVPN);
+			sparsePageTable.clearFlags(badVPN, PageTable.valid);
+		} else if (isMerged(pte)) {
+			boolean unmerged = !writing || unmergePage(badVPN);
+			pageFaultLock.release();
+			return unmerged;
+		} else if ((pte & PageTable.valid) != 0) {
+			// somebody else already brought the page in
+			pageFaultLock.release();
+			return true;
+		}
+		// reads of a page that would be zero filled share the zero frame
+		if (!writing && VMKernel.zeroFrame != -1 && !vpnToSpnMap.containsKey(badVPN)
+				&& isZeroFillPage(badVPN)) {
+			sparsePageTable.setEntry(badVPN, PageTable.pack(VMKernel.zeroFrame,
+					PageTable.valid | PageTable.readOnly | PageTable.used));
+			pageFaultLock.release();
+			return true;
+		}
 		// System.out.println("-------- Before Allocation: ----------------");
 		// UserKernel.printFreePages();
-		// try to allocate a physical page
-		int ppn = UserKernel.allocatePage();
-		// failed to allocated a physical page, so prepare to evict a page via clock algo
+		// stack and argument pages start out zeroed, so take a zeroed frame
+		boolean zeroFill = !vpnToSpnMap.containsKey(badVPN) && !isCoffPage(badVPN);
+		int ppn = allocateFrame(zeroFill);
+		// the victim could not be written to swap, so there is no frame
 		if (ppn == -1) {
-			// if all the pages are then block this process
-			while (VMKernel.checkAllPagesPinned()) {
-				System.out.println("if this prints more than once then INFITE LOOP");
-				pageFaultLock.release();
-				VMKernel.waitForUnPin.sleep();
-				pageFaultLock.acquire();
-			}
-			// call the clock algorithm, which returns an evicted pp
-			ppn = selectVictimPage();
-			// remove victim page from list 
-			UserKernel.allocatePage();
+			pageFaultLock.release();
+			return false;
 		}
 
 		int pID = super.getCurrentID();
@@ -354,9 +808,9 @@ public class VMProcess extends UserProcess {
 		// UserKernel.printFreePages();
 		// System.out.println("PPN ALLOCATED " + ppn);
 
-		// if the entry is dirty, load it from the swap file
-		if(pTEntry.dirty){
-			boolean wasSwapped = loadFromSwapFile(badVPN, ppn, pTEntry);
+		// if the page has a copy in swap, load it from there
+		if (vpnToSpnMap.containsKey(badVPN)) {
+			boolean wasSwapped = loadFromSwapFile(badVPN, ppn);
 			// failed to load from swap file
 			if(!wasSwapped){
 				VMKernel.unpin(ppn, pID);
@@ -371,15 +825,15 @@ public class VMProcess extends UserProcess {
 			}
 		} else {
 			// if the page is coff, load from it
-			if (loadFromCoffSection(badVPN, ppn, pTEntry)) {
-				// printTranslationEntry(pTEntry);
+			if (loadFromCoffSection(badVPN, ppn)) {
+				// printTranslationEntry(getTranslationEntry(badVPN));
 				// printInvertedPageTable();
 				VMKernel.unpin(ppn, pID);
 				pageFaultLock.release();
 				return true;
 			// else if the page is stack/arg, load from it
-			} else if(loadFromStackOrArgs(badVPN, ppn, pTEntry)){
-				// printTranslationEntry(pTEntry);
+			} else if(loadFromStackOrArgs(badVPN, ppn)){
+				// printTranslationEntry(getTranslationEntry(badVPN));
 				// printInvertedPageTable();
 				VMKernel.unpin(ppn, pID);
 				pageFaultLock.release();
@@ -393,6 +847,114 @@ public class VMProcess extends UserProcess {
 			}
 		}
 	}
+	/**
+	 * Check a fault on <i>badAddress</i> against the stack region, and grow
+	 * the stack down to it if it is just below the stack pointer. Faults
+	 * outside the stack region are always allowed, faults on the guard page
+	 * below the largest possible stack never are.
+	 * @param badAddress the faulting virtual address
+	 * @return false if the access overflows the stack or is a stray access
+	 * below it
+	 */
+	private boolean growStack(int badAddress) {
+		int vpn = Processor.pageFromAddress(badAddress);
+		if (vpn < stackGuardVPN || vpn >= stackLowVPN) {
+			return true;
+		}
+		if (vpn == stackGuardVPN) {
+			Lib.debug(dbgVM, "\tstack overflow at 0x" + Lib.toHexString(badAddress));
+			return false;
+		}
+		int sp = Machine.processor().readRegister(Processor.regSP);
+		if (badAddress < sp - stackGrowthSlack) {
+			Lib.debug(dbgVM, "\taccess below the stack pointer at 0x" + Lib.toHexString(badAddress));
+			return false;
+		}
+		stackLowVPN = vpn;
+		return true;
+	}
+
+	/**
+	 * Check whether page <i>vpn</i> lies in the region shared memory segments
+	 * are attached in.
+	 * @param vpn the virtual page to check
+	 * @return true if the page can only be mapped to a shared segment
+	 */
+	private boolean isSharedPage(int vpn) {
+		return vpn >= sharedStartVPN && vpn < stackGuardVPN;
+	}
+
+	/**
+	 * Check whether page <i>vpn</i> lies in the part of the heap region that
+	 * is above the program break, and so may not be touched.
+	 * @param vpn the faulting virtual page
+	 * @return true if the page is reserved for the heap but not part of it
+	 */
+	private boolean isAboveBreak(int vpn) {
+		if (vpn >= heapEndVPN(heapBreak) && vpn < sharedStartVPN) {
+			Lib.debug(dbgVM, "\taccess above the program break at page " + vpn);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Allocate a physical page for a page fault, evicting a page with the
+	 * clock algorithm if none is free. The caller must hold the page fault
+	 * lock.
+	 * @param zeroed true if the page must be filled with zeroes
+	 * @return the physical page
+	 */
+	private int allocateFrame(boolean zeroed) {
+		// try to allocate a physical page, preferring one zeroed while idle
+		int ppn = zeroed ? UserKernel.allocateZeroedPage() : UserKernel.allocatePage();
+		// failed to allocated a physical page, so prepare to evict a page via clock algo
+		if (ppn == -1) {
+			// if all the pages are then block this process
+			while (VMKernel.checkAllPagesPinned()) {
+				System.out.println("if this prints more than once then INFITE LOOP");
+				pageFaultLock.release();
+				VMKernel.waitForUnPin.sleep();
+				pageFaultLock.acquire();
+			}
+			// call the clock algorithm, which hands us the evicted frame
+			ppn = selectVictimPage();
+			if (zeroed && ppn != -1) {
+				Arrays.fill(Machine.processor().getMemory(), ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+			}
+		}
+		return ppn;
+	}
+
+	/**
+	 * Give merged page <i>vpn</i> a private copy of its shared frame, because
+	 * it is about to be written. The caller must hold the page fault lock.
+	 * @param vpn the merged virtual page
+	 * @return false if no frame could be freed for the copy
+	 */
+	private boolean unmergePage(int vpn) {
+		int ppn = allocateFrame(false);
+		if (ppn == -1) {
+			return false;
+		}
+		// the page may have been handed the shared frame while we waited
+		if (!isMerged(sparsePageTable.getEntry(vpn))) {
+			UserKernel.deallocatePage(ppn);
+			return true;
+		}
+		int sharedPPN = PageTable.getPPN(sparsePageTable.getEntry(vpn));
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, sharedPPN * pageSize, memory, ppn * pageSize, pageSize);
+
+		VMKernel.invalidateTLBPage(getCurrentID(), vpn);
+		boolean readOnly = VMKernel.pageMerger.unshare(sharedPPN, getCurrentID(), vpn);
+		sparsePageTable.setEntry(vpn, PageTable.pack(ppn, PageTable.valid | PageTable.used
+				| PageTable.dirty | (readOnly ? PageTable.readOnly : 0)));
+		updateIPT(vpn, ppn);
+		ThreadedKernel.stats.numMergesBroken++;
+		return true;
+	}
+
 	public void updateIPT(int badVPN, int ppn){
 		// System.out.println("update IPT badvpn :"+ badVPN +" to ppn "+ ppn);
 		// get current process id 
@@ -406,7 +968,7 @@ public class VMProcess extends UserProcess {
 
 	}
 	
-	public boolean loadFromCoffSection(int badVPN, int ppn, TranslationEntry pTEntry){
+	public boolean loadFromCoffSection(int badVPN, int ppn){
 		// if page is clean 
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			// extract the current coff section
@@ -422,10 +984,8 @@ public class VMProcess extends UserProcess {
 				// load section into physical 
 				section.loadPage(badVPN - lowVPN, ppn);
 				//update corresponding bits to valid 
-				pTEntry.ppn = ppn;
-				pTEntry.valid = true;
-				pTEntry.readOnly = section.isReadOnly();
-				pTEntry.used = true;
+				sparsePageTable.setEntry(badVPN, PageTable.pack(ppn, PageTable.valid | PageTable.used
+						| (section.isReadOnly() ? PageTable.readOnly : 0)));
 				// updateIPT(badVPN, ppn);
 
 				return true;
@@ -435,36 +995,29 @@ public class VMProcess extends UserProcess {
 		return false;
 	}
 
-	public boolean loadFromStackOrArgs(int badVPN, int ppn, TranslationEntry pTEntry){
+	public boolean loadFromStackOrArgs(int badVPN, int ppn){
 		// System.out.println("loading from stack/args");
-		// create a new array that is completely zeroed out of size "pageSize"
-		byte[] zeroedArray = new byte[pageSize];
-		// source, source pos, dest. dest pos, length
-		System.arraycopy(zeroedArray, 0, Machine.processor().getMemory(), ppn * pageSize, pageSize);
+		// the frame was zeroed when it was allocated, see allocateFrame()
 
 		// update entries 
-		pTEntry.ppn = ppn;
-		pTEntry.valid = true;
-		pTEntry.readOnly = false;
-		pTEntry.used = true;
+		sparsePageTable.setEntry(badVPN, PageTable.pack(ppn, PageTable.valid | PageTable.used));
 		// updateIPT(badVPN, ppn);
 		return true;
 	}
 	
 
-	public boolean loadFromSwapFile(int badVPN, int ppn, TranslationEntry pTEntry) {
+	public boolean loadFromSwapFile(int badVPN, int ppn) {
 		// extract the spn from the entries ppn, as this is where we stored the spn
 		// System.out.println("vpn to access: " + badVPN);
 		// printVPNTOSPNMAP();
 		int spn = vpnToSpnMap.get(badVPN);
-		// read the page from swap file into physical memory
-		int bytesRead = VMKernel.swapFile.read(spn * pageSize, Machine.processor().getMemory(), ppn * pageSize, pageSize);
-		if(bytesRead == -1) {
-			return false;			
-		}
-		pTEntry.ppn = ppn;
-		pTEntry.valid = true;
-		pTEntry.used = true;
+		// read the page from the swap pool or swap file into physical memory
+		if (!VMKernel.readSwapPage(spn, ppn)) {
+			return false;
+		}
+		// the swap page is given back, so memory now holds the only copy
+		sparsePageTable.setEntry(badVPN, PageTable.pack(ppn, PageTable.valid | PageTable.used
+				| PageTable.dirty));
 		// updateIPT(badVPN, ppn);
 		vpnToSpnMap.remove(badVPN);
 		VMKernel.deallocateSPN(spn);
@@ -479,6 +1032,70 @@ public class VMProcess extends UserProcess {
 	private static final char dbgVM = 'v';
 
 	private static final int pageFault = Processor.exceptionPageFault;
+
+	private static final int tlbMiss = Processor.exceptionTLBMiss;
+
+	private static final int readOnlyFault = Processor.exceptionReadOnly;
+
+	// stack pages usable right away, wherever the stack pointer is
+	private static final int initialStackPages = 8;
+
+	// how far below the stack pointer a fault may be and still grow the stack
+	private static final int stackGrowthSlack = pageSize;
+
+	private static final int syscallBrk = 13, syscallSbrk = 14,
+			syscallShmget = 15, syscallShmat = 16, syscallShmdt = 17;
+
+	// smallest frame quota of a running process, even with an empty working set
+	private static final int minWorkingSet = 4;
+
+	// the number of working set samples taken so far
+	private static int workingSetSample = 0;
+
+	// two-level page table, holding an entry for every page touched so far
+	private PageTable sparsePageTable;
+
+	// the page below the largest possible stack, which is never mapped
+	private int stackGuardVPN;
+
+	// the lowest page the stack has grown down to so far
+	private int stackLowVPN;
+
+	// the first page of the heap region
+	private int heapStartVPN;
+
+	// the current program break, the end of the heap
+	private int heapBreak;
+
+	// the first page of the region shared segments are attached in
+	private int sharedStartVPN;
+
+	// the number of pages in the shared region
+	private int sharedPages;
+
+	// attached shared segments, by their first virtual page
+	private HashMap<Integer, SharedMemory.Segment> attachedSegments;
+
+	// shared segments this process looked up with shmget(), by ID
+	private HashMap<Integer, SharedMemory.Segment> heldSegments;
+
+	// the sample in which each page was last seen referenced
+	private HashMap<Integer, Integer> lastReferenced;
+
+	// pages referenced within the working set window at the last sample
+	private int workingSetSize = 0;
+
+	// page faults taken in total, as of the last sample, and between the last
+	// two samples
+	private int numPageFaults = 0;
+	private int faultsAtLastSample = 0;
+	private int recentFaults = 0;
+
+	// true while the load controller keeps this process swapped out
+	private boolean suspended = false;
+
+	// when this process was last started or resumed
+	private int activation;
 	
 	// initialize this clock hand to be 0
 	private static int clockHand = 0;
@@ -486,20 +1103,27 @@ public class VMProcess extends UserProcess {
 
 	// initialize a lock for synchronization and editing of the clock hand static varaible
 	private static Lock updateClockHandLock = new Lock();
-	private static Lock updateIPTLock = new Lock();
-	private static Lock pageFaultLock = new Lock();
+	static Lock updateIPTLock = new Lock();
+	static Lock pageFaultLock = new Lock();
 	
 		
 	/**
 	 * This method is a clock algorithm method designed to select a victim page
-	 * to evict from memory
-	 * @return the victim page to be evicted
+	 * to evict from memory. The victim's frame is not freed but handed to the
+	 * caller, so no other process can grab it first.
+	 * @return the physical page of the evicted victim, or -1 on a swap error
 	 */
 	public int selectVictimPage(){
 		updateClockHandLock.acquire();
 		// System.out.println("evicting page ...");
 		int ppn = clockHand;
 		// int initialClockHand = clockHand;
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		// number of frames looked at since the last yield
+		int framesChecked = 0;
+		// take frames from processes holding more than their working set first
+		boolean overQuotaOnly = true;
+		HashMap<Integer, Integer> residentPages = countResidentPages();
 		
 		// loop through the physical pages until a page to evict is found
 		while(true){
@@ -507,10 +1131,23 @@ public class VMProcess extends UserProcess {
 			// System.out.println("current clock hand/ppn checking: " + ppn);
 			// printInvertedPageTable();
 
+			// after two laps every frame is pinned or being cleaned, so let the
+			// page cleaner finish its writes before looking again
+			if (++framesChecked > 2 * numPhysPages) {
+				// nobody is over quota, so fall back to the global clock
+				if (overQuotaOnly) {
+					overQuotaOnly = false;
+				} else {
+					KThread.yield();
+				}
+				framesChecked = 0;
+			}
 			// check that the physical page is actually in use by a process, also check if a page is pinned
-			if(VMKernel.invertedPageTable.get(ppn) == null || VMKernel.isPinned(ppn)) {
+			// or being written out by the page cleaner
+			if(VMKernel.invertedPageTable.get(ppn) == null || VMKernel.isPinned(ppn)
+					|| VMKernel.isBeingCleaned(ppn)) {
 				// check the next physical page
-				ppn = (ppn + 1) % Machine.processor().getNumPhysPages();
+				ppn = (ppn + 1) % numPhysPages;
 				continue;
 			}
 			// extract process and VPN entry from the PPN
@@ -519,16 +1156,41 @@ public class VMProcess extends UserProcess {
 			Integer pIDFromPage = pIDToVPNEntry.getKey();
 			// extract the VPN
 			int vpn = pIDToVPNEntry.getValue();
+			// frames of shared segments are used if any process used them
+			if (SharedMemory.isSegmentOwner(pIDFromPage)) {
+				if (!overQuotaOnly) {
+					SharedMemory.Segment segment = VMKernel.sharedMemory.forOwner(pIDFromPage);
+					VMKernel.syncTLBFrame(ppn);
+					if (!VMKernel.sharedMemory.clearReferenced(segment, vpn)) {
+						if (!VMKernel.sharedMemory.evict(segment, vpn)) {
+							updateClockHandLock.release();
+							return -1;
+						}
+						clockHand = (ppn + 1) % numPhysPages;
+						updateClockHandLock.release();
+						return ppn;
+					}
+				}
+				ppn = (ppn + 1) % numPhysPages;
+				continue;
+			}
 			// extract the UserProcess Object
 			UserProcess processFromPage = UserProcess.currentProcesses.get(pIDFromPage);
-			// extract the translationEntry associated with the VPN
-			TranslationEntry ptEntry = processFromPage.getTranslationEntry(vpn);
+			// leave the working sets of other processes alone while we can
+			if (overQuotaOnly && !((VMProcess) processFromPage).isOverQuota(residentPages)) {
+				ppn = (ppn + 1) % numPhysPages;
+				continue;
+			}
+			// extract the page table holding the VPN
+			PageTable ownerPageTable = ((VMProcess) processFromPage).sparsePageTable;
+			// pick up references made through the TLB
+			VMKernel.syncTLBFrame(ppn);
 			// check entry used bit
-			if (ptEntry.used){
+			if (ownerPageTable.hasFlags(vpn, PageTable.used)){
 				// if used then set to false and check next entry
-				ptEntry.used = false;
+				ownerPageTable.clearFlags(vpn, PageTable.used);
 				// increment ppn 
-				ppn = (ppn + 1) % Machine.processor().getNumPhysPages();
+				ppn = (ppn + 1) % numPhysPages;
 
 				// System.out.println("ppn incremented");
 			}
@@ -536,45 +1198,16 @@ public class VMProcess extends UserProcess {
 			else {
 				// System.out.println("evicting page " + ppn + "\n -----page table before------- ");
 				// printProcessPageTable(processFromPage);
-				int spn = -1;
-				// if page is dirty must write out to swap
-				if (ptEntry.dirty) {
-					// if all free spns have been taken, add more spns to the list
-					if(VMKernel.getNumOfFreeSPNS() == 0){
-						VMKernel.addMoreSPNSToList();
-					}
-					
-					// get spn number to write in file
-					spn = VMKernel.allocateSPN();
-					// System.out.println("Swap file page number "+spn);
-					// System.out.println("mapping vpn: "+ vpn + " spn "+ spn);
-					// store mapping for vpn to spn for swapping back in
-					processFromPage.setVPNToSPNMap(vpn, spn);
-					// write physical page to swap file at the position indicated by the spn
-					int bytesWritten = VMKernel.swapFile.write(spn * pageSize, Machine.processor().getMemory(), ppn * pageSize, pageSize);
-					if(bytesWritten == -1) {
-						updateClockHandLock.release();
-						return -1;
-					}
+				// write the page out if needed and free the frame
+				if (!evictFrame(ppn, (VMProcess) processFromPage, vpn, false)) {
+					updateClockHandLock.release();
+					return -1;
 				}
 				
 				//System.out.println("Invalidating entry breaking loop...");
-
-				// invalidate Valid entry 
-				ptEntry.valid = false;
 				// ptEntry.ppn = -1;
 				// set clockhand to point to the physical page next to the evicted page
-				clockHand = (ppn + 1) % Machine.processor().getNumPhysPages();
-				
-				// remove the entry from the IPT
-				updateIPTLock.acquire();
-				VMKernel.invertedPageTable.remove(ppn);
-				updateIPTLock.release();
-
-				// add this page back to the list of free physical pages
-				// System.out.println("num free pages: " + UserKernel.getNumOfFreePages());
-				UserKernel.deallocatePage(ppn);
-				// System.out.println("num free pages after deallocate: " + UserKernel.getNumOfFreePages());
+				clockHand = (ppn + 1) % numPhysPages;
 				updateClockHandLock.release();
 				// returns the page that was evicted
 				// System.out.println("---------page table after----------- ");
@@ -585,6 +1218,403 @@ public class VMProcess extends UserProcess {
 		} 
 	}
 
+	/**
+	 * Check whether page <i>vpn</i> belongs to one of the executable's
+	 * sections, rather than to the stack or the argument page.
+	 * 
+	 * @param vpn the virtual page to check
+	 * @return true if the page is loaded from the COFF file
+	 */
+	private boolean isCoffPage(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether page <i>vpn</i> starts out as all zeroes, that is, it is
+	 * a stack or argument page, or belongs to a writable uninitialized
+	 * section such as bss.
+	 * 
+	 * @param vpn the virtual page to check
+	 * @return true if the page would be zero filled when first loaded
+	 */
+	private boolean isZeroFillPage(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength()) {
+				return !section.isInitialzed() && !section.isReadOnly();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether <i>pte</i> maps a frame shared by the page merger.
+	 * 
+	 * @param pte the packed page table entry to check
+	 * @return true if the page is merged with other identical pages
+	 */
+	private static boolean isMerged(int pte) {
+		return VMKernel.pageMerger != null && (pte & PageTable.valid) != 0
+				&& VMKernel.pageMerger.isShared(PageTable.getPPN(pte));
+	}
+
+	/**
+	 * Check whether page <i>vpn</i> is merged but was writable before, so
+	 * that a write should give it a private copy.
+	 * 
+	 * @param vpn the virtual page to check
+	 * @return true if a write to the page should break the sharing
+	 */
+	private boolean isMergedWritable(int vpn) {
+		int pte = sparsePageTable.getEntry(vpn);
+		return isMerged(pte)
+				&& VMKernel.pageMerger.isWritableMapping(PageTable.getPPN(pte), getCurrentID(), vpn);
+	}
+
+	/**
+	 * Look up a running process by PID.
+	 * 
+	 * @param pID the process ID
+	 * @return the process, or null if there is none
+	 */
+	static VMProcess lookupProcess(int pID) {
+		return (VMProcess) UserProcess.currentProcesses.get(pID);
+	}
+
+	/**
+	 * Give back the swap copy of page <i>vpn</i>, if it has one, because the
+	 * page has moved to a shared frame.
+	 * 
+	 * @param vpn the virtual page
+	 */
+	void releaseSwapCopy(int vpn) {
+		Integer spn = vpnToSpnMap.remove(vpn);
+		if (spn != null) {
+			VMKernel.releaseSwapPage(spn);
+		}
+	}
+
+	/**
+	 * Check whether <i>pte</i> maps the shared zero frame.
+	 * 
+	 * @param pte the packed page table entry to check
+	 * @return true if the page is an untouched zero-fill page
+	 */
+	private static boolean isZeroMapped(int pte) {
+		return (pte & PageTable.valid) != 0 && PageTable.getPPN(pte) == VMKernel.zeroFrame;
+	}
+
+	/**
+	 * Evict the page <i>vpn</i> of <i>owner</i> from physical page
+	 * <i>ppn</i>, writing it to swap if it is dirty, and either put the frame
+	 * back on the list of free physical pages or leave it to the caller. The
+	 * caller must hold the page fault lock.
+	 * 
+	 * @param ppn     the physical page to free
+	 * @param owner   the process the page belongs to
+	 * @param vpn     the virtual page held in the frame
+	 * @param free    true to free the frame, false to keep it for the caller
+	 * @return false if the page could not be written to swap
+	 */
+	private static boolean evictFrame(int ppn, VMProcess owner, int vpn, boolean free) {
+		// invalidate Valid entry first, so the owner cannot change the
+		// page while it is being written out
+		VMKernel.invalidateTLBFrame(ppn);
+		owner.sparsePageTable.clearFlags(vpn, PageTable.valid);
+		// if page is dirty must write out to swap, a clean page either
+		// still has an up to date copy in swap or can be reloaded
+		if (owner.sparsePageTable.hasFlags(vpn, PageTable.dirty)) {
+			// reuse the swap page of a page the cleaner already wrote once
+			int spn = owner.swapPageFor(vpn);
+			// write physical page to swap at the position indicated by the spn;
+			// if that fails the frame still holds the only copy, so map it again
+			if (!VMKernel.writeSwapPage(spn, ppn)) {
+				owner.sparsePageTable.setFlags(vpn, PageTable.valid);
+				return false;
+			}
+		}
+		// remove the entry from the IPT
+		updateIPTLock.acquire();
+		VMKernel.invertedPageTable.remove(ppn);
+		updateIPTLock.release();
+
+		// add this page back to the list of free physical pages, unless the
+		// caller is about to reuse it
+		if (free) {
+			UserKernel.deallocatePage(ppn);
+		}
+		return true;
+	}
+
+	/**
+	 * Count the resident pages of every process.
+	 * 
+	 * @return a map from PID to the number of physical pages the process holds
+	 */
+	private static HashMap<Integer, Integer> countResidentPages() {
+		HashMap<Integer, Integer> residentPages = new HashMap<Integer, Integer>();
+		for (Iterator<Entry<Integer, Integer>> owners = VMKernel.invertedPageTable.values().iterator(); owners.hasNext();) {
+			Integer pID = owners.next().getKey();
+			Integer count = residentPages.get(pID);
+			residentPages.put(pID, count == null ? 1 : count + 1);
+		}
+		return residentPages;
+	}
+
+	/**
+	 * Check whether this process holds more physical pages than its frame
+	 * quota, its working set estimate. A suspended process has no quota.
+	 * 
+	 * @param residentPages the resident page counts from countResidentPages()
+	 * @return true if some of this process's frames may be taken away
+	 */
+	private boolean isOverQuota(HashMap<Integer, Integer> residentPages) {
+		Integer resident = residentPages.get(getCurrentID());
+		if (resident == null) {
+			return false;
+		}
+		int quota = suspended ? 0 : Math.max(workingSetSize, minWorkingSet);
+		return resident > quota;
+	}
+
+	/**
+	 * Take one working set sample. The used bit of every resident page is
+	 * recorded and cleared, and the working set of each running process is
+	 * re-estimated as the pages it referenced during the last <i>window</i>
+	 * samples. The estimates of suspended processes are left as they were
+	 * when they were suspended.
+	 * 
+	 * @param window the number of samples a reference counts for
+	 * @return the processes that are not suspended
+	 */
+	public static List<VMProcess> sampleWorkingSets(int window) {
+		workingSetSample++;
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			VMKernel.syncTLBFrame(ppn);
+			Entry<Integer, Integer> pIDToVPNEntry = VMKernel.invertedPageTable.get(ppn);
+			if (pIDToVPNEntry == null) {
+				continue;
+			}
+			VMProcess owner = (VMProcess) UserProcess.currentProcesses.get(pIDToVPNEntry.getKey());
+			if (owner == null || owner.lastReferenced == null || owner.suspended) {
+				continue;
+			}
+			int vpn = pIDToVPNEntry.getValue();
+			if (owner.sparsePageTable.hasFlags(vpn, PageTable.valid | PageTable.used)) {
+				owner.lastReferenced.put(vpn, workingSetSample);
+				owner.sparsePageTable.clearFlags(vpn, PageTable.used);
+			}
+		}
+
+		List<VMProcess> active = new ArrayList<VMProcess>();
+		for (Iterator<UserProcess> processes = UserProcess.currentProcesses.values().iterator(); processes.hasNext();) {
+			VMProcess process = (VMProcess) processes.next();
+			if (process.suspended || process.lastReferenced == null) {
+				continue;
+			}
+			// pages that fell out of the window are forgotten
+			for (Iterator<Integer> samples = process.lastReferenced.values().iterator(); samples.hasNext();) {
+				if (samples.next() <= workingSetSample - window) {
+					samples.remove();
+				}
+			}
+			process.workingSetSize = process.lastReferenced.size();
+			process.recentFaults = process.numPageFaults - process.faultsAtLastSample;
+			process.faultsAtLastSample = process.numPageFaults;
+			active.add(process);
+		}
+		return active;
+	}
+
+	/**
+	 * Evict every resident page of this process that is not pinned, so that
+	 * a suspended process gives all its frames back. Stops at the first page
+	 * that cannot be written to swap, leaving it and the rest resident.
+	 *
+	 * @return false if a page could not be written to swap
+	 */
+	public boolean swapOut() {
+		pageFaultLock.acquire();
+		for (int vpn = sparsePageTable.nextEntry(0); vpn != -1; vpn = sparsePageTable.nextEntry(vpn + 1)) {
+			int pte = sparsePageTable.getEntry(vpn);
+			int ppn = PageTable.getPPN(pte);
+			if ((pte & PageTable.valid) == 0 || isZeroMapped(pte)
+					|| isMerged(pte) || isSharedPage(vpn) || VMKernel.isPinned(ppn)) {
+				continue;
+			}
+			VMKernel.waitForCleaning(ppn);
+			VMKernel.syncTLBFrame(ppn);
+			if (!evictFrame(ppn, this, vpn, true)) {
+				pageFaultLock.release();
+				return false;
+			}
+		}
+		pageFaultLock.release();
+		return true;
+	}
+
+	/**
+	 * Return this process's current working set estimate, in pages.
+	 */
+	public int getWorkingSetSize() {
+		return workingSetSize;
+	}
+
+	/**
+	 * Return the number of page faults this process took between the last two
+	 * working set samples.
+	 */
+	public int getRecentFaults() {
+		return recentFaults;
+	}
+
+	/**
+	 * Return when this process was last started or resumed, as ordered by
+	 * <tt>VMKernel.nextActivation()</tt>.
+	 */
+	public int getActivation() {
+		return activation;
+	}
+
+	/**
+	 * Test whether the load controller has suspended this process.
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Suspend or resume this process. Called by the load controller.
+	 * 
+	 * @param suspended true to suspend the process, false to resume it
+	 */
+	public void setSuspended(boolean suspended) {
+		this.suspended = suspended;
+		if (!suspended) {
+			activation = VMKernel.nextActivation();
+		}
+	}
+
+	/**
+	 * Return the physical page the clock algorithm will look at next.
+	 * 
+	 * @return the current position of the clock hand
+	 */
+	public static int getClockHand() {
+		return clockHand;
+	}
+
+	/**
+	 * Return the swap page holding <i>vpn</i>, allocating one and recording
+	 * the mapping if the page has never been written to swap.
+	 * 
+	 * @param vpn the virtual page about to be written to swap
+	 * @return the spn to write the page to
+	 */
+	private int swapPageFor(int vpn) {
+		Integer spn = vpnToSpnMap.get(vpn);
+		if (spn != null) {
+			return spn;
+		}
+		// if all free spns have been taken, add more spns to the list
+		if (VMKernel.getNumOfFreeSPNS() == 0) {
+			VMKernel.addMoreSPNSToList();
+		}
+		int newSpn = VMKernel.allocateSPN();
+		// store mapping for vpn to spn for swapping back in
+		setVPNToSPNMap(vpn, newSpn);
+		return newSpn;
+	}
+
+	/**
+	 * Look up the page table entry mapped to physical page <i>ppn</i>.
+	 * 
+	 * @param ppn the physical page to look up
+	 * @return the owning process's packed entry, or 0 if the page is free
+	 */
+	private static int entryForFrame(int ppn) {
+		Entry<Integer, Integer> pIDToVPNEntry = VMKernel.invertedPageTable.get(ppn);
+		if (pIDToVPNEntry == null) {
+			return 0;
+		}
+		VMProcess processFromPage = lookupProcess(pIDToVPNEntry.getKey());
+		if (processFromPage == null) {
+			return 0;
+		}
+		return processFromPage.sparsePageTable.getEntry(pIDToVPNEntry.getValue());
+	}
+
+	/**
+	 * Check whether physical page <i>ppn</i> could be reclaimed without any
+	 * I/O, that is, it is free or holds a clean page nobody is using.
+	 * 
+	 * @param ppn the physical page to check
+	 * @return true if the frame is free or clean and unpinned
+	 */
+	public static boolean isFrameReclaimable(int ppn) {
+		if (ppn == VMKernel.zeroFrame
+				|| (VMKernel.pageMerger != null && VMKernel.pageMerger.isShared(ppn))) {
+			return false;
+		}
+		// shared segment frames are never cleaned ahead of time
+		Entry<Integer, Integer> owner = VMKernel.invertedPageTable.get(ppn);
+		if (owner != null && SharedMemory.isSegmentOwner(owner.getKey())) {
+			return false;
+		}
+		VMKernel.syncTLBFrame(ppn);
+		int pte = entryForFrame(ppn);
+		if (pte == 0) {
+			return true;
+		}
+		return (pte & PageTable.dirty) == 0 && !VMKernel.isPinned(ppn) && !VMKernel.isBeingCleaned(ppn);
+	}
+
+	/**
+	 * Write physical page <i>ppn</i> to swap ahead of time if it is dirty,
+	 * unpinned and not recently used, so that a later eviction can simply drop
+	 * it. Called by the page cleaner thread; the frame cannot be evicted while
+	 * it is being written, and its owner cannot exit until the write is done.
+	 * 
+	 * @param ppn the physical page to clean
+	 * @return true if the page was written to swap
+	 */
+	public static boolean cleanFrame(int ppn) {
+		pageFaultLock.acquire();
+		if (VMKernel.isPinned(ppn) || VMKernel.isBeingCleaned(ppn)) {
+			pageFaultLock.release();
+			return false;
+		}
+		VMKernel.syncTLBFrame(ppn);
+		int pte = entryForFrame(ppn);
+		if ((pte & PageTable.valid) == 0 || (pte & PageTable.dirty) == 0
+				|| (pte & PageTable.used) != 0) {
+			pageFaultLock.release();
+			return false;
+		}
+		Entry<Integer, Integer> pIDToVPNEntry = VMKernel.invertedPageTable.get(ppn);
+		VMProcess owner = (VMProcess) UserProcess.currentProcesses.get(pIDToVPNEntry.getKey());
+		int vpn = pIDToVPNEntry.getValue();
+		int spn = owner.swapPageFor(vpn);
+		// clear dirty before writing, a store during the write will set it again
+		owner.sparsePageTable.clearFlags(vpn, PageTable.dirty);
+		VMKernel.beginCleaning(ppn);
+		pageFaultLock.release();
+
+		boolean written = VMKernel.writeSwapPage(spn, ppn);
+		if (!written) {
+			owner.sparsePageTable.setFlags(vpn, PageTable.dirty);
+		}
+		VMKernel.endCleaning(ppn);
+		return written;
+	}
+
 	/**
 	 * this method simply prints out the inverted page table
 	 */
@@ -608,14 +1638,13 @@ public class VMProcess extends UserProcess {
 	/**
 	 * this method simply prints out the current process page table
 	 */
-	public static void printProcessPageTable(UserProcess currentProcess) {
-		TranslationEntry[] currentPageTable = currentProcess.getPageTable();
+	public static void printProcessPageTable(VMProcess currentProcess) {
 		// TranslationEntry(int vpn, int ppn, boolean valid, boolean readOnly, boolean
 		// used, boolean dirty)
 		System.out.println("------------- Process Page Table ------------- ");
-		for (int i = 0; i < currentPageTable.length; i++) {
-			TranslationEntry currentTranslationEntry = currentPageTable[i];
-			System.out.print("Translation Entry: [" + i + "] (");
+		for (Iterator<TranslationEntry> entries = currentProcess.sparsePageTable.iterator(); entries.hasNext();) {
+			TranslationEntry currentTranslationEntry = entries.next();
+			System.out.print("Translation Entry: [" + currentTranslationEntry.vpn + "] (");
 			System.out.print(" | vpn: " + currentTranslationEntry.vpn);
 			System.out.print(" | ppn: " + currentTranslationEntry.ppn);
 			System.out.print(" | valid: " + currentTranslationEntry.valid);